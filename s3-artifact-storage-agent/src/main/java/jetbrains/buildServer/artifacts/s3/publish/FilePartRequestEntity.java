@@ -0,0 +1,137 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactChecksums;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Request entity sending a region of a file, used to upload a single part of a multipart upload or a whole file.
+ * <p>
+ * The checksums of the sent content are computed on the way, so it is read only once.
+ * <p>
+ * The content is read with positional channel reads into a single large buffer and written to the connection
+ * stream as a whole, bypassing the small buffer of the connection, so a part takes few system calls.
+ * The parts of a multipart upload share the reader of their file, see {@link S3FilePartReader}.
+ */
+final class FilePartRequestEntity implements RequestEntity {
+  private static final int THROTTLED_WRITE_SIZE = 64 * 1024;
+
+  private final File myFile;
+  private final S3FilePartReader mySharedReader;
+  private final long myOffset;
+  private final long myLength;
+  private final String myContentType;
+  private final int myBufferSize;
+  private final S3UploadThrottle myThrottle;
+  private final S3ArtifactChecksums.Digest myDigest = new S3ArtifactChecksums.Digest();
+
+  FilePartRequestEntity(@NotNull final S3FilePartReader reader,
+                        final long offset,
+                        final long length,
+                        final int bufferSize,
+                        @Nullable final S3UploadThrottle throttle) {
+    this(reader.getFile(), reader, offset, length, null, bufferSize, throttle);
+  }
+
+  FilePartRequestEntity(@NotNull final File file,
+                        final long offset,
+                        final long length,
+                        @Nullable final String contentType,
+                        final int bufferSize,
+                        @Nullable final S3UploadThrottle throttle) {
+    this(file, null, offset, length, contentType, bufferSize, throttle);
+  }
+
+  private FilePartRequestEntity(@NotNull final File file,
+                                @Nullable final S3FilePartReader sharedReader,
+                                final long offset,
+                                final long length,
+                                @Nullable final String contentType,
+                                final int bufferSize,
+                                @Nullable final S3UploadThrottle throttle) {
+    myFile = file;
+    mySharedReader = sharedReader;
+    myOffset = offset;
+    myLength = length;
+    myContentType = contentType;
+    myBufferSize = bufferSize;
+    myThrottle = throttle;
+  }
+
+  /**
+   * @return checksums of the content sent by the last request
+   */
+  @NotNull
+  S3ArtifactChecksums.Digest getDigest() {
+    return myDigest;
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public void writeRequest(@NotNull final OutputStream out) throws IOException {
+    myDigest.reset();
+    final S3FilePartReader reader = mySharedReader != null ? mySharedReader : new S3FilePartReader(myFile);
+    try {
+      final ByteBuffer buffer = ByteBuffer.allocate((int)Math.max(1, Math.min(myBufferSize, myLength)));
+      long position = myOffset;
+      final long end = myOffset + myLength;
+      while (position < end) {
+        buffer.clear();
+        buffer.limit((int)Math.min(buffer.capacity(), end - position));
+        reader.read(position, buffer);
+        final int length = buffer.position();
+        myDigest.update(buffer.array(), 0, length);
+        if (myThrottle == null) {
+          out.write(buffer.array(), 0, length);
+        } else {
+          // smaller writes keep the throttled rate smooth
+          for (int sent = 0; sent < length; sent += THROTTLED_WRITE_SIZE) {
+            final int size = Math.min(THROTTLED_WRITE_SIZE, length - sent);
+            myThrottle.acquire(size);
+            out.write(buffer.array(), sent, size);
+          }
+        }
+        position += length;
+      }
+    } finally {
+      if (reader != mySharedReader) {
+        reader.close();
+      }
+    }
+  }
+
+  @Override
+  public long getContentLength() {
+    return myLength;
+  }
+
+  @Override
+  public String getContentType() {
+    return myContentType;
+  }
+}
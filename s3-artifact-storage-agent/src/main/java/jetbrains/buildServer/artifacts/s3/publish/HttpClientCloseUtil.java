@@ -18,7 +18,10 @@ package jetbrains.buildServer.artifacts.s3.publish;
 
 import com.intellij.openapi.diagnostic.Logger;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import jetbrains.buildServer.util.Converter;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
@@ -66,6 +69,34 @@ final class HttpClientCloseUtil {
     return executeAndReleaseConnectionInternal(client, method, RESPONSE_BODY_EXTRACTING_CONVERTER);
   }
 
+  static <T> T executeReleasingConnectionAndReadResponse(@NotNull final HttpClient client,
+                                                         @NotNull final HttpMethod method,
+                                                         @NotNull final Converter<T, HttpMethod> responseConverter) throws IOException {
+    return executeAndReleaseConnectionInternal(client, method, responseConverter);
+  }
+
+  /**
+   * @return values of the present response headers by name
+   */
+  @NotNull
+  static Map<String, String> executeReleasingConnectionAndReadResponseHeaders(@NotNull final HttpClient client,
+                                                                              @NotNull final HttpMethod method,
+                                                                              @NotNull final String... headerNames) throws IOException {
+    return executeAndReleaseConnectionInternal(client, method, new Converter<Map<String, String>, HttpMethod>() {
+      @Override
+      public Map<String, String> createFrom(@NotNull final HttpMethod source) {
+        final Map<String, String> result = new HashMap<String, String>();
+        for (String headerName : headerNames) {
+          final Header header = source.getResponseHeader(headerName);
+          if (header != null) {
+            result.put(headerName, header.getValue());
+          }
+        }
+        return result;
+      }
+    });
+  }
+
   @SuppressWarnings("ThrowFromFinallyBlock")
   private static <T> T executeAndReleaseConnectionInternal(@NotNull final HttpClient client,
                                                            @NotNull final HttpMethod method,
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactPacks;
+import jetbrains.buildServer.artifacts.s3.S3Util;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Gzips artifacts with compressible content types before upload, the objects are stored with {@code Content-Encoding: gzip}.
+ * <p>
+ * Content-addressed artifacts are never compressed, since their objects are shared with builds
+ * which know nothing about the encoding. Packs are never compressed either, the server reads the packed artifacts
+ * as byte ranges of the stored object.
+ */
+final class S3ArtifactCompressor {
+  private static final long MIN_FILE_SIZE = 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Map<String, String> myConfigParameters;
+  private final File myTempDirectory;
+  private final int myLevel;
+  private final long myContentAddressedFileThreshold;
+  private final Set<File> myCompressedFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+  S3ArtifactCompressor(@NotNull final Map<String, String> configParameters, @NotNull final File tempDirectory) {
+    myConfigParameters = configParameters;
+    myTempDirectory = tempDirectory;
+    myLevel = S3Util.getCompressionLevel(configParameters);
+    myContentAddressedFileThreshold = S3Util.isContentAddressingEnabled(configParameters)
+                                      ? S3Util.getContentAddressedFileThreshold(configParameters)
+                                      : Long.MAX_VALUE;
+  }
+
+  @Nullable
+  static S3ArtifactCompressor create(@NotNull final AgentRunningBuild build) {
+    final Map<String, String> configParameters = build.getSharedConfigParameters();
+    return S3Util.isCompressionEnabled(configParameters) ? new S3ArtifactCompressor(configParameters, build.getBuildTempDirectory()) : null;
+  }
+
+  /**
+   * @param artifactPath path the file is published under
+   * @return temporary gzipped copy of the file, which the caller deletes after upload,
+   * or null if the file should be uploaded as is
+   */
+  @Nullable
+  File compress(@NotNull final File file, @NotNull final String artifactPath) throws IOException {
+    myCompressedFiles.remove(file);
+    if (S3ArtifactPacks.isPackPath(artifactPath)) return null;
+    final long length = file.length();
+    if (length < MIN_FILE_SIZE || length >= myContentAddressedFileThreshold) return null;
+    if (!S3Util.isCompressibleContentType(myConfigParameters, S3Util.getContentType(file))) return null;
+
+    final File compressed = File.createTempFile("s3-artifact", ".gz", myTempDirectory);
+    boolean success = false;
+    final InputStream input = new FileInputStream(file);
+    try {
+      final OutputStream output = new GZIPOutputStream(new FileOutputStream(compressed), BUFFER_SIZE) {
+        {
+          def.setLevel(myLevel);
+        }
+      };
+      try {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+          output.write(buffer, 0, read);
+        }
+      } finally {
+        output.close();
+      }
+      success = compressed.length() < length;
+    } finally {
+      FileUtil.close(input);
+      if (!success) {
+        FileUtil.delete(compressed);
+      }
+    }
+    if (!success) return null;
+    myCompressedFiles.add(file);
+    return compressed;
+  }
+
+  /**
+   * @return true if the last upload of the file was compressed
+   */
+  boolean isCompressed(@NotNull final File file) {
+    return myCompressedFiles.contains(file);
+  }
+}
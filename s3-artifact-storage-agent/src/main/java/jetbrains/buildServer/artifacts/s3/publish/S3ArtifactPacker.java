@@ -0,0 +1,130 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.*;
+import java.util.*;
+import jetbrains.buildServer.artifacts.ArtifactDataInstance;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactPacks;
+import jetbrains.buildServer.artifacts.s3.S3Util;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Concatenates small artifacts of a build into pack files of about the configured size.
+ * Packs are numbered across all publishing calls of the build, so their S3 keys never clash.
+ *
+ * @see S3ArtifactPacks
+ */
+final class S3ArtifactPacker {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File myDirectory;
+  private final long myPackSize;
+  private int myPackCount;
+
+  S3ArtifactPacker(@NotNull final File directory, final long packSize) {
+    myDirectory = directory;
+    myPackSize = packSize;
+  }
+
+  /**
+   * @param files files to pack mapped to their artifact directories
+   * @return written packs, the caller uploads them to {@link S3ArtifactPacks#PACKS_PATH} and deletes afterwards
+   */
+  @NotNull
+  List<Pack> pack(@NotNull final Map<File, String> files) throws IOException {
+    if (!myDirectory.isDirectory() && !myDirectory.mkdirs()) {
+      throw new IOException("Failed to create directory " + myDirectory.getAbsolutePath());
+    }
+    final List<Pack> packs = new ArrayList<Pack>();
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    Pack pack = null;
+    OutputStream output = null;
+    try {
+      for (Map.Entry<File, String> entry : files.entrySet()) {
+        final File file = entry.getKey();
+        if (pack != null && pack.mySize > 0 && pack.mySize + file.length() > myPackSize) {
+          output.close();
+          output = null;
+          pack = null;
+        }
+        if (pack == null) {
+          pack = new Pack(new File(myDirectory, ++myPackCount + ".pack"));
+          packs.add(pack);
+          output = new BufferedOutputStream(new FileOutputStream(pack.myFile), BUFFER_SIZE);
+        }
+        final long offset = pack.mySize;
+        final InputStream input = new FileInputStream(file);
+        try {
+          int read;
+          while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+            pack.mySize += read;
+          }
+        } finally {
+          FileUtil.close(input);
+        }
+        pack.add(S3Util.normalizeArtifactPath(entry.getValue(), file), offset, pack.mySize - offset);
+      }
+    } catch (IOException e) {
+      for (Pack written : packs) {
+        FileUtil.delete(written.myFile);
+      }
+      throw e;
+    } finally {
+      FileUtil.close(output);
+    }
+    return packs;
+  }
+
+  static final class Pack {
+    private final File myFile;
+    private final String myPath;
+    private final List<ArtifactDataInstance> myArtifacts = new ArrayList<ArtifactDataInstance>();
+    private final Map<String, Long> myOffsets = new HashMap<String, Long>();
+    private long mySize;
+
+    private Pack(@NotNull final File file) {
+      myFile = file;
+      myPath = S3Util.normalizeArtifactPath(S3ArtifactPacks.PACKS_PATH, file);
+    }
+
+    private void add(@NotNull final String artifactPath, final long offset, final long size) {
+      myArtifacts.add(ArtifactDataInstance.create(artifactPath, size));
+      myOffsets.put(artifactPath, offset);
+    }
+
+    @NotNull
+    File getFile() {
+      return myFile;
+    }
+
+    @NotNull
+    List<ArtifactDataInstance> getArtifacts() {
+      return myArtifacts;
+    }
+
+    /**
+     * @return the artifact list common property with the index of the pack
+     */
+    @NotNull
+    Map<String, String> getProperties() {
+      return Collections.singletonMap(S3ArtifactPacks.getPropertyName(myPath), S3ArtifactPacks.getPropertyValue(myOffsets));
+    }
+  }
+}
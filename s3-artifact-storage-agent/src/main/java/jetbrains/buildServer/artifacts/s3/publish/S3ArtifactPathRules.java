@@ -0,0 +1,169 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.File;
+import java.util.*;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Artifact path rules of a build, evaluated against the checkout directory to find the files to publish.
+ * <p>
+ * Only plain path rules are supported: {@code source [=> target]} with {@code *}, {@code **} and {@code ?} wildcards in the source.
+ * Rules packing files into archives or referring into archives are skipped, and no rules are returned when there are exclusions,
+ * since those can't be evaluated reliably here.
+ */
+final class S3ArtifactPathRules {
+  private static final String[] ARCHIVE_EXTENSIONS = {".zip", ".jar", ".war", ".ear", ".sit", ".tar", ".tgz", ".tar.gz", ".gz"};
+
+  private final List<Rule> myRules;
+
+  private S3ArtifactPathRules(@NotNull final List<Rule> rules) {
+    myRules = rules;
+  }
+
+  @NotNull
+  static S3ArtifactPathRules parse(@Nullable final String artifactPaths) {
+    final List<Rule> rules = new ArrayList<Rule>();
+    if (StringUtil.isEmptyOrSpaces(artifactPaths)) return new S3ArtifactPathRules(rules);
+    for (String line : artifactPaths.split("[\\r\\n,]+")) {
+      String rule = line.trim();
+      if (rule.isEmpty()) continue;
+      if (rule.startsWith("-:")) return new S3ArtifactPathRules(Collections.<Rule>emptyList());
+      if (rule.startsWith("+:")) rule = rule.substring(2).trim();
+
+      final int arrow = rule.indexOf("=>");
+      final String source = (arrow < 0 ? rule : rule.substring(0, arrow)).trim().replace('\\', '/');
+      final String target = arrow < 0 ? "" : rule.substring(arrow + 2).trim().replace('\\', '/');
+      if (source.isEmpty() || source.contains("!") || target.contains("!") || isArchive(target) || new File(source).isAbsolute()) continue;
+      rules.add(new Rule(source, target));
+    }
+    return new S3ArtifactPathRules(rules);
+  }
+
+  boolean isEmpty() {
+    return myRules.isEmpty();
+  }
+
+  /**
+   * @return target directories by the matching files
+   */
+  @NotNull
+  Map<File, String> collect(@NotNull final File checkoutDirectory) {
+    final Map<File, String> result = new HashMap<File, String>();
+    for (Rule rule : myRules) {
+      rule.collect(checkoutDirectory, result);
+    }
+    return result;
+  }
+
+  private static boolean isArchive(@NotNull final String target) {
+    final String lowerCase = target.toLowerCase(Locale.ENGLISH);
+    for (String extension : ARCHIVE_EXTENSIONS) {
+      if (lowerCase.endsWith(extension)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * A path rule: the files under the root are published to the target keeping their path relative to the root.
+   */
+  private static final class Rule {
+    private final String myRoot;
+    private final Pattern myPattern;
+    private final String myTarget;
+
+    private Rule(@NotNull final String source, @NotNull final String target) {
+      myTarget = trimSlashes(target);
+      int wildcard = source.length();
+      for (int i = 0; i < source.length(); i++) {
+        if (source.charAt(i) == '*' || source.charAt(i) == '?') {
+          wildcard = i;
+          break;
+        }
+      }
+      if (wildcard == source.length()) {
+        myRoot = trimSlashes(source);
+        myPattern = Pattern.compile(Pattern.quote(myRoot) + "(/.*)?");
+      } else {
+        myRoot = trimSlashes(source.substring(0, source.lastIndexOf('/', wildcard) + 1));
+        myPattern = Pattern.compile(toRegex(trimSlashes(source)));
+      }
+    }
+
+    private void collect(@NotNull final File checkoutDirectory, @NotNull final Map<File, String> result) {
+      final File root = myRoot.isEmpty() ? checkoutDirectory : new File(checkoutDirectory, myRoot);
+      if (root.isFile()) {
+        result.put(root, myTarget);
+      } else {
+        collect(root, myRoot, "", result);
+      }
+    }
+
+    private void collect(@NotNull final File directory, @NotNull final String path, @NotNull final String relativePath, @NotNull final Map<File, String> result) {
+      final File[] children = directory.listFiles();
+      if (children == null) return;
+      for (File child : children) {
+        final String childPath = path.isEmpty() ? child.getName() : path + "/" + child.getName();
+        final String childRelativePath = relativePath.isEmpty() ? child.getName() : relativePath + "/" + child.getName();
+        if (child.isDirectory()) {
+          collect(child, childPath, childRelativePath, result);
+        } else if (myPattern.matcher(childPath).matches()) {
+          result.put(child, myTarget.isEmpty() ? relativePath : (relativePath.isEmpty() ? myTarget : myTarget + "/" + relativePath));
+        }
+      }
+    }
+
+    @NotNull
+    private static String trimSlashes(@NotNull final String path) {
+      int start = 0;
+      int end = path.length();
+      while (start < end && path.charAt(start) == '/') start++;
+      while (end > start && path.charAt(end - 1) == '/') end--;
+      return path.substring(start, end);
+    }
+
+    @NotNull
+    private static String toRegex(@NotNull final String pattern) {
+      final StringBuilder result = new StringBuilder();
+      int i = 0;
+      while (i < pattern.length()) {
+        final char c = pattern.charAt(i);
+        if (pattern.startsWith("**/", i)) {
+          result.append("(.*/)?");
+          i += 3;
+        } else if (pattern.startsWith("**", i)) {
+          result.append(".*");
+          i += 2;
+        } else if (c == '*') {
+          result.append("[^/]*");
+          i++;
+        } else if (c == '?') {
+          result.append("[^/]");
+          i++;
+        } else {
+          result.append(Pattern.quote(String.valueOf(c)));
+          i++;
+        }
+      }
+      return result.toString();
+    }
+  }
+}
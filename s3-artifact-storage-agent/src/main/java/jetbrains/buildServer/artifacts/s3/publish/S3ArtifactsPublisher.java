@@ -21,22 +21,37 @@ import jetbrains.buildServer.ArtifactsConstants;
 import jetbrains.buildServer.agent.*;
 import jetbrains.buildServer.agent.artifacts.AgentArtifactHelper;
 import jetbrains.buildServer.artifacts.ArtifactDataInstance;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactIndex;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactPacks;
+import jetbrains.buildServer.artifacts.s3.S3ContentAddressedArtifacts;
+import jetbrains.buildServer.artifacts.s3.S3TokenBucket;
 import jetbrains.buildServer.artifacts.s3.S3Util;
 import jetbrains.buildServer.log.LogUtil;
 import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedThreadFactory;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.filters.Filter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import static jetbrains.buildServer.artifacts.s3.S3Constants.GZIP_CONTENT_ENCODING;
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_CONTENT_ADDRESSED_ATTR;
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_CONTENT_ENCODING_ATTR;
 import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_PATH_PREFIX_ATTR;
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_SHA256_ATTR;
 import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_STORAGE_TYPE;
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_UNCLAIMED_OBJECTS_ATTR;
 
 public class S3ArtifactsPublisher implements ArtifactsPublisher {
 
@@ -48,7 +63,23 @@ public class S3ArtifactsPublisher implements ArtifactsPublisher {
   private final BuildAgentConfiguration myBuildAgentConfiguration;
 
   private final List<ArtifactDataInstance> myArtifacts = new ArrayList<ArtifactDataInstance>();
+  private final Map<String, String> myPackedArtifactProperties = new HashMap<String, String>();
+  private final Map<String, String> myContentAddressedObjectKeys = new HashMap<String, String>();
+  private final Map<String, String> myContentEncodings = new HashMap<String, String>();
+  private final Map<String, String> myChecksums = new ConcurrentHashMap<String, String>();
+  private final Set<String> myUnclaimedPaths = new TreeSet<String>();
   private S3FileUploader myFileUploader;
+  private S3UploadScheduler myUploadScheduler;
+  private S3ArtifactCompressor myCompressor;
+  private S3UploadJournal myJournal;
+  private S3TokenBucket myAgentBandwidth;
+  private S3UploadThrottle myThrottle;
+  private S3ArtifactPacker myPacker;
+  private S3EagerArtifactsUploader myEagerUploader;
+  private final ScheduledExecutorService myArtifactListExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("S3 artifacts list publishing"));
+  private ScheduledFuture<?> myArtifactListFlush;
+  private boolean myArtifactListChanged;
+  private long myArtifactListPublishTime;
 
   public S3ArtifactsPublisher(@NotNull final AgentArtifactHelper helper,
                               @NotNull final EventDispatcher<AgentLifeCycleListener> dispatcher,
@@ -60,14 +91,59 @@ public class S3ArtifactsPublisher implements ArtifactsPublisher {
     dispatcher.addListener(new AgentLifeCycleAdapter() {
       @Override
       public void buildStarted(@NotNull AgentRunningBuild runningBuild) {
+        cancelArtifactsListFlush();
+        stopEagerUpload();
+        shutdownUploadScheduler();
+        closeJournal(false);
         myFileUploader = null;
+        myPacker = null;
         myArtifacts.clear();
+        myPackedArtifactProperties.clear();
+        myContentAddressedObjectKeys.clear();
+        myContentEncodings.clear();
+        myChecksums.clear();
+        myUnclaimedPaths.clear();
+        myArtifactListChanged = false;
+        myArtifactListPublishTime = 0;
+        startEagerUpload(runningBuild);
+      }
+
+      @Override
+      public void beforeBuildFinish(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildFinishedStatus) {
+        if (myEagerUploader != null) {
+          myEagerUploader.stop();
+        }
+      }
+
+      @Override
+      public void afterAtrifactsPublished(@NotNull AgentRunningBuild runningBuild, @NotNull BuildFinishedStatus status) {
+        recordUnclaimedUploads(runningBuild);
+        flushArtifactsList(runningBuild);
+      }
+
+      @Override
+      public void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+        cancelArtifactsListFlush();
+        flushArtifactsList(build);
+        stopEagerUpload();
+        shutdownUploadScheduler();
+        closeJournal(true);
+      }
+
+      @Override
+      public void agentShutdown() {
+        cancelArtifactsListFlush();
+        myArtifactListExecutor.shutdownNow();
+        stopEagerUpload();
+        shutdownUploadScheduler();
+        // the journal is kept to resume the uploads after the restart
+        closeJournal(false);
       }
     });
   }
 
   @Override
-  public int publishFiles(@NotNull final Map<File, String> map) throws ArtifactPublishingFailedException {
+  public synchronized int publishFiles(@NotNull final Map<File, String> map) throws ArtifactPublishingFailedException {
     Map<File, String> filteredMap = CollectionsUtil.filterMapByValues(map, new Filter<String>() {
       @Override
       public boolean accept(@NotNull String s) {
@@ -79,13 +155,181 @@ public class S3ArtifactsPublisher implements ArtifactsPublisher {
       final AgentRunningBuild build = myTracker.getCurrentBuild();
       final String pathPrefix = getPathPrefix(build);
       final S3FileUploader fileUploader = getFileUploader(build);
-      myArtifacts.addAll(fileUploader.publishFiles(build, pathPrefix, filteredMap));
-      publishArtifactsList(build);
+      final S3UploadThrottle throttle = myThrottle;
+      final long bytesSent = throttle != null ? throttle.getBytesSent() : 0;
+      final long startTime = System.currentTimeMillis();
+      final Map<File, String> filesToUpload = new HashMap<File, String>(filteredMap);
+      final List<S3ArtifactPacker.Pack> packs = packSmallFiles(build, filesToUpload);
+      final Map<File, String> contentAddressedFiles = selectContentAddressedFiles(build, filesToUpload, packs);
+      try {
+        if (!contentAddressedFiles.isEmpty()) {
+          myArtifacts.addAll(new S3ContentAddressedUploader(myUploadScheduler)
+                               .publishFiles(build, fileUploader, pathPrefix, contentAddressedFiles, myContentAddressedObjectKeys, myChecksums));
+        }
+        final Map<File, String> plainFiles = new HashMap<File, String>(filesToUpload);
+        if (myEagerUploader != null) {
+          myArtifacts.addAll(myEagerUploader.takeUploaded(filesToUpload));
+        }
+        final List<ArtifactDataInstance> uploaded = new ArrayList<ArtifactDataInstance>();
+        if (myJournal != null && !filesToUpload.isEmpty()) {
+          uploaded.addAll(myJournal.takeUploaded(pathPrefix, filesToUpload));
+        }
+        if (!filesToUpload.isEmpty() && S3Util.isSkipUnchangedEnabled(build.getSharedConfigParameters())) {
+          uploaded.addAll(new S3UnchangedArtifactsFilter(myUploadScheduler).takeUnchanged(build, pathPrefix, filesToUpload, myChecksums));
+        }
+        if (!filesToUpload.isEmpty()) {
+          uploaded.addAll(fileUploader.publishFiles(build, pathPrefix, filesToUpload));
+        }
+        for (ArtifactDataInstance artifact : uploaded) {
+          if (!S3ArtifactPacks.isPackPath(artifact.getPath())) {
+            myArtifacts.add(artifact);
+          }
+        }
+        for (S3ArtifactPacker.Pack pack : packs) {
+          myArtifacts.addAll(pack.getArtifacts());
+          myPackedArtifactProperties.putAll(pack.getProperties());
+        }
+        if (myCompressor != null) {
+          for (Map.Entry<File, String> entry : plainFiles.entrySet()) {
+            final String artifactPath = S3Util.normalizeArtifactPath(entry.getValue(), entry.getKey());
+            if (S3ArtifactPacks.isPackPath(artifactPath)) continue;
+            if (myCompressor.isCompressed(entry.getKey())) {
+              myContentEncodings.put(artifactPath, GZIP_CONTENT_ENCODING);
+            } else {
+              myContentEncodings.remove(artifactPath);
+            }
+          }
+        }
+      } finally {
+        for (S3ArtifactPacker.Pack pack : packs) {
+          FileUtil.delete(pack.getFile());
+        }
+      }
+      if (throttle != null) {
+        reportUploadRate(build, throttle, throttle.getBytesSent() - bytesSent, System.currentTimeMillis() - startTime);
+      }
+      myArtifactListChanged = true;
+      final long delay = myArtifactListPublishTime + S3Util.getArtifactListPublishIntervalSec(build.getSharedConfigParameters()) * 1000L - System.currentTimeMillis();
+      if (delay <= 0) {
+        flushArtifactsList(build);
+      } else {
+        scheduleArtifactsListFlush(build, delay);
+      }
     }
 
     return filteredMap.size();
   }
 
+  private void startEagerUpload(@NotNull final AgentRunningBuild build) {
+    final Map<String, String> configParameters = build.getSharedConfigParameters();
+    if (!S3Util.isEagerUploadEnabled(configParameters)) return;
+
+    final boolean packing = S3Util.isPackingEnabled(configParameters);
+    final long packFileThreshold = S3Util.getPackFileThreshold(configParameters);
+    final boolean contentAddressing = S3Util.isContentAddressingEnabled(configParameters);
+    final long contentAddressedFileThreshold = S3Util.getContentAddressedFileThreshold(configParameters);
+    myEagerUploader = new S3EagerArtifactsUploader(build, getFileUploader(build), getPathPrefix(build), new Filter<File>() {
+      @Override
+      public boolean accept(@NotNull final File file) {
+        // packed and content-addressed files are stored differently, they are uploaded at the end as usual
+        final long length = file.length();
+        return !(packing && length < packFileThreshold) && !(contentAddressing && length >= contentAddressedFileThreshold);
+      }
+    });
+    myEagerUploader.start();
+  }
+
+  /**
+   * Files uploaded in advance and not published at the end, e.g. deleted before the build finish, are listed
+   * in the artifact list, so the cleanup removes their objects together with the rest of the build artifacts.
+   */
+  private synchronized void recordUnclaimedUploads(@NotNull final AgentRunningBuild build) {
+    if (myEagerUploader == null) return;
+    final Set<String> plainPaths = new HashSet<String>();
+    for (ArtifactDataInstance artifact : myArtifacts) {
+      plainPaths.add(artifact.getPath());
+    }
+    for (List<String> packedPaths : S3ArtifactPacks.getPackedArtifacts(myPackedArtifactProperties).values()) {
+      plainPaths.removeAll(packedPaths);
+    }
+    plainPaths.removeAll(myContentAddressedObjectKeys.keySet());
+    final Collection<String> unclaimedPaths = myEagerUploader.getUnclaimedPaths(plainPaths);
+    if (unclaimedPaths.isEmpty() || !myUnclaimedPaths.addAll(unclaimedPaths)) return;
+    LOG.info(String.format("%d artifacts of build %s uploaded in advance were not published, their objects are left to the cleanup",
+                           unclaimedPaths.size(), build.describe(false)));
+    myArtifactListChanged = true;
+  }
+
+  private void stopEagerUpload() {
+    if (myEagerUploader != null) {
+      myEagerUploader.stop();
+      myEagerUploader = null;
+    }
+  }
+
+  /**
+   * Replaces files smaller than the threshold with packs when packing is enabled for the build.
+   */
+  @NotNull
+  private List<S3ArtifactPacker.Pack> packSmallFiles(@NotNull final AgentRunningBuild build,
+                                                     @NotNull final Map<File, String> filesToUpload) throws ArtifactPublishingFailedException {
+    final Map<String, String> configParameters = build.getSharedConfigParameters();
+    if (!S3Util.isPackingEnabled(configParameters)) {
+      return Collections.emptyList();
+    }
+    final long threshold = S3Util.getPackFileThreshold(configParameters);
+    final Map<File, String> smallFiles = new LinkedHashMap<File, String>();
+    for (Map.Entry<File, String> entry : filesToUpload.entrySet()) {
+      if (entry.getKey().length() < threshold) {
+        smallFiles.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (smallFiles.size() < 2) {
+      return Collections.emptyList();
+    }
+
+    if (myPacker == null) {
+      myPacker = new S3ArtifactPacker(new File(build.getBuildTempDirectory(), "s3-packs"), S3Util.getPackSize(configParameters));
+    }
+    final List<S3ArtifactPacker.Pack> packs;
+    try {
+      packs = myPacker.pack(smallFiles);
+    } catch (IOException e) {
+      throw new ArtifactPublishingFailedException("Failed to pack small artifacts: " + e.getMessage(), false, e);
+    }
+    filesToUpload.keySet().removeAll(smallFiles.keySet());
+    for (S3ArtifactPacker.Pack pack : packs) {
+      filesToUpload.put(pack.getFile(), S3ArtifactPacks.PACKS_PATH);
+    }
+    return packs;
+  }
+
+  /**
+   * Moves files which should be stored by content out of the files to upload when content addressing is enabled for the build.
+   */
+  @NotNull
+  private Map<File, String> selectContentAddressedFiles(@NotNull final AgentRunningBuild build,
+                                                       @NotNull final Map<File, String> filesToUpload,
+                                                       @NotNull final List<S3ArtifactPacker.Pack> packs) {
+    final Map<String, String> configParameters = build.getSharedConfigParameters();
+    if (!S3Util.isContentAddressingEnabled(configParameters)) {
+      return Collections.emptyMap();
+    }
+    final Set<File> packFiles = new HashSet<File>();
+    for (S3ArtifactPacker.Pack pack : packs) {
+      packFiles.add(pack.getFile());
+    }
+    final long threshold = S3Util.getContentAddressedFileThreshold(configParameters);
+    final Map<File, String> result = new HashMap<File, String>();
+    for (Map.Entry<File, String> entry : filesToUpload.entrySet()) {
+      if (entry.getKey().length() >= threshold && !packFiles.contains(entry.getKey())) {
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+    filesToUpload.keySet().removeAll(result.keySet());
+    return result;
+  }
+
   @Override
   public boolean isEnabled() {
     return true;
@@ -97,11 +341,73 @@ public class S3ArtifactsPublisher implements ArtifactsPublisher {
     return S3_STORAGE_TYPE;
   }
 
+  /**
+   * Changes made within the publish interval are sent when it ends, even if the build publishes nothing after that.
+   */
+  private void scheduleArtifactsListFlush(@NotNull final AgentRunningBuild build, final long delay) {
+    if (myArtifactListFlush != null && !myArtifactListFlush.isDone()) return;
+    myArtifactListFlush = myArtifactListExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        flushArtifactsList(build);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void cancelArtifactsListFlush() {
+    if (myArtifactListFlush != null) {
+      myArtifactListFlush.cancel(false);
+      myArtifactListFlush = null;
+    }
+  }
+
+  /**
+   * The helper accepts only the whole list, so during the build it is sent at most once per the publish interval,
+   * the last changes are sent after all artifacts are published.
+   */
+  private synchronized void flushArtifactsList(@NotNull AgentRunningBuild build) {
+    if (!myArtifactListChanged) return;
+    myArtifactListChanged = false;
+    myArtifactListPublishTime = System.currentTimeMillis();
+    publishArtifactsList(build);
+  }
+
+  /**
+   * The file uploader records the checksums of every object it uploads, packs and content-addressed objects included,
+   * only the checksums of the published artifacts belong to the artifact list.
+   */
+  @NotNull
+  private Map<String, String> getArtifactChecksums() {
+    final Map<String, String> result = new HashMap<String, String>();
+    for (ArtifactDataInstance artifact : myArtifacts) {
+      final String checksum = myChecksums.get(artifact.getPath());
+      if (checksum != null) {
+        result.put(artifact.getPath(), checksum);
+      }
+    }
+    return result;
+  }
+
   private void publishArtifactsList(AgentRunningBuild build) {
-    if (!myArtifacts.isEmpty()) {
+    if (!myArtifacts.isEmpty() || !myUnclaimedPaths.isEmpty()) {
       final String pathPrefix = getPathPrefix(build);
       try {
-        myHelper.publishArtifactList(myArtifacts, CollectionsUtil.asMap(S3_PATH_PREFIX_ATTR, pathPrefix));
+        final Map<String, String> commonProperties = new HashMap<String, String>(myPackedArtifactProperties);
+        if (!myContentAddressedObjectKeys.isEmpty()) {
+          commonProperties.put(S3_CONTENT_ADDRESSED_ATTR, S3ContentAddressedArtifacts.encode(myContentAddressedObjectKeys));
+        }
+        if (!myContentEncodings.isEmpty()) {
+          commonProperties.put(S3_CONTENT_ENCODING_ATTR, S3ArtifactIndex.encode(myContentEncodings));
+        }
+        final Map<String, String> checksums = getArtifactChecksums();
+        if (!checksums.isEmpty()) {
+          commonProperties.put(S3_SHA256_ATTR, S3ArtifactIndex.encode(checksums));
+        }
+        if (!myUnclaimedPaths.isEmpty()) {
+          commonProperties.put(S3_UNCLAIMED_OBJECTS_ATTR, StringUtil.join("\n", myUnclaimedPaths));
+        }
+        commonProperties.put(S3_PATH_PREFIX_ATTR, pathPrefix);
+        myHelper.publishArtifactList(myArtifacts, commonProperties);
       } catch (IOException e) {
         build.getBuildLogger().error(ERROR_PUBLISHING_ARTIFACTS_LIST + ": " + e.getMessage());
         LOG.warnAndDebugDetails(ERROR_PUBLISHING_ARTIFACTS_LIST + "for build " + LogUtil.describe(build), e);
@@ -121,12 +427,61 @@ public class S3ArtifactsPublisher implements ArtifactsPublisher {
   @NotNull
   private S3FileUploader getFileUploader(@NotNull final AgentRunningBuild build) {
     if (myFileUploader == null) {
+      myUploadScheduler = S3UploadScheduler.create(build);
+      myCompressor = S3ArtifactCompressor.create(build);
+      if (myJournal == null) {
+        myJournal = S3UploadJournal.open(myBuildAgentConfiguration, build);
+      }
+      myThrottle = S3UploadThrottle.create(getAgentBandwidth(), build);
       if (S3Util.usePreSignedUrls(build.getArtifactStorageSettings())) {
-        myFileUploader = new S3SignedUrlFileUploader();
+        myFileUploader = new S3SignedUrlFileUploader(myUploadScheduler, myCompressor, myChecksums, myJournal, myThrottle);
       } else {
-        myFileUploader = new S3RegularFileUploader(myBuildAgentConfiguration);
+        myFileUploader = new S3RegularFileUploader(myBuildAgentConfiguration, myUploadScheduler, myCompressor, myJournal, myThrottle);
       }
     }
     return myFileUploader;
   }
+
+  /**
+   * @return bucket shared by the builds of the agent, kept between the builds so the rate holds across them
+   */
+  @Nullable
+  private S3TokenBucket getAgentBandwidth() {
+    final long limit = S3Util.getAgentBandwidthLimit(myBuildAgentConfiguration.getConfigurationParameters());
+    if (limit <= 0) {
+      myAgentBandwidth = null;
+    } else if (myAgentBandwidth == null || myAgentBandwidth.getBytesPerSecond() != limit) {
+      myAgentBandwidth = new S3TokenBucket(limit, System.nanoTime());
+    }
+    return myAgentBandwidth;
+  }
+
+  private static void reportUploadRate(@NotNull final AgentRunningBuild build, @NotNull final S3UploadThrottle throttle, final long bytes, final long durationMs) {
+    if (bytes <= 0) return;
+    final double megabytes = bytes / (1024.0 * 1024);
+    build.getBuildLogger().message(String.format("Uploaded %.1f MB of artifacts at %.1f MB/s, limited to %.1f MB/s",
+                                                 megabytes,
+                                                 megabytes * 1000 / Math.max(1, durationMs),
+                                                 throttle.getBytesPerSecond() / (1024.0 * 1024)));
+  }
+
+  private void closeJournal(final boolean delete) {
+    if (myJournal != null) {
+      if (delete) {
+        myJournal.delete();
+      } else {
+        myJournal.close();
+      }
+      myJournal = null;
+    }
+  }
+
+  private void shutdownUploadScheduler() {
+    if (myUploadScheduler != null) {
+      myUploadScheduler.shutdown();
+      myUploadScheduler = null;
+      myFileUploader = null;
+      myThrottle = null;
+    }
+  }
 }
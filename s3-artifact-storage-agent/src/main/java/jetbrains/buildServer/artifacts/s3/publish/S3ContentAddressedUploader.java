@@ -0,0 +1,174 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.ArtifactPublishingFailedException;
+import jetbrains.buildServer.artifacts.ArtifactDataInstance;
+import jetbrains.buildServer.artifacts.s3.S3ContentAddressedArtifacts;
+import jetbrains.buildServer.artifacts.s3.S3PreSignUrlHelper;
+import jetbrains.buildServer.artifacts.s3.S3Util;
+import jetbrains.buildServer.http.HttpUtil;
+import jetbrains.buildServer.util.Converter;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_CONTENT_ADDRESSED_LOOKUP;
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_MULTIPART_UPLOAD_OPERATION;
+
+/**
+ * Uploads artifacts by content, skipping the ones already stored in the bucket.
+ * <p>
+ * The server registers the build as a user of every digest before telling which of them exist,
+ * so the content can't be removed by a cleanup between the lookup and the artifact list publishing.
+ *
+ * @see S3ContentAddressedArtifacts
+ */
+final class S3ContentAddressedUploader {
+  private static final Logger LOG = Logger.getInstance(S3ContentAddressedUploader.class.getName());
+
+  private final S3UploadScheduler myScheduler;
+
+  S3ContentAddressedUploader(@NotNull final S3UploadScheduler scheduler) {
+    myScheduler = scheduler;
+  }
+
+  /**
+   * @param objectKeysByPath receives keys of the content-addressed objects by artifact path
+   * @param checksums receives SHA-256 by artifact path
+   */
+  @NotNull
+  Collection<ArtifactDataInstance> publishFiles(@NotNull final AgentRunningBuild build,
+                                                @NotNull final S3FileUploader fileUploader,
+                                                @NotNull final String pathPrefix,
+                                                @NotNull final Map<File, String> filesToPublish,
+                                                @NotNull final Map<String, String> objectKeysByPath,
+                                                @NotNull final Map<String, String> checksums) {
+    final Map<File, String> digests = digest(filesToPublish.keySet());
+    final String projectId = S3ContentAddressedArtifacts.getProjectId(pathPrefix);
+    final Map<String, String> existingObjects;
+    try {
+      final Set<String> objectKeys = new HashSet<String>();
+      for (Map.Entry<File, String> entry : digests.entrySet()) {
+        objectKeys.add(S3ContentAddressedArtifacts.getObjectKey(projectId, entry.getValue(), entry.getKey().getName()));
+      }
+      existingObjects = lookup(build, pathPrefix, objectKeys);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to look up stored artifacts of build " + build.describe(false) + ", uploading them without deduplication", e);
+      return fileUploader.publishFiles(build, pathPrefix, filesToPublish);
+    }
+
+    final Map<String, String> objectKeys = new HashMap<String, String>(existingObjects);
+    final Map<File, String> missingFiles = new HashMap<File, String>();
+    for (Map.Entry<File, String> entry : digests.entrySet()) {
+      final String digest = entry.getValue();
+      if (!objectKeys.containsKey(digest)) {
+        final String objectsPrefix = S3ContentAddressedArtifacts.getObjectsPrefix(projectId, digest);
+        objectKeys.put(digest, objectsPrefix + entry.getKey().getName());
+        missingFiles.put(entry.getKey(), objectsPrefix.substring(0, objectsPrefix.length() - 1));
+      }
+    }
+    if (!missingFiles.isEmpty()) {
+      fileUploader.publishFiles(build, "", missingFiles);
+    }
+    LOG.info(String.format("Uploaded %d of %d content-addressed artifacts of build %s, the rest are already stored",
+                           missingFiles.size(), filesToPublish.size(), build.describe(false)));
+
+    final List<ArtifactDataInstance> artifacts = new ArrayList<ArtifactDataInstance>(filesToPublish.size());
+    for (Map.Entry<File, String> entry : filesToPublish.entrySet()) {
+      final File file = entry.getKey();
+      final String artifactPath = S3Util.normalizeArtifactPath(entry.getValue(), file);
+      objectKeysByPath.put(artifactPath, objectKeys.get(digests.get(file)));
+      checksums.put(artifactPath, digests.get(file));
+      artifacts.add(ArtifactDataInstance.create(artifactPath, file.length()));
+    }
+    return artifacts;
+  }
+
+  @NotNull
+  private Map<File, String> digest(@NotNull final Collection<File> files) {
+    final Map<File, String> digests = new ConcurrentHashMap<File, String>();
+    final List<Throwable> errors;
+    try {
+      errors = myScheduler.executeAll(S3UploadScheduler.largestFirst(files), new Converter<Callable<Void>, File>() {
+        @Override
+        public Callable<Void> createFrom(@NotNull final File file) {
+          return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              digests.put(file, S3ContentAddressedArtifacts.digest(file));
+              return null;
+            }
+          };
+        }
+      });
+    } catch (InterruptedException e) {
+      throw new ArtifactPublishingFailedException("Interrupted while computing artifact digests", false, e);
+    }
+    if (!errors.isEmpty()) {
+      throw new ArtifactPublishingFailedException("Failed to compute artifact digest: " + errors.get(0).getMessage(), false, errors.get(0));
+    }
+    return digests;
+  }
+
+  /**
+   * @return keys of the already stored objects by digest
+   */
+  @NotNull
+  private static Map<String, String> lookup(@NotNull final AgentRunningBuild build,
+                                            @NotNull final String pathPrefix,
+                                            @NotNull final Collection<String> objectKeys) throws IOException {
+    final HttpClient httpClient;
+    try {
+      httpClient = HttpUtil.createHttpClient(build.getAgentConfiguration().getServerConnectionTimeout(),
+                                             new URL(S3SignedUrlFileUploader.targetUrl(build)),
+                                             new UsernamePasswordCredentials(build.getAccessUser(), build.getAccessCode()));
+    } catch (MalformedURLException e) {
+      throw new IOException(e);
+    }
+    final PostMethod post = new PostMethod(S3SignedUrlFileUploader.targetUrl(build));
+    post.addRequestHeader("User-Agent", "TeamCity Agent");
+    post.setQueryString(new NameValuePair[]{new NameValuePair(S3_MULTIPART_UPLOAD_OPERATION, S3_CONTENT_ADDRESSED_LOOKUP)});
+    post.setRequestEntity(new StringRequestEntity(S3PreSignUrlHelper.writeS3ObjectKeys(objectKeys), "application/xml", "UTF-8"));
+    post.setDoAuthentication(true);
+    final String responseBody;
+    try {
+      responseBody = HttpClientCloseUtil.executeReleasingConnectionAndReadResponseBody(httpClient, post);
+    } catch (HttpClientCloseUtil.HttpErrorCodeException e) {
+      throw new IOException("Response code " + e.getResponseCode(), e);
+    }
+    final Map<String, String> result = new HashMap<String, String>();
+    for (String objectKey : S3PreSignUrlHelper.readS3ObjectKeys(responseBody)) {
+      if (S3ContentAddressedArtifacts.isProjectObject(objectKey, pathPrefix)) {
+        result.put(S3ContentAddressedArtifacts.getDigest(objectKey), objectKey);
+      }
+    }
+    return result;
+  }
+}
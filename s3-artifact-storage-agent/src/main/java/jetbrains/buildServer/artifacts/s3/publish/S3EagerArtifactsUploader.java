@@ -0,0 +1,202 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.ArtifactDataInstance;
+import jetbrains.buildServer.artifacts.s3.S3Util;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import jetbrains.buildServer.util.filters.Filter;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Uploads files matching the artifact paths of the build while the build is still running.
+ * <p>
+ * A file is uploaded once its size and modification time stay the same for a poll interval.
+ * The artifacts are still published by the regular publishing: it takes the already uploaded files
+ * which were not modified since and uploads the rest as usual.
+ * <p>
+ * Only plain path rules are watched, see {@link S3ArtifactPathRules}.
+ */
+final class S3EagerArtifactsUploader {
+  private static final Logger LOG = Logger.getInstance(S3EagerArtifactsUploader.class.getName());
+
+  private final AgentRunningBuild myBuild;
+  private final S3FileUploader myFileUploader;
+  private final String myPathPrefix;
+  private final Filter<File> myFilter;
+  private final S3ArtifactPathRules myRules;
+  private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("S3 eager artifacts upload"));
+  private final Map<File, FileState> myCandidates = new HashMap<File, FileState>();
+  private final ConcurrentMap<File, UploadedFile> myUploaded = new ConcurrentHashMap<File, UploadedFile>();
+
+  S3EagerArtifactsUploader(@NotNull final AgentRunningBuild build,
+                           @NotNull final S3FileUploader fileUploader,
+                           @NotNull final String pathPrefix,
+                           @NotNull final Filter<File> filter) {
+    myBuild = build;
+    myFileUploader = fileUploader;
+    myPathPrefix = pathPrefix;
+    myFilter = filter;
+    myRules = S3ArtifactPathRules.parse(build.getArtifactsPaths());
+  }
+
+  void start() {
+    if (myRules.isEmpty()) return;
+    final int interval = S3Util.getEagerUploadPollIntervalSec(myBuild.getSharedConfigParameters());
+    myExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          poll();
+        } catch (Throwable e) {
+          LOG.warnAndDebugDetails("Failed to upload artifacts of build " + myBuild.describe(false) + " in advance", e);
+        }
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops watching and waits for the upload in progress.
+   */
+  void stop() {
+    myExecutor.shutdown();
+    try {
+      myExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      myExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Removes the files uploaded in advance and not modified since from the files to publish.
+   *
+   * @return artifacts of the removed files
+   */
+  @NotNull
+  Collection<ArtifactDataInstance> takeUploaded(@NotNull final Map<File, String> filesToPublish) {
+    final List<ArtifactDataInstance> result = new ArrayList<ArtifactDataInstance>();
+    final Iterator<Map.Entry<File, String>> iterator = filesToPublish.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final Map.Entry<File, String> entry = iterator.next();
+      final UploadedFile uploaded = myUploaded.get(entry.getKey());
+      if (uploaded != null
+          && uploaded.myArtifact.getPath().equals(S3Util.normalizeArtifactPath(entry.getValue(), entry.getKey()))
+          && uploaded.myState.equals(new FileState(entry.getKey()))) {
+        result.add(uploaded.myArtifact);
+        iterator.remove();
+      }
+    }
+    if (!result.isEmpty()) {
+      LOG.info(String.format("%d artifacts of build %s were uploaded in advance", result.size(), myBuild.describe(false)));
+    }
+    return result;
+  }
+
+  /**
+   * @param plainPaths paths of the artifacts published as objects of their own
+   * @return artifact paths of the files uploaded in advance whose objects are not used by the published artifacts
+   */
+  @NotNull
+  Collection<String> getUnclaimedPaths(@NotNull final Set<String> plainPaths) {
+    final Set<String> result = new TreeSet<String>();
+    for (UploadedFile uploaded : myUploaded.values()) {
+      if (!plainPaths.contains(uploaded.myArtifact.getPath())) {
+        result.add(uploaded.myArtifact.getPath());
+      }
+    }
+    return result;
+  }
+
+  private void poll() {
+    final Map<File, String> matched = myRules.collect(myBuild.getCheckoutDirectory());
+
+    final Map<File, String> stableFiles = new HashMap<File, String>();
+    final Map<File, FileState> candidates = new HashMap<File, FileState>();
+    for (Map.Entry<File, String> entry : matched.entrySet()) {
+      final File file = entry.getKey();
+      if (!myFilter.accept(file)) continue;
+      final FileState state = new FileState(file);
+      final UploadedFile uploaded = myUploaded.get(file);
+      if (uploaded != null && uploaded.myState.equals(state)) continue;
+      if (state.equals(myCandidates.get(file))) {
+        stableFiles.put(file, entry.getValue());
+      } else {
+        candidates.put(file, state);
+      }
+    }
+    myCandidates.clear();
+    myCandidates.putAll(candidates);
+    if (stableFiles.isEmpty()) return;
+
+    final Map<String, FileState> states = new HashMap<String, FileState>();
+    final Map<String, File> files = new HashMap<String, File>();
+    for (Map.Entry<File, String> entry : stableFiles.entrySet()) {
+      final String artifactPath = S3Util.normalizeArtifactPath(entry.getValue(), entry.getKey());
+      states.put(artifactPath, new FileState(entry.getKey()));
+      files.put(artifactPath, entry.getKey());
+    }
+    for (ArtifactDataInstance artifact : myFileUploader.publishFiles(myBuild, myPathPrefix, stableFiles)) {
+      final File file = files.get(artifact.getPath());
+      if (file != null) {
+        myUploaded.put(file, new UploadedFile(artifact, states.get(artifact.getPath())));
+      }
+    }
+  }
+
+  private static final class FileState {
+    private final long myLength;
+    private final long myLastModified;
+
+    private FileState(@NotNull final File file) {
+      myLength = file.length();
+      myLastModified = file.lastModified();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (!(o instanceof FileState)) return false;
+      final FileState other = (FileState)o;
+      return myLength == other.myLength && myLastModified == other.myLastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (int)(myLength ^ (myLength >>> 32)) + (int)(myLastModified ^ (myLastModified >>> 32));
+    }
+  }
+
+  private static final class UploadedFile {
+    private final ArtifactDataInstance myArtifact;
+    private final FileState myState;
+
+    private UploadedFile(@NotNull final ArtifactDataInstance artifact, @NotNull final FileState state) {
+      myArtifact = artifact;
+      myState = state;
+    }
+  }
+}
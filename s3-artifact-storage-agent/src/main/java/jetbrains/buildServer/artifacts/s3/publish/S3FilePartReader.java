@@ -0,0 +1,65 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads regions of a file with positional reads, which don't move a shared file pointer,
+ * so the parts of a multipart upload read the file opened once and in parallel.
+ * <p>
+ * Interrupting a thread blocked in a read closes the reader for all parts, which is fine
+ * since the parts are interrupted only when the whole upload is cancelled.
+ */
+final class S3FilePartReader implements Closeable {
+  private final File myFile;
+  private final FileInputStream myInput;
+  private final FileChannel myChannel;
+
+  S3FilePartReader(@NotNull final File file) throws IOException {
+    myFile = file;
+    myInput = new FileInputStream(file);
+    myChannel = myInput.getChannel();
+  }
+
+  @NotNull
+  File getFile() {
+    return myFile;
+  }
+
+  /**
+   * Fills the remaining space of the buffer with the file content starting at the position.
+   */
+  void read(final long position, @NotNull final ByteBuffer buffer) throws IOException {
+    final int start = buffer.position();
+    while (buffer.hasRemaining()) {
+      final int read = myChannel.read(buffer, position + buffer.position() - start);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of file " + myFile + " at " + (position + buffer.position() - start));
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    FileUtil.close(myInput);
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.artifacts.s3.S3PreSignUrlHelper;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Resolves pre-signed upload URLs in batches of S3 object keys.
+ * <p>
+ * Keys are split into batches in the order uploads are going to be executed. Requesting an URL for a key
+ * triggers the fetch of its batch and schedules the next batch, so the server round-trips run ahead of the upload workers.
+ * Batches are not fetched further ahead since pre-signed URLs are short-living.
+ */
+final class S3PresignedUrlBatchResolver {
+  private static final Logger LOG = Logger.getInstance(S3PresignedUrlBatchResolver.class.getName());
+  private static final long EXPIRATION_SAFETY_MARGIN_MS = 5000;
+
+  private final Fetcher myFetcher;
+  private final List<List<String>> myBatches = new ArrayList<List<String>>();
+  private final Map<String, Integer> myBatchIndexByKey = new HashMap<String, Integer>();
+  private final List<Future<ConcurrentMap<String, URL>>> myBatchFutures;
+  private final ExecutorService myFetchExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("S3 pre-signed URLs prefetch"));
+
+  S3PresignedUrlBatchResolver(@NotNull final Collection<String> s3ObjectKeys, final int batchSize, @NotNull final Fetcher fetcher) {
+    myFetcher = fetcher;
+    List<String> batch = new ArrayList<String>(batchSize);
+    for (String s3ObjectKey : s3ObjectKeys) {
+      if (batch.size() == batchSize) {
+        myBatches.add(batch);
+        batch = new ArrayList<String>(batchSize);
+      }
+      myBatchIndexByKey.put(s3ObjectKey, myBatches.size());
+      batch.add(s3ObjectKey);
+    }
+    if (!batch.isEmpty()) {
+      myBatches.add(batch);
+    }
+    myBatchFutures = new ArrayList<Future<ConcurrentMap<String, URL>>>(Collections.<Future<ConcurrentMap<String, URL>>>nCopies(myBatches.size(), null));
+  }
+
+  /**
+   * Returns the pre-signed upload URL for the key, fetching its batch if needed. Every batched URL is handed out once,
+   * subsequent calls for the same key, as well as calls for keys with an expired batched URL, go to the server for a fresh URL.
+   */
+  @Nullable
+  URL getUploadUrl(@NotNull final String s3ObjectKey) throws IOException {
+    final Integer batchIndex = myBatchIndexByKey.get(s3ObjectKey);
+    if (batchIndex == null) {
+      return refreshUploadUrl(s3ObjectKey);
+    }
+    final Future<ConcurrentMap<String, URL>> batch = requestBatch(batchIndex);
+    requestBatch(batchIndex + 1);
+
+    URL url = null;
+    try {
+      url = batch.get().remove(s3ObjectKey);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while resolving pre-signed upload URL for " + s3ObjectKey);
+    } catch (ExecutionException e) {
+      LOG.infoAndDebugDetails("Failed to resolve pre-signed upload URLs batch, falling back to a single URL request", e.getCause());
+    }
+    if (url == null || isExpired(url)) {
+      return refreshUploadUrl(s3ObjectKey);
+    }
+    return url;
+  }
+
+  @Nullable
+  URL refreshUploadUrl(@NotNull final String s3ObjectKey) throws IOException {
+    return myFetcher.fetch(Collections.singleton(s3ObjectKey)).get(s3ObjectKey);
+  }
+
+  void shutdown() {
+    myFetchExecutor.shutdownNow();
+  }
+
+  @Nullable
+  private synchronized Future<ConcurrentMap<String, URL>> requestBatch(final int batchIndex) {
+    if (batchIndex >= myBatches.size()) return null;
+    Future<ConcurrentMap<String, URL>> future = myBatchFutures.get(batchIndex);
+    if (future == null) {
+      final List<String> keys = myBatches.get(batchIndex);
+      future = myFetchExecutor.submit(new Callable<ConcurrentMap<String, URL>>() {
+        @Override
+        public ConcurrentMap<String, URL> call() throws IOException {
+          return new ConcurrentHashMap<String, URL>(myFetcher.fetch(keys));
+        }
+      });
+      myBatchFutures.set(batchIndex, future);
+    }
+    return future;
+  }
+
+  private static boolean isExpired(@NotNull final URL url) {
+    final Long expirationTime = S3PreSignUrlHelper.getExpirationTime(url);
+    return expirationTime != null && expirationTime - EXPIRATION_SAFETY_MARGIN_MS < System.currentTimeMillis();
+  }
+
+  interface Fetcher {
+    @NotNull
+    Map<String, URL> fetch(@NotNull Collection<String> s3ObjectKeys) throws IOException;
+  }
+}
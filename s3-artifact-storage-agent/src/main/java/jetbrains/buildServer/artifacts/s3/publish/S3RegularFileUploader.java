@@ -17,19 +17,31 @@
 package jetbrains.buildServer.artifacts.s3.publish;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.event.SyncProgressListener;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartSummary;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
 import com.intellij.openapi.diagnostic.Logger;
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import jetbrains.buildServer.agent.AgentRunningBuild;
 import jetbrains.buildServer.agent.ArtifactPublishingFailedException;
 import jetbrains.buildServer.agent.BuildAgentConfiguration;
@@ -41,24 +53,39 @@ import jetbrains.buildServer.artifacts.s3.retry.LoggingRetrier;
 import jetbrains.buildServer.artifacts.s3.retry.Retrier;
 import jetbrains.buildServer.artifacts.s3.retry.RetrierExponentialDelay;
 import jetbrains.buildServer.artifacts.s3.retry.RetrierImpl;
-import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.Converter;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.amazon.AWSException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import static jetbrains.buildServer.artifacts.s3.S3Constants.GZIP_CONTENT_ENCODING;
 import static jetbrains.buildServer.artifacts.s3.S3Util.getBucketName;
 
 public class S3RegularFileUploader implements S3FileUploader {
 
   private static final Logger LOG = Logger.getInstance(S3RegularFileUploader.class.getName());
+  private static final long MIN_THROUGHPUT_SAMPLE_BYTES = 64L * 1024 * 1024;
+  private static volatile long ourBytesPerSecond;
 
   private boolean isDestinationPrepared = false;
   private BuildAgentConfiguration myBuildAgentConfiguration;
+  private final S3UploadScheduler myScheduler;
+  private final S3ArtifactCompressor myCompressor;
+  private final S3UploadJournal myJournal;
+  private final S3UploadThrottle myThrottle;
 
-  public S3RegularFileUploader(@NotNull final BuildAgentConfiguration buildAgentConfiguration) {
+  public S3RegularFileUploader(@NotNull final BuildAgentConfiguration buildAgentConfiguration,
+                               @NotNull final S3UploadScheduler scheduler,
+                               @Nullable final S3ArtifactCompressor compressor,
+                               @Nullable final S3UploadJournal journal,
+                               @Nullable final S3UploadThrottle throttle) {
     myBuildAgentConfiguration = buildAgentConfiguration;
+    myScheduler = scheduler;
+    myCompressor = compressor;
+    myJournal = journal;
+    myThrottle = throttle;
   }
 
   @NotNull
@@ -76,51 +103,100 @@ public class S3RegularFileUploader implements S3FileUploader {
 
     try {
       prepareDestination(bucketName, params);
-      final List<ArtifactDataInstance> artifacts = new ArrayList<ArtifactDataInstance>();
+      final Collection<ArtifactDataInstance> artifacts = new ConcurrentLinkedQueue<ArtifactDataInstance>();
+      final Collection<Upload> uploads = new ConcurrentLinkedQueue<Upload>();
       final Retrier retrier = new RetrierImpl(numberOfRetries)
         .registerListener(new LoggingRetrier(LOG))
         .registerListener(new RetrierExponentialDelay(retryDelay));
-      S3Util.withTransferManager(params, new jetbrains.buildServer.util.amazon.S3Util.WithTransferManager<Upload>() {
+      final Map<File, Long> files = S3UploadScheduler.largestFirst(filesToPublish.keySet());
+      final long startTime = System.currentTimeMillis();
+      S3Util.withTransferManagers(params, ourBytesPerSecond, new S3Util.WithTransferManagers<Upload>() {
         @NotNull
         @Override
-        public Collection<Upload> run(@NotNull final TransferManager transferManager) {
-          return CollectionsUtil.convertAndFilterNulls(filesToPublish.entrySet(), new Converter<Upload, Map.Entry<File, String>>() {
-            @Override
-            public Upload createFrom(@NotNull final Map.Entry<File, String> entry) {
-              return retrier.execute(new Callable<Upload>() {
-                @Override
-                public String toString() {
-                  final String filename = entry.getKey() != null ? entry.getKey().getName() : "null";
-                  return "publishing file '" + filename + "'";
-                }
-
-                @Override
-                public Upload call() throws AmazonClientException {
-                  final File file = entry.getKey();
-                  final String path = entry.getValue();
-                  final String artifactPath = S3Util.normalizeArtifactPath(path, file);
-                  final String objectKey = pathPrefix + artifactPath;
-
-                  artifacts.add(ArtifactDataInstance.create(artifactPath, file.length()));
-
-                  final ObjectMetadata metadata = new ObjectMetadata();
-                  metadata.setContentType(S3Util.getContentType(file));
-                  final PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, objectKey, file)
-                    .withCannedAcl(CannedAccessControlList.Private)
-                    .withMetadata(metadata);
-                  final Upload upload = transferManager.upload(putObjectRequest);
-                  try {
-                    upload.waitForUploadResult();
-                  } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+        public Collection<Upload> run(@NotNull final S3Util.TransferManagers transferManagers) {
+          final List<Throwable> errors;
+          try {
+            errors = myScheduler.executeAll(files, new Converter<Callable<Void>, File>() {
+              @Override
+              public Callable<Void> createFrom(@NotNull final File file) {
+                return new Callable<Void>() {
+                  @Override
+                  public Void call() {
+                    uploads.add(retrier.execute(new Callable<Upload>() {
+                      @Override
+                      public String toString() {
+                        return "publishing file '" + file.getName() + "'";
+                      }
+
+                      @Override
+                      public Upload call() throws AmazonClientException {
+                        final String path = filesToPublish.get(file);
+                        final String artifactPath = S3Util.normalizeArtifactPath(path, file);
+                        final String objectKey = pathPrefix + artifactPath;
+
+                        final File compressed;
+                        try {
+                          compressed = myCompressor != null ? myCompressor.compress(file, artifactPath) : null;
+                        } catch (IOException e) {
+                          throw new AmazonClientException("Failed to compress " + file.getName() + ": " + e.getMessage(), e);
+                        }
+                        final ObjectMetadata metadata = new ObjectMetadata();
+                        metadata.setContentType(S3Util.getContentType(file));
+                        if (compressed != null) {
+                          metadata.setContentEncoding(GZIP_CONTENT_ENCODING);
+                        }
+                        final File content = compressed != null ? compressed : file;
+                        final TransferManager transferManager = transferManagers.forFile(content.length());
+                        final PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, objectKey, content)
+                          .withCannedAcl(CannedAccessControlList.Private)
+                          .withMetadata(metadata);
+                        if (myThrottle != null) {
+                          putObjectRequest.setGeneralProgressListener(myThrottle.asProgressListener());
+                        }
+                        // compressed objects are not journaled, their encoding would be lost after the restart
+                        final boolean journaled = myJournal != null && compressed == null;
+                        final Upload upload = journaled ? startJournaledUpload(transferManager, putObjectRequest, file) : transferManager.upload(putObjectRequest);
+                        try {
+                          upload.waitForUploadResult();
+                        } catch (InterruptedException e) {
+                          throw new RuntimeException(e);
+                        } catch (AmazonClientException e) {
+                          if (journaled) {
+                            // the failed multipart upload is aborted by the transfer manager
+                            myJournal.forget(objectKey);
+                          }
+                          throw e;
+                        } finally {
+                          if (compressed != null) {
+                            FileUtil.delete(compressed);
+                          }
+                        }
+                        if (journaled) {
+                          myJournal.objectUploaded(objectKey, file);
+                        }
+                        artifacts.add(ArtifactDataInstance.create(artifactPath, file.length()));
+                        return upload;
+                      }
+                    }));
+                    return null;
                   }
-                  return upload;
-                }
-              });
+                };
+              }
+            });
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          if (!errors.isEmpty()) {
+            for (Throwable error : errors.subList(1, errors.size())) {
+              LOG.warnAndDebugDetails("Failed to upload artifact into bucket " + bucketName, error);
             }
-          });
+            final Throwable error = errors.get(0);
+            throw error instanceof RuntimeException ? (RuntimeException)error : new RuntimeException(error);
+          }
+          return uploads;
         }
       });
+      updateThroughput(artifacts, System.currentTimeMillis() - startTime);
       return artifacts;
     } catch (ArtifactPublishingFailedException t) {
       throw t;
@@ -138,6 +214,85 @@ public class S3RegularFileUploader implements S3FileUploader {
     }
   }
 
+  /**
+   * Resumes the multipart upload of the file left by the previous agent process or starts a new one
+   * recording it in the journal once its first part is being sent.
+   * <p>
+   * The upload is resumed with the public transfer manager API only: the unfinished upload is looked up in S3
+   * and its part size is taken from the first uploaded part.
+   */
+  @NotNull
+  private Upload startJournaledUpload(@NotNull final TransferManager transferManager,
+                                      @NotNull final PutObjectRequest putObjectRequest,
+                                      @NotNull final File file) {
+    final String objectKey = putObjectRequest.getKey();
+    if (myJournal.hasTransfer(objectKey, file)) {
+      try {
+        final PersistableUpload persistableUpload = findMultipartUpload(transferManager, putObjectRequest, file);
+        if (persistableUpload != null) {
+          LOG.info("Resuming upload of " + objectKey + " started before the agent restart");
+          return transferManager.resumeUpload(persistableUpload);
+        }
+      } catch (AmazonClientException e) {
+        LOG.warnAndDebugDetails("Failed to resume upload of " + objectKey + ", starting it over", e);
+      }
+      myJournal.forget(objectKey);
+    }
+    final ProgressListener listener = putObjectRequest.getGeneralProgressListener();
+    final AtomicBoolean journaled = new AtomicBoolean();
+    putObjectRequest.setGeneralProgressListener(new SyncProgressListener() {
+      @Override
+      public void progressChanged(final ProgressEvent progressEvent) {
+        // parts are only sent after the multipart upload is initiated
+        if (progressEvent.getEventType() == ProgressEventType.TRANSFER_PART_STARTED_EVENT && journaled.compareAndSet(false, true)) {
+          myJournal.transferStarted(objectKey, file);
+        }
+        if (listener != null) {
+          listener.progressChanged(progressEvent);
+        }
+      }
+    });
+    return transferManager.upload(putObjectRequest);
+  }
+
+  /**
+   * @return state of the latest unfinished multipart upload of the file or null if it can't be resumed
+   */
+  @Nullable
+  private static PersistableUpload findMultipartUpload(@NotNull final TransferManager transferManager,
+                                                       @NotNull final PutObjectRequest putObjectRequest,
+                                                       @NotNull final File file) {
+    final AmazonS3 client = transferManager.getAmazonS3Client();
+    final String bucketName = putObjectRequest.getBucketName();
+    final String objectKey = putObjectRequest.getKey();
+    MultipartUpload latest = null;
+    final MultipartUploadListing uploads = client.listMultipartUploads(new ListMultipartUploadsRequest(bucketName).withPrefix(objectKey));
+    for (MultipartUpload upload : uploads.getMultipartUploads()) {
+      if (objectKey.equals(upload.getKey()) && (latest == null || upload.getInitiated().after(latest.getInitiated()))) {
+        latest = upload;
+      }
+    }
+    if (latest == null) return null;
+    final List<PartSummary> parts = client.listParts(new ListPartsRequest(bucketName, objectKey, latest.getUploadId()).withMaxParts(1)).getParts();
+    if (parts.isEmpty() || parts.get(0).getPartNumber() != 1) return null;
+    return new PersistableUpload(bucketName, objectKey, file.getAbsolutePath(), latest.getUploadId(),
+                                 parts.get(0).getSize(), transferManager.getConfiguration().getMultipartUploadThreshold());
+  }
+
+  /**
+   * Keeps a moving average of the upload throughput, used to pick the part size in the auto mode.
+   */
+  private static void updateThroughput(@NotNull final Collection<ArtifactDataInstance> artifacts, final long elapsedMs) {
+    long bytes = 0;
+    for (ArtifactDataInstance artifact : artifacts) {
+      bytes += artifact.getSize();
+    }
+    if (bytes < MIN_THROUGHPUT_SAMPLE_BYTES || elapsedMs <= 0) return;
+    final long sample = bytes * 1000 / elapsedMs;
+    final long previous = ourBytesPerSecond;
+    ourBytesPerSecond = previous == 0 ? sample : (previous * 3 + sample) / 4;
+  }
+
   private void prepareDestination(final String bucketName,
                                   final Map<String, String> params) throws Throwable {
     if (isDestinationPrepared) return;
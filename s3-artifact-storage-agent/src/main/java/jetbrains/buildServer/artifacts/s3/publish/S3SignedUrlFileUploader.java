@@ -19,16 +19,17 @@ package jetbrains.buildServer.artifacts.s3.publish;
 import com.intellij.openapi.diagnostic.Logger;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 import jetbrains.buildServer.agent.AgentRunningBuild;
 import jetbrains.buildServer.agent.ArtifactPublishingFailedException;
 import jetbrains.buildServer.artifacts.ArtifactDataInstance;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactChecksums;
 import jetbrains.buildServer.artifacts.s3.S3PreSignUrlHelper;
 import jetbrains.buildServer.artifacts.s3.S3Util;
 import jetbrains.buildServer.artifacts.s3.retry.LoggingRetrier;
@@ -37,14 +38,15 @@ import jetbrains.buildServer.artifacts.s3.retry.RetrierExponentialDelay;
 import jetbrains.buildServer.artifacts.s3.retry.RetrierImpl;
 import jetbrains.buildServer.http.HttpUtil;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
-import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.Converter;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
-import org.apache.commons.httpclient.methods.FileRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
@@ -52,6 +54,7 @@ import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import static jetbrains.buildServer.artifacts.s3.S3ArtifactChecksums.SERVER_SIDE_ENCRYPTION_HEADER;
 import static jetbrains.buildServer.artifacts.s3.S3Constants.ARTEFACTS_S3_UPLOAD_PRESIGN_URLS_HTML;
 
 public class S3SignedUrlFileUploader implements S3FileUploader {
@@ -61,11 +64,49 @@ public class S3SignedUrlFileUploader implements S3FileUploader {
   private static final String HTTP_AUTH = "/httpAuth";
   private static final String APPLICATION_XML = "application/xml";
   private static final String UTF_8 = "UTF-8";
+  private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+  private static final String GZIP = "gzip";
+  private static final String ETAG_HEADER = "ETag";
+  private static final Converter<Map<String, URL>, HttpMethod> PRE_SIGN_URL_MAPPING_READER = new Converter<Map<String, URL>, HttpMethod>() {
+    @Override
+    public Map<String, URL> createFrom(@NotNull final HttpMethod source) {
+      try {
+        final Header contentEncoding = source.getResponseHeader(CONTENT_ENCODING_HEADER);
+        final InputStream responseBody = source.getResponseBodyAsStream();
+        if (contentEncoding != null && GZIP.equalsIgnoreCase(contentEncoding.getValue().trim())) {
+          return S3PreSignUrlHelper.readPreSignUrlMapping(new GZIPInputStream(responseBody));
+        }
+        return S3PreSignUrlHelper.readPreSignUrlMapping(responseBody);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
 
-  private final ExecutorService myExecutorService = jetbrains.buildServer.util.amazon.S3Util.createDefaultExecutorService();
+  private final S3UploadScheduler myScheduler;
+  private final S3ArtifactCompressor myCompressor;
+  private final Map<String, String> myChecksums;
+  private final S3UploadJournal myJournal;
+  private final S3UploadThrottle myThrottle;
+
+  /**
+   * @param checksums receives SHA-256 of the objects uploaded as is in a single request by their path relative to the path prefix, must be thread-safe
+   */
+  public S3SignedUrlFileUploader(@NotNull final S3UploadScheduler scheduler,
+                                 @Nullable final S3ArtifactCompressor compressor,
+                                 @NotNull final Map<String, String> checksums,
+                                 @Nullable final S3UploadJournal journal,
+                                 @Nullable final S3UploadThrottle throttle) {
+    myScheduler = scheduler;
+    myCompressor = compressor;
+    myChecksums = checksums;
+    myJournal = journal;
+    myThrottle = throttle;
+  }
 
   @NotNull
-  private static String targetUrl(@NotNull final AgentRunningBuild build) {
+  static String targetUrl(@NotNull final AgentRunningBuild build) {
     return build.getAgentConfiguration().getServerUrl() + HTTP_AUTH + ARTEFACTS_S3_UPLOAD_PRESIGN_URLS_HTML;
   }
 
@@ -76,25 +117,16 @@ public class S3SignedUrlFileUploader implements S3FileUploader {
     try {
       final PostMethod post = new PostMethod(targetUrl(build));
       post.addRequestHeader("User-Agent", "TeamCity Agent");
+      post.addRequestHeader(ACCEPT_ENCODING_HEADER, GZIP);
       post.setRequestEntity(new StringRequestEntity(S3PreSignUrlHelper.writeS3ObjectKeys(s3ObjectKeys), APPLICATION_XML, UTF_8));
       post.setDoAuthentication(true);
-      final String responseBody = HttpClientCloseUtil.executeReleasingConnectionAndReadResponseBody(httpClient, post);
-      return S3PreSignUrlHelper.readPreSignUrlMapping(responseBody);
+      return HttpClientCloseUtil.executeReleasingConnectionAndReadResponse(httpClient, post, PRE_SIGN_URL_MAPPING_READER);
     } catch (HttpClientCloseUtil.HttpErrorCodeException e) {
       LOG.debug("Failed resolving S3 pre-signed URL for build " + build.describe(false) + " . Response code " + e.getResponseCode());
       return Collections.emptyMap();
     }
   }
 
-  @Nullable
-  private static URL fetchUploadUrlFromServer(@NotNull final HttpClient httpClient, @NotNull final AgentRunningBuild build, @NotNull final String s3ObjectKey) {
-    try {
-      return fetchUploadUrlFromServer(httpClient, build, Collections.singleton(s3ObjectKey)).get(s3ObjectKey);
-    } catch (IOException e) {
-      throw new ArtifactPublishingFailedException(e.getMessage(), false, e);
-    }
-  }
-
   @NotNull
   @Override
   public Collection<ArtifactDataInstance> publishFiles(@NotNull final AgentRunningBuild build,
@@ -110,6 +142,8 @@ public class S3SignedUrlFileUploader implements S3FileUploader {
     final Map<File, String> fileToS3ObjectKeyMap = new HashMap<File, String>();
     final int numberOfRetries = S3Util.getNumberOfRetries(build.getSharedConfigParameters());
     final int retryDelay = S3Util.getRetryDelayInMs(build.getSharedConfigParameters());
+    final int batchSize = S3Util.getPresignedUrlsBatchSize(build.getSharedConfigParameters());
+    final int bufferSize = S3Util.getUploadBufferSize(build.getSharedConfigParameters());
 
     for (Map.Entry<File, String> entry : filesToPublish.entrySet()) {
       String normalizeArtifactPath = S3Util.normalizeArtifactPath(entry.getValue(), entry.getKey());
@@ -120,17 +154,41 @@ public class S3SignedUrlFileUploader implements S3FileUploader {
     final ConcurrentLinkedQueue<ArtifactDataInstance> artifacts = new ConcurrentLinkedQueue<ArtifactDataInstance>();
     final HttpClient awsHttpClient = createPooledHttpClient(build);
     final HttpClient tcServerClient = createPooledHttpClientToTCServer(build);
+    final Map<File, Long> files = S3UploadScheduler.largestFirst(filesToPublish.keySet());
+    final List<String> s3ObjectKeys = new ArrayList<String>(files.size());
+    for (Map.Entry<File, Long> entry : files.entrySet()) {
+      if (!S3SignedUrlMultipartUploader.isMultipartUpload(build, entry.getValue())) {
+        s3ObjectKeys.add(fileToS3ObjectKeyMap.get(entry.getKey()));
+      }
+    }
+    final S3PresignedUrlBatchResolver urlResolver = new S3PresignedUrlBatchResolver(s3ObjectKeys, batchSize, new S3PresignedUrlBatchResolver.Fetcher() {
+      @NotNull
+      @Override
+      public Map<String, URL> fetch(@NotNull final Collection<String> keys) throws IOException {
+        return fetchUploadUrlFromServer(tcServerClient, build, keys);
+      }
+    });
     final Retrier retrier = new RetrierImpl(numberOfRetries)
       .registerListener(new LoggingRetrier(LOG))
       .registerListener(new RetrierExponentialDelay(retryDelay));
+    final S3SignedUrlMultipartUploader multipartUploader = new S3SignedUrlMultipartUploader(build, tcServerClient, awsHttpClient, myScheduler.getPartsExecutor(), myScheduler.getConcurrencyLimiter(), retrier, batchSize, myJournal, myThrottle);
 
-    final List<Callable<Void>> uploadTasks = CollectionsUtil.convertAndFilterNulls(filesToPublish.keySet(), new Converter<Callable<Void>, File>() {
+    final Converter<Callable<Void>, File> uploadTaskFactory = new Converter<Callable<Void>, File>() {
       @Override
       public Callable<Void> createFrom(@NotNull final File file) {
         return new Callable<Void>() {
           @Override
-          public Void call() {
+          public Void call() throws IOException {
+            if (S3SignedUrlMultipartUploader.isMultipartUpload(build, files.get(file))) {
+              final String artifactPath = fileToNormalizedArtifactPathMap.get(file);
+              multipartUploader.upload(artifactPath, fileToS3ObjectKeyMap.get(file), file);
+              myChecksums.remove(artifactPath);
+              artifacts.add(ArtifactDataInstance.create(artifactPath, file.length()));
+              return null;
+            }
             return retrier.execute(new Callable<Void>() {
+              private boolean myFirstAttempt = true;
+
               @Override
               public String toString() {
                 return "publishing file '" + file.getName() + "'";
@@ -139,14 +197,16 @@ public class S3SignedUrlFileUploader implements S3FileUploader {
               @Override
               public Void call() throws IOException {
                 final String artifactPath = fileToNormalizedArtifactPathMap.get(file);
-                final URL uploadUrl = fetchUploadUrlFromServer(tcServerClient, build, fileToS3ObjectKeyMap.get(file));
+                final String s3ObjectKey = fileToS3ObjectKeyMap.get(file);
+                final URL uploadUrl = myFirstAttempt ? urlResolver.getUploadUrl(s3ObjectKey) : urlResolver.refreshUploadUrl(s3ObjectKey);
+                myFirstAttempt = false;
                 try {
                   if (uploadUrl == null) {
                     final String message = "Failed to publish artifact " + artifactPath + ". Can't get presigned upload url.";
                     LOG.info(message);
                     throw new IOException(message);
                   }
-                  uploadArtifact(artifactPath, uploadUrl, file, awsHttpClient);
+                  uploadArtifact(artifactPath, s3ObjectKey, uploadUrl, file, awsHttpClient, bufferSize);
                   artifacts.add(ArtifactDataInstance.create(artifactPath, file.length()));
                   return null;
                 } catch (IOException e) {
@@ -161,18 +221,13 @@ public class S3SignedUrlFileUploader implements S3FileUploader {
           }
         };
       }
-    });
+    };
 
     try {
       final StringBuilder exceptions = new StringBuilder();
       try {
-        final List<Future<Void>> futures = myExecutorService.invokeAll(uploadTasks);
-        for (final Future<Void> future : futures) {
-          try {
-            future.get();
-          } catch (Exception e) {
-            exceptions.append("\n").append(e.getMessage());
-          }
+        for (Throwable error : myScheduler.executeAll(files, uploadTaskFactory)) {
+          exceptions.append("\n").append(error);
         }
       } catch (Exception e) {
         throw new ArtifactPublishingFailedException(String.format("Failed to upload artifacts into bucket %s: %s", bucketName, e.getMessage()), false, null);
@@ -182,19 +237,46 @@ public class S3SignedUrlFileUploader implements S3FileUploader {
         throw new ArtifactPublishingFailedException(String.format("Failed to upload artifacts into bucket %s: %s", bucketName, exceptions), false, null);
       }
     } finally {
+      urlResolver.shutdown();
       HttpClientCloseUtil.shutdown(awsHttpClient, tcServerClient);
     }
 
     return artifacts;
   }
 
-  private void uploadArtifact(@NotNull final String artifactPath, @NotNull final URL uploadUrl, @NotNull final File file, @NotNull final HttpClient awsHttpClient)
-    throws IOException {
+  private void uploadArtifact(@NotNull final String artifactPath,
+                              @NotNull final String s3ObjectKey,
+                              @NotNull final URL uploadUrl,
+                              @NotNull final File file,
+                              @NotNull final HttpClient awsHttpClient,
+                              final int bufferSize) throws IOException {
+    final File compressed = myCompressor != null ? myCompressor.compress(file, artifactPath) : null;
     try {
       final PutMethod putMethod = new PutMethod(uploadUrl.toString());
       putMethod.addRequestHeader("User-Agent", "TeamCity Agent");
-      putMethod.setRequestEntity(new FileRequestEntity(file, S3Util.getContentType(file)));
-      HttpClientCloseUtil.executeAndReleaseConnection(awsHttpClient, putMethod);
+      if (compressed != null) {
+        putMethod.addRequestHeader(CONTENT_ENCODING_HEADER, GZIP);
+      }
+      final File content = compressed != null ? compressed : file;
+      final FilePartRequestEntity entity = new FilePartRequestEntity(content, 0, content.length(), S3Util.getContentType(file), bufferSize, myThrottle);
+      putMethod.setRequestEntity(entity);
+      final Map<String, String> headers =
+        myScheduler.getConcurrencyLimiter().execute(awsHttpClient, putMethod, entity.getContentLength(), ETAG_HEADER, SERVER_SIDE_ENCRYPTION_HEADER);
+      final String md5 = entity.getDigest().getMd5();
+      if (!S3ArtifactChecksums.matchesEtag(headers.get(ETAG_HEADER), headers.get(SERVER_SIDE_ENCRYPTION_HEADER), md5)) {
+        final String msg = "Failed to upload artifact " + artifactPath + ": ETag " + headers.get(ETAG_HEADER) + " doesn't match MD5 " + md5 + " of the sent content";
+        LOG.info(msg);
+        throw new IOException(msg);
+      }
+      if (compressed != null) {
+        myChecksums.remove(artifactPath);
+      } else {
+        myChecksums.put(artifactPath, entity.getDigest().getSha256());
+        if (myJournal != null) {
+          // compressed objects are not journaled, their encoding would be lost after the restart
+          myJournal.objectUploaded(s3ObjectKey, file);
+        }
+      }
       LOG.debug(String.format("Successfully uploaded artifact %s to %s", artifactPath, uploadUrl));
     } catch (HttpClientCloseUtil.HttpErrorCodeException e) {
       final String msg;
@@ -205,6 +287,10 @@ public class S3SignedUrlFileUploader implements S3FileUploader {
       }
       LOG.info(msg);
       throw new IOException(msg);
+    } finally {
+      if (compressed != null) {
+        FileUtil.delete(compressed);
+      }
     }
   }
 
@@ -213,6 +299,14 @@ public class S3SignedUrlFileUploader implements S3FileUploader {
     final int connectionTimeout = build.getAgentConfiguration().getServerConnectionTimeout();
     final HttpClient httpClient = HttpUtil.createHttpClient(connectionTimeout);
     final HttpConnectionManager httpConnectionManager = createMultiThreadedHttpConnectionManager(connectionTimeout);
+    // a socket buffer matching the upload buffer lets a whole buffer be handed over to the kernel at once
+    httpConnectionManager.getParams().setSendBufferSize(S3Util.getUploadBufferSize(build.getSharedConfigParameters()));
+    // the number of requests in flight is up to the concurrency limiter
+    final int maxConcurrency = myScheduler.getConcurrencyLimiter().getMaxConcurrency();
+    if (httpConnectionManager.getParams().getMaxTotalConnections() < maxConcurrency) {
+      httpConnectionManager.getParams().setMaxTotalConnections(maxConcurrency);
+      httpConnectionManager.getParams().setDefaultMaxConnectionsPerHost(maxConcurrency);
+    }
     httpClient.setHttpConnectionManager(httpConnectionManager);
     return httpClient;
   }
@@ -239,13 +333,4 @@ public class S3SignedUrlFileUploader implements S3FileUploader {
     threadSafeConnectionManager.getParams().setDefaultMaxConnectionsPerHost(maxConnections);
     return threadSafeConnectionManager;
   }
-
-  /**
-   * Releasing all resources created by <code>S3SignedUrlFileUploader</code> before it
-   * is being garbage collected.
-   */
-  @Override
-  protected void finalize() {
-    myExecutorService.shutdown();
-  }
 }
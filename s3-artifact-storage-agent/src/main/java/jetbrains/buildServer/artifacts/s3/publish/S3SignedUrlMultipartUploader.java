@@ -0,0 +1,283 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactChecksums;
+import jetbrains.buildServer.artifacts.s3.S3MultipartUpload;
+import jetbrains.buildServer.artifacts.s3.S3PreSignUrlHelper;
+import jetbrains.buildServer.artifacts.s3.S3Util;
+import jetbrains.buildServer.artifacts.s3.retry.Retrier;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.artifacts.s3.S3ArtifactChecksums.SERVER_SIDE_ENCRYPTION_HEADER;
+import static jetbrains.buildServer.artifacts.s3.S3Constants.*;
+
+/**
+ * Uploads a single large file using S3 multipart upload with pre-signed URLs.
+ * <p>
+ * The upload is started, completed or aborted by the server, parts are uploaded in parallel directly to S3.
+ * Each part is retried on its own, so a network failure does not restart the whole file.
+ * With the upload journal the finished parts survive an agent restart and the upload is resumed.
+ */
+final class S3SignedUrlMultipartUploader {
+  private static final Logger LOG = Logger.getInstance(S3SignedUrlMultipartUploader.class.getName());
+  private static final String ETAG_HEADER = "ETag";
+
+  private final AgentRunningBuild myBuild;
+  private final HttpClient myTcServerClient;
+  private final HttpClient myAwsHttpClient;
+  private final ExecutorService myPartsExecutorService;
+  private final S3UploadConcurrencyLimiter myConcurrencyLimiter;
+  private final Retrier myRetrier;
+  private final int myBatchSize;
+  private final S3UploadJournal myJournal;
+  private final S3UploadThrottle myThrottle;
+  private final int myBufferSize;
+
+  S3SignedUrlMultipartUploader(@NotNull final AgentRunningBuild build,
+                               @NotNull final HttpClient tcServerClient,
+                               @NotNull final HttpClient awsHttpClient,
+                               @NotNull final ExecutorService partsExecutorService,
+                               @NotNull final S3UploadConcurrencyLimiter concurrencyLimiter,
+                               @NotNull final Retrier retrier,
+                               final int batchSize,
+                               @Nullable final S3UploadJournal journal,
+                               @Nullable final S3UploadThrottle throttle) {
+    myBuild = build;
+    myTcServerClient = tcServerClient;
+    myAwsHttpClient = awsHttpClient;
+    myPartsExecutorService = partsExecutorService;
+    myConcurrencyLimiter = concurrencyLimiter;
+    myRetrier = retrier;
+    myBatchSize = batchSize;
+    myJournal = journal;
+    myThrottle = throttle;
+    myBufferSize = S3Util.getUploadBufferSize(build.getSharedConfigParameters());
+  }
+
+  static boolean isMultipartUpload(@NotNull final AgentRunningBuild build, final long fileSize) {
+    return fileSize > S3Util.getMultipartUploadThreshold(build.getSharedConfigParameters());
+  }
+
+  void upload(@NotNull final String artifactPath, @NotNull final String s3ObjectKey, @NotNull final File file) throws IOException {
+    final long fileSize = file.length();
+    final long partSize = S3Util.getMultipartUploadPartSize(myBuild.getSharedConfigParameters(), fileSize);
+    final int partsCount = (int)((fileSize + partSize - 1) / partSize);
+
+    final S3UploadJournal.MultipartUpload resumed = myJournal != null ? myJournal.getMultipartUpload(s3ObjectKey, file, partSize) : null;
+    if (resumed != null) {
+      LOG.info(String.format("Resuming multipart upload %s of artifact %s, %d of %d parts are already uploaded",
+                             resumed.getUploadId(), artifactPath, resumed.getPartEtags().size(), partsCount));
+      try {
+        upload(artifactPath, s3ObjectKey, file, partSize, partsCount, resumed.getUploadId(), resumed.getPartEtags());
+        return;
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Failed to resume multipart upload " + resumed.getUploadId() + " of artifact " + artifactPath + ", starting it over", e);
+      }
+    }
+
+    final String uploadId = callServer(S3_MULTIPART_UPLOAD_INITIATE, new S3MultipartUpload(s3ObjectKey, null, S3Util.getContentType(file))).getUploadId();
+    if (uploadId == null) {
+      throw new IOException("Failed to start multipart upload of artifact " + artifactPath + ": upload id is missing in server response");
+    }
+    LOG.debug(String.format("Started multipart upload %s of artifact %s in %d parts", uploadId, artifactPath, partsCount));
+    if (myJournal != null) {
+      myJournal.multipartUploadStarted(s3ObjectKey, file, uploadId, partSize);
+    }
+    upload(artifactPath, s3ObjectKey, file, partSize, partsCount, uploadId, Collections.<Integer, String>emptyMap());
+  }
+
+  /**
+   * @param uploadedParts ETags of the parts uploaded before
+   */
+  private void upload(@NotNull final String artifactPath,
+                      @NotNull final String s3ObjectKey,
+                      @NotNull final File file,
+                      final long partSize,
+                      final int partsCount,
+                      @NotNull final String uploadId,
+                      @NotNull final Map<Integer, String> uploadedParts) throws IOException {
+    final long fileSize = file.length();
+    final List<String> partNumbers = new ArrayList<String>(partsCount);
+    for (int partNumber = 1; partNumber <= partsCount; partNumber++) {
+      if (!uploadedParts.containsKey(partNumber)) {
+        partNumbers.add(String.valueOf(partNumber));
+      }
+    }
+    final S3PresignedUrlBatchResolver urlResolver = new S3PresignedUrlBatchResolver(partNumbers, myBatchSize, new S3PresignedUrlBatchResolver.Fetcher() {
+      @NotNull
+      @Override
+      public Map<String, URL> fetch(@NotNull final Collection<String> keys) throws IOException {
+        final S3MultipartUpload request = new S3MultipartUpload(s3ObjectKey, uploadId, null);
+        for (String key : keys) {
+          request.withPart(Integer.parseInt(key), null, null);
+        }
+        final Map<String, URL> result = new HashMap<String, URL>();
+        for (Map.Entry<Integer, URL> part : callServer(S3_MULTIPART_UPLOAD_PRESIGN_PARTS, request).getPartUrls().entrySet()) {
+          if (part.getValue() != null) {
+            result.put(String.valueOf(part.getKey()), part.getValue());
+          }
+        }
+        return result;
+      }
+    });
+
+    final Map<Integer, String> partEtags = Collections.synchronizedMap(new TreeMap<Integer, String>(uploadedParts));
+    final List<Future<Void>> futures = new ArrayList<Future<Void>>(partsCount);
+    boolean completed = false;
+    try {
+      final S3FilePartReader reader = new S3FilePartReader(file);
+      try {
+        for (int i = 0; i < partsCount; i++) {
+          final int partNumber = i + 1;
+          if (uploadedParts.containsKey(partNumber)) continue;
+          final long offset = i * partSize;
+          final long length = Math.min(partSize, fileSize - offset);
+          futures.add(myPartsExecutorService.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+              return myRetrier.execute(new Callable<Void>() {
+                private boolean myFirstAttempt = true;
+
+                @Override
+                public String toString() {
+                  return "publishing part " + partNumber + " of file '" + file.getName() + "'";
+                }
+
+                @Override
+                public Void call() throws IOException {
+                  final String partKey = String.valueOf(partNumber);
+                  final URL uploadUrl = myFirstAttempt ? urlResolver.getUploadUrl(partKey) : urlResolver.refreshUploadUrl(partKey);
+                  myFirstAttempt = false;
+                  if (uploadUrl == null) {
+                    throw new IOException("Failed to publish part " + partNumber + " of artifact " + artifactPath + ". Can't get presigned upload url.");
+                  }
+                  final String etag = uploadPart(artifactPath, partNumber, uploadUrl, new FilePartRequestEntity(reader, offset, length, myBufferSize, myThrottle));
+                  partEtags.put(partNumber, etag);
+                  if (myJournal != null) {
+                    myJournal.partUploaded(s3ObjectKey, partNumber, etag);
+                  }
+                  return null;
+                }
+              });
+            }
+          }));
+        }
+        for (Future<Void> future : futures) {
+          try {
+            future.get();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading artifact " + artifactPath);
+          } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+          }
+        }
+      } finally {
+        for (Future<Void> future : futures) {
+          future.cancel(true);
+        }
+        reader.close();
+      }
+      callServer(S3_MULTIPART_UPLOAD_COMPLETE, new S3MultipartUpload(s3ObjectKey, uploadId, null).withPartEtags(partEtags));
+      completed = true;
+      if (myJournal != null) {
+        myJournal.objectUploaded(s3ObjectKey, file);
+      }
+      LOG.debug(String.format("Successfully uploaded artifact %s using multipart upload %s", artifactPath, uploadId));
+    } finally {
+      urlResolver.shutdown();
+      if (!completed) {
+        abort(artifactPath, s3ObjectKey, uploadId);
+        if (myJournal != null) {
+          myJournal.forget(s3ObjectKey);
+        }
+      }
+    }
+  }
+
+  @NotNull
+  private String uploadPart(@NotNull final String artifactPath,
+                            final int partNumber,
+                            @NotNull final URL uploadUrl,
+                            @NotNull final FilePartRequestEntity entity) throws IOException {
+    try {
+      final PutMethod putMethod = new PutMethod(uploadUrl.toString());
+      putMethod.addRequestHeader("User-Agent", "TeamCity Agent");
+      putMethod.setRequestEntity(entity);
+      final Map<String, String> headers =
+        myConcurrencyLimiter.execute(myAwsHttpClient, putMethod, entity.getContentLength(), ETAG_HEADER, SERVER_SIDE_ENCRYPTION_HEADER);
+      final String etag = headers.get(ETAG_HEADER);
+      if (etag == null) {
+        throw new IOException("Failed to upload part " + partNumber + " of artifact " + artifactPath + ": ETag is missing in S3 response");
+      }
+      final String md5 = entity.getDigest().getMd5();
+      if (!S3ArtifactChecksums.matchesEtag(etag, headers.get(SERVER_SIDE_ENCRYPTION_HEADER), md5)) {
+        throw new IOException("Failed to upload part " + partNumber + " of artifact " + artifactPath + ": ETag " + etag + " doesn't match MD5 " + md5 + " of the sent content");
+      }
+      return etag;
+    } catch (HttpClientCloseUtil.HttpErrorCodeException e) {
+      final String msg = "Failed to upload part " + partNumber + " of artifact " + artifactPath + ": received response code HTTP " + e.getResponseCode() + ".";
+      LOG.info(msg);
+      throw new IOException(msg);
+    }
+  }
+
+  private void abort(@NotNull final String artifactPath, @NotNull final String s3ObjectKey, @NotNull final String uploadId) {
+    try {
+      callServer(S3_MULTIPART_UPLOAD_ABORT, new S3MultipartUpload(s3ObjectKey, uploadId, null));
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Failed to abort multipart upload " + uploadId + " of artifact " + artifactPath, e);
+    }
+  }
+
+  @NotNull
+  private S3MultipartUpload callServer(@NotNull final String operation, @NotNull final S3MultipartUpload request) throws IOException {
+    try {
+      final PostMethod post = new PostMethod(S3SignedUrlFileUploader.targetUrl(myBuild));
+      post.addRequestHeader("User-Agent", "TeamCity Agent");
+      post.setQueryString(new NameValuePair[]{new NameValuePair(S3_MULTIPART_UPLOAD_OPERATION, operation)});
+      post.setRequestEntity(new StringRequestEntity(S3PreSignUrlHelper.writeMultipartUpload(request), "application/xml", "UTF-8"));
+      post.setDoAuthentication(true);
+      final String responseBody = HttpClientCloseUtil.executeReleasingConnectionAndReadResponseBody(myTcServerClient, post);
+      final S3MultipartUpload response = S3PreSignUrlHelper.readMultipartUpload(responseBody);
+      if (response == null) {
+        throw new IOException("Failed to process " + request + ": unexpected server response for operation " + operation);
+      }
+      return response;
+    } catch (HttpClientCloseUtil.HttpErrorCodeException e) {
+      LOG.debug("Failed to process " + request + " for build " + myBuild.describe(false) + ". Response code " + e.getResponseCode());
+      throw new IOException("Failed to process " + request + ": operation " + operation + " failed with response code " + e.getResponseCode());
+    }
+  }
+}
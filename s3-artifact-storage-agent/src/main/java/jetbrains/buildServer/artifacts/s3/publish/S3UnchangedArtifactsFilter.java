@@ -0,0 +1,224 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.ArtifactDataInstance;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactChecksums;
+import jetbrains.buildServer.artifacts.s3.S3PreSignUrlHelper;
+import jetbrains.buildServer.artifacts.s3.S3StoredObject;
+import jetbrains.buildServer.artifacts.s3.S3Util;
+import jetbrains.buildServer.http.HttpUtil;
+import jetbrains.buildServer.util.Converter;
+import jetbrains.buildServer.util.FileUtil;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_MULTIPART_UPLOAD_OPERATION;
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_STORED_OBJECTS_LOOKUP;
+
+/**
+ * Finds the files already stored under the build path prefix with the same content, e.g. when a publishing step is retried.
+ * <p>
+ * The server lists the stored objects in bulk, the agent compares the size and then the ETag with the MD5 of the file.
+ * Multipart ETags are compared assuming the part size of the pre-signed multipart upload,
+ * objects with ETags which are not a content digest, e.g. encrypted with KMS or compressed, are always uploaded again.
+ */
+final class S3UnchangedArtifactsFilter {
+  private static final Logger LOG = Logger.getInstance(S3UnchangedArtifactsFilter.class.getName());
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final S3UploadScheduler myScheduler;
+
+  S3UnchangedArtifactsFilter(@NotNull final S3UploadScheduler scheduler) {
+    myScheduler = scheduler;
+  }
+
+  /**
+   * Removes the files stored with the same content from the files to publish.
+   *
+   * @param checksums receives SHA-256 by artifact path of the unchanged artifacts
+   * @return artifacts of the removed files
+   */
+  @NotNull
+  Collection<ArtifactDataInstance> takeUnchanged(@NotNull final AgentRunningBuild build,
+                                                 @NotNull final String pathPrefix,
+                                                 @NotNull final Map<File, String> filesToPublish,
+                                                 @NotNull final Map<String, String> checksums) {
+    final Map<String, File> files = new HashMap<String, File>();
+    for (Map.Entry<File, String> entry : filesToPublish.entrySet()) {
+      files.put(pathPrefix + S3Util.normalizeArtifactPath(entry.getValue(), entry.getKey()), entry.getKey());
+    }
+    final Map<File, S3StoredObject> candidates = new HashMap<File, S3StoredObject>();
+    try {
+      for (S3StoredObject storedObject : lookup(build, files.keySet())) {
+        final File file = files.get(storedObject.getObjectKey());
+        if (file != null && file.length() == storedObject.getSize()) {
+          candidates.put(file, storedObject);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to look up stored artifacts of build " + build.describe(false) + ", uploading all of them", e);
+      return Collections.emptyList();
+    }
+    if (candidates.isEmpty()) return Collections.emptyList();
+
+    final Map<String, String> configParameters = build.getSharedConfigParameters();
+    final Map<File, String> unchanged = new ConcurrentHashMap<File, String>();
+    final List<Throwable> errors;
+    try {
+      errors = myScheduler.executeAll(S3UploadScheduler.largestFirst(candidates.keySet()), new Converter<Callable<Void>, File>() {
+        @Override
+        public Callable<Void> createFrom(@NotNull final File file) {
+          return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              final long partSize = S3Util.getMultipartUploadPartSize(configParameters, file.length());
+              final S3ArtifactChecksums.Digest digest = new S3ArtifactChecksums.Digest();
+              if (matches(file, candidates.get(file).getEtag(), partSize, digest)) {
+                unchanged.put(file, digest.getSha256());
+              }
+              return null;
+            }
+          };
+        }
+      });
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Collections.emptyList();
+    }
+    for (Throwable error : errors) {
+      LOG.debug("Failed to compare artifact of build " + build.describe(false) + " with the stored one", error);
+    }
+
+    final List<ArtifactDataInstance> result = new ArrayList<ArtifactDataInstance>(unchanged.size());
+    for (Map.Entry<File, String> entry : unchanged.entrySet()) {
+      final File file = entry.getKey();
+      final String artifactPath = S3Util.normalizeArtifactPath(filesToPublish.remove(file), file);
+      checksums.put(artifactPath, entry.getValue());
+      result.add(ArtifactDataInstance.create(artifactPath, file.length()));
+    }
+    if (!result.isEmpty()) {
+      LOG.info(String.format("%d artifacts of build %s are already stored with the same content", result.size(), build.describe(false)));
+    }
+    return result;
+  }
+
+  /**
+   * Reads the file once computing both the content MD5 and the multipart ETag.
+   *
+   * @param digest receives the checksums of the file
+   * @return true if the ETag is the one S3 computes for the file content
+   */
+  static boolean matches(@NotNull final File file,
+                         @NotNull final String etag,
+                         final long partSize,
+                         @NotNull final S3ArtifactChecksums.Digest digest) throws IOException {
+    String expected = etag.trim();
+    if (expected.length() >= 2 && expected.startsWith("\"") && expected.endsWith("\"")) {
+      expected = expected.substring(1, expected.length() - 1);
+    }
+    final int dash = expected.indexOf('-');
+    final long parts;
+    try {
+      parts = dash < 0 ? 0 : Long.parseLong(expected.substring(dash + 1));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    if (parts > 0 && (file.length() + partSize - 1) / partSize != parts) return false;
+
+    final MessageDigest partDigest = newMd5();
+    final MessageDigest partsDigest = newMd5();
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    long partRemaining = partSize;
+    final InputStream input = new FileInputStream(file);
+    try {
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+        if (parts == 0) continue;
+        int offset = 0;
+        while (offset < read) {
+          final int length = (int)Math.min(read - offset, partRemaining);
+          partDigest.update(buffer, offset, length);
+          offset += length;
+          partRemaining -= length;
+          if (partRemaining == 0) {
+            partsDigest.update(partDigest.digest());
+            partRemaining = partSize;
+          }
+        }
+      }
+    } finally {
+      FileUtil.close(input);
+    }
+    if (parts == 0) {
+      return expected.equalsIgnoreCase(digest.getMd5());
+    }
+    if (partRemaining != partSize) {
+      partsDigest.update(partDigest.digest());
+    }
+    return expected.equalsIgnoreCase(S3ArtifactChecksums.toHex(partsDigest.digest()) + "-" + parts);
+  }
+
+  @NotNull
+  private static MessageDigest newMd5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static Collection<S3StoredObject> lookup(@NotNull final AgentRunningBuild build, @NotNull final Collection<String> objectKeys) throws IOException {
+    final HttpClient httpClient;
+    try {
+      httpClient = HttpUtil.createHttpClient(build.getAgentConfiguration().getServerConnectionTimeout(),
+                                             new URL(S3SignedUrlFileUploader.targetUrl(build)),
+                                             new UsernamePasswordCredentials(build.getAccessUser(), build.getAccessCode()));
+    } catch (MalformedURLException e) {
+      throw new IOException(e);
+    }
+    final PostMethod post = new PostMethod(S3SignedUrlFileUploader.targetUrl(build));
+    post.addRequestHeader("User-Agent", "TeamCity Agent");
+    post.setQueryString(new NameValuePair[]{new NameValuePair(S3_MULTIPART_UPLOAD_OPERATION, S3_STORED_OBJECTS_LOOKUP)});
+    post.setRequestEntity(new StringRequestEntity(S3PreSignUrlHelper.writeS3ObjectKeys(objectKeys), "application/xml", "UTF-8"));
+    post.setDoAuthentication(true);
+    try {
+      return S3PreSignUrlHelper.readStoredObjects(HttpClientCloseUtil.executeReleasingConnectionAndReadResponseBody(httpClient, post));
+    } catch (HttpClientCloseUtil.HttpErrorCodeException e) {
+      throw new IOException("Response code " + e.getResponseCode(), e);
+    }
+  }
+}
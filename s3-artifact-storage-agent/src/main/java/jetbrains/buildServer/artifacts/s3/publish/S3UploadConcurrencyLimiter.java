@@ -0,0 +1,115 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import jetbrains.buildServer.artifacts.s3.S3AdaptiveConcurrency;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Limits the number of upload requests sent to S3 at once to the limit picked by {@link S3AdaptiveConcurrency}.
+ * <p>
+ * The upload workers and the connection pool are sized for the maximum limit, the workers above the current one
+ * wait here for their turn. Without the adaptive concurrency the requests are sent as soon as a worker is free.
+ */
+final class S3UploadConcurrencyLimiter {
+  private static final Logger LOG = Logger.getInstance(S3UploadConcurrencyLimiter.class.getName());
+  private static final int SLOW_DOWN_RESPONSE_CODE = 503;
+
+  private final S3AdaptiveConcurrency myConcurrency;
+  private final int myMaxConcurrency;
+  private int myInFlight;
+  private int myLastLimit;
+
+  S3UploadConcurrencyLimiter(@Nullable final S3AdaptiveConcurrency concurrency, final int maxConcurrency) {
+    myConcurrency = concurrency;
+    myMaxConcurrency = maxConcurrency;
+    myLastLimit = concurrency != null ? concurrency.getLimit() : maxConcurrency;
+  }
+
+  int getMaxConcurrency() {
+    return myMaxConcurrency;
+  }
+
+  /**
+   * Sends the upload request once the limit allows it.
+   *
+   * @param bytes size of the uploaded content
+   * @return values of the present response headers by name
+   */
+  @NotNull
+  Map<String, String> execute(@NotNull final HttpClient client,
+                              @NotNull final HttpMethod method,
+                              final long bytes,
+                              @NotNull final String... headerNames) throws IOException {
+    if (myConcurrency == null) {
+      return HttpClientCloseUtil.executeReleasingConnectionAndReadResponseHeaders(client, method, headerNames);
+    }
+    acquire();
+    final long startTime = System.currentTimeMillis();
+    boolean completed = false;
+    boolean throttled = false;
+    try {
+      final Map<String, String> result = HttpClientCloseUtil.executeReleasingConnectionAndReadResponseHeaders(client, method, headerNames);
+      completed = true;
+      return result;
+    } catch (HttpClientCloseUtil.HttpErrorCodeException e) {
+      throttled = e.getResponseCode() == SLOW_DOWN_RESPONSE_CODE;
+      throw e;
+    } catch (InterruptedIOException e) {
+      // socket and connection timeouts
+      throttled = !Thread.currentThread().isInterrupted();
+      throw e;
+    } finally {
+      final long now = System.currentTimeMillis();
+      if (completed) {
+        myConcurrency.requestCompleted(now, bytes, now - startTime);
+      } else if (throttled) {
+        myConcurrency.requestThrottled(now);
+      }
+      release();
+    }
+  }
+
+  private synchronized void acquire() throws InterruptedIOException {
+    while (myInFlight >= myConcurrency.getLimit()) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting to upload");
+      }
+    }
+    myInFlight++;
+  }
+
+  private synchronized void release() {
+    myInFlight--;
+    final int limit = myConcurrency.getLimit();
+    if (limit != myLastLimit) {
+      LOG.debug(String.format("S3 upload concurrency changed from %d to %d", myLastLimit, limit));
+      myLastLimit = limit;
+    }
+    notifyAll();
+  }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.artifacts.ArtifactDataInstance;
+import jetbrains.buildServer.artifacts.s3.S3Util;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Append-only journal of the uploads of a build kept in the agent work directory,
+ * so publishing can continue where it stopped when the agent process is restarted.
+ * <p>
+ * The journal records uploaded objects, pre-signed multipart uploads with their finished parts
+ * and the started multipart uploads of the transfer manager. Every record is synced to disk before the upload goes on.
+ * The records are written under the journal lock and synced outside of it, a sync covers all the records written before it,
+ * so the concurrent uploads share the syncs instead of waiting for one sync per record.
+ * A record only applies while the file has the same size and modification time.
+ */
+final class S3UploadJournal {
+  private static final Logger LOG = Logger.getInstance(S3UploadJournal.class.getName());
+  private static final String JOURNAL_DIRECTORY = ".s3-upload-journal";
+  private static final String JOURNAL_EXTENSION = ".journal";
+  private static final long MAX_JOURNAL_AGE_MS = TimeUnit.DAYS.toMillis(7);
+  private static final String UTF_8 = "UTF-8";
+
+  private static final String OBJECT = "O";
+  private static final String MULTIPART = "M";
+  private static final String PART = "P";
+  private static final String TRANSFER = "T";
+  private static final String FORGET = "F";
+
+  private final File myFile;
+  private final Map<String, FileState> myObjects = new HashMap<String, FileState>();
+  private final Map<String, MultipartUpload> myMultipartUploads = new HashMap<String, MultipartUpload>();
+  private final Map<String, FileState> myTransfers = new HashMap<String, FileState>();
+  private final Object mySyncLock = new Object();
+  private FileOutputStream myOutput;
+  private long myWrittenRecords;
+  private long mySyncedRecords;
+
+  private S3UploadJournal(@NotNull final File file) {
+    myFile = file;
+  }
+
+  /**
+   * Opens the journal of the build, the records left by a previous agent process are loaded.
+   *
+   * @return null if the journal is disabled for the build
+   */
+  @Nullable
+  static S3UploadJournal open(@NotNull final BuildAgentConfiguration agentConfiguration, @NotNull final AgentRunningBuild build) {
+    if (!S3Util.isUploadJournalEnabled(build.getSharedConfigParameters())) return null;
+    final File directory = new File(agentConfiguration.getWorkDirectory(), JOURNAL_DIRECTORY);
+    deleteObsoleteJournals(directory);
+    return open(new File(directory, build.getBuildId() + JOURNAL_EXTENSION));
+  }
+
+  /**
+   * Opens the journal stored in the file, the records it already has are loaded.
+   */
+  @NotNull
+  static S3UploadJournal open(@NotNull final File file) {
+    final S3UploadJournal journal = new S3UploadJournal(file);
+    try {
+      journal.load();
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to read S3 upload journal " + file + ", starting a new one", e);
+      journal.clear();
+    }
+    return journal;
+  }
+
+  private static void deleteObsoleteJournals(@NotNull final File directory) {
+    final File[] journals = directory.listFiles();
+    if (journals == null) return;
+    final long now = System.currentTimeMillis();
+    for (File journal : journals) {
+      if (journal.getName().endsWith(JOURNAL_EXTENSION) && now - journal.lastModified() > MAX_JOURNAL_AGE_MS) {
+        FileUtil.delete(journal);
+      }
+    }
+  }
+
+  /**
+   * Removes the files uploaded before from the files to publish.
+   *
+   * @return artifacts of the removed files
+   */
+  @NotNull
+  synchronized Collection<ArtifactDataInstance> takeUploaded(@NotNull final String pathPrefix, @NotNull final Map<File, String> filesToPublish) {
+    final List<ArtifactDataInstance> result = new ArrayList<ArtifactDataInstance>();
+    final Iterator<Map.Entry<File, String>> iterator = filesToPublish.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final Map.Entry<File, String> entry = iterator.next();
+      final String artifactPath = S3Util.normalizeArtifactPath(entry.getValue(), entry.getKey());
+      final FileState state = myObjects.get(pathPrefix + artifactPath);
+      if (state != null && state.equals(new FileState(entry.getKey()))) {
+        result.add(ArtifactDataInstance.create(artifactPath, entry.getKey().length()));
+        iterator.remove();
+      }
+    }
+    if (!result.isEmpty()) {
+      LOG.info(String.format("%d artifacts were uploaded before the agent restart according to %s", result.size(), myFile));
+    }
+    return result;
+  }
+
+  void objectUploaded(@NotNull final String objectKey, @NotNull final File file) {
+    final FileState state = new FileState(file);
+    final long record;
+    synchronized (this) {
+      myObjects.put(objectKey, state);
+      myMultipartUploads.remove(objectKey);
+      myTransfers.remove(objectKey);
+      record = append(OBJECT, objectKey, String.valueOf(state.myLength), String.valueOf(state.myLastModified));
+    }
+    sync(record);
+  }
+
+  /**
+   * @return unfinished pre-signed multipart upload of the file or null if there is none
+   */
+  @Nullable
+  synchronized MultipartUpload getMultipartUpload(@NotNull final String objectKey, @NotNull final File file, final long partSize) {
+    final MultipartUpload upload = myMultipartUploads.get(objectKey);
+    if (upload == null || upload.myPartSize != partSize || !upload.myState.equals(new FileState(file))) return null;
+    return new MultipartUpload(upload);
+  }
+
+  void multipartUploadStarted(@NotNull final String objectKey, @NotNull final File file, @NotNull final String uploadId, final long partSize) {
+    final FileState state = new FileState(file);
+    final long record;
+    synchronized (this) {
+      myMultipartUploads.put(objectKey, new MultipartUpload(uploadId, partSize, state));
+      record = append(MULTIPART, objectKey, String.valueOf(state.myLength), String.valueOf(state.myLastModified), uploadId, String.valueOf(partSize));
+    }
+    sync(record);
+  }
+
+  void partUploaded(@NotNull final String objectKey, final int partNumber, @NotNull final String etag) {
+    final long record;
+    synchronized (this) {
+      final MultipartUpload upload = myMultipartUploads.get(objectKey);
+      if (upload == null) return;
+      upload.myPartEtags.put(partNumber, etag);
+      record = append(PART, objectKey, String.valueOf(partNumber), etag);
+    }
+    sync(record);
+  }
+
+  /**
+   * @return true if a transfer manager multipart upload of the file was started and not finished
+   */
+  synchronized boolean hasTransfer(@NotNull final String objectKey, @NotNull final File file) {
+    final FileState state = myTransfers.get(objectKey);
+    return state != null && state.equals(new FileState(file));
+  }
+
+  void transferStarted(@NotNull final String objectKey, @NotNull final File file) {
+    final FileState state = new FileState(file);
+    final long record;
+    synchronized (this) {
+      myTransfers.put(objectKey, state);
+      record = append(TRANSFER, objectKey, String.valueOf(state.myLength), String.valueOf(state.myLastModified));
+    }
+    sync(record);
+  }
+
+  /**
+   * Forgets an unfinished upload of the object, e.g. when it was aborted.
+   */
+  void forget(@NotNull final String objectKey) {
+    final long record;
+    synchronized (this) {
+      final boolean known = myObjects.containsKey(objectKey) || myMultipartUploads.containsKey(objectKey) || myTransfers.containsKey(objectKey);
+      myObjects.remove(objectKey);
+      myMultipartUploads.remove(objectKey);
+      myTransfers.remove(objectKey);
+      if (!known) return;
+      record = append(FORGET, objectKey);
+    }
+    sync(record);
+  }
+
+  void close() {
+    synchronized (mySyncLock) {
+      synchronized (this) {
+        FileUtil.close(myOutput);
+        myOutput = null;
+      }
+    }
+  }
+
+  /**
+   * Closes and deletes the journal when the build doesn't need it anymore.
+   */
+  void delete() {
+    synchronized (mySyncLock) {
+      synchronized (this) {
+        close();
+        myObjects.clear();
+        myMultipartUploads.clear();
+        myTransfers.clear();
+        FileUtil.delete(myFile);
+      }
+    }
+  }
+
+  private void load() throws IOException {
+    if (!myFile.isFile()) return;
+    truncateIncompleteRecord();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(myFile), UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] fields = line.split("\t", -1);
+        try {
+          for (int i = 0; i < fields.length; i++) {
+            fields[i] = URLDecoder.decode(fields[i], UTF_8);
+          }
+          apply(fields);
+        } catch (RuntimeException e) {
+          LOG.debug("Skipping malformed S3 upload journal record: " + line);
+        }
+      }
+    } finally {
+      FileUtil.close(reader);
+    }
+  }
+
+  /**
+   * Cuts off the last record if the agent was stopped while writing it, so the records written after the restart don't continue it.
+   */
+  private void truncateIncompleteRecord() throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(myFile, "rw");
+    try {
+      long length = file.length();
+      while (length > 0) {
+        file.seek(length - 1);
+        if (file.read() == '\n') break;
+        length--;
+      }
+      if (length < file.length()) {
+        file.setLength(length);
+      }
+    } finally {
+      FileUtil.close(file);
+    }
+  }
+
+  private void apply(@NotNull final String[] fields) {
+    final String type = fields[0];
+    final String objectKey = fields[1];
+    if (OBJECT.equals(type)) {
+      myObjects.put(objectKey, new FileState(Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+      myMultipartUploads.remove(objectKey);
+      myTransfers.remove(objectKey);
+    } else if (MULTIPART.equals(type)) {
+      myMultipartUploads.put(objectKey, new MultipartUpload(fields[4], Long.parseLong(fields[5]),
+                                                            new FileState(Long.parseLong(fields[2]), Long.parseLong(fields[3]))));
+    } else if (PART.equals(type)) {
+      final MultipartUpload upload = myMultipartUploads.get(objectKey);
+      if (upload != null) {
+        upload.myPartEtags.put(Integer.parseInt(fields[2]), fields[3]);
+      }
+    } else if (TRANSFER.equals(type)) {
+      myTransfers.put(objectKey, new FileState(Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+    } else if (FORGET.equals(type)) {
+      myObjects.remove(objectKey);
+      myMultipartUploads.remove(objectKey);
+      myTransfers.remove(objectKey);
+    }
+  }
+
+  private void clear() {
+    myObjects.clear();
+    myMultipartUploads.clear();
+    myTransfers.clear();
+    FileUtil.delete(myFile);
+  }
+
+  /**
+   * Writes the record without syncing it, must be called under the journal lock.
+   *
+   * @return number of the written record to sync or 0 if it was not written
+   */
+  private long append(@NotNull final String... fields) {
+    final StringBuilder record = new StringBuilder();
+    try {
+      for (String field : fields) {
+        if (record.length() > 0) record.append('\t');
+        record.append(URLEncoder.encode(field, UTF_8));
+      }
+      record.append('\n');
+      if (myOutput == null) {
+        //noinspection ResultOfMethodCallIgnored
+        myFile.getParentFile().mkdirs();
+        myOutput = new FileOutputStream(myFile, true);
+      }
+      myOutput.write(record.toString().getBytes(UTF_8));
+      return ++myWrittenRecords;
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to write S3 upload journal " + myFile + ", the upload can't be resumed after the agent restart", e);
+      return 0;
+    }
+  }
+
+  /**
+   * Waits until the record is synced to disk. The thread which gets the sync lock first syncs the records written so far,
+   * the threads waiting for it meanwhile find their records already synced.
+   */
+  private void sync(final long record) {
+    synchronized (mySyncLock) {
+      if (record <= mySyncedRecords) return;
+      final FileOutputStream output;
+      final long written;
+      synchronized (this) {
+        output = myOutput;
+        written = myWrittenRecords;
+      }
+      if (output == null) return;
+      try {
+        output.getFD().sync();
+        mySyncedRecords = written;
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Failed to sync S3 upload journal " + myFile + ", the upload can't be resumed after the agent restart", e);
+      }
+    }
+  }
+
+  /**
+   * Pre-signed multipart upload of a file with the ETags of the finished parts.
+   */
+  static final class MultipartUpload {
+    private final String myUploadId;
+    private final long myPartSize;
+    private final FileState myState;
+    private final Map<Integer, String> myPartEtags;
+
+    private MultipartUpload(@NotNull final String uploadId, final long partSize, @NotNull final FileState state) {
+      myUploadId = uploadId;
+      myPartSize = partSize;
+      myState = state;
+      myPartEtags = new TreeMap<Integer, String>();
+    }
+
+    private MultipartUpload(@NotNull final MultipartUpload upload) {
+      myUploadId = upload.myUploadId;
+      myPartSize = upload.myPartSize;
+      myState = upload.myState;
+      myPartEtags = new TreeMap<Integer, String>(upload.myPartEtags);
+    }
+
+    @NotNull
+    String getUploadId() {
+      return myUploadId;
+    }
+
+    @NotNull
+    Map<Integer, String> getPartEtags() {
+      return myPartEtags;
+    }
+  }
+
+  private static final class FileState {
+    private final long myLength;
+    private final long myLastModified;
+
+    private FileState(@NotNull final File file) {
+      this(file.length(), file.lastModified());
+    }
+
+    private FileState(final long length, final long lastModified) {
+      myLength = length;
+      myLastModified = lastModified;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (!(o instanceof FileState)) return false;
+      final FileState other = (FileState)o;
+      return myLength == other.myLength && myLastModified == other.myLastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (int)(myLength ^ (myLength >>> 32)) + (int)(myLastModified ^ (myLastModified >>> 32));
+    }
+  }
+}
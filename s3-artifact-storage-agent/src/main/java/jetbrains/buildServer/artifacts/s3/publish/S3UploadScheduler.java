@@ -0,0 +1,208 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.s3.S3AdaptiveConcurrency;
+import jetbrains.buildServer.artifacts.s3.S3Util;
+import jetbrains.buildServer.util.Converter;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_ADAPTIVE_CONCURRENCY_WINDOW_MS;
+
+/**
+ * Runs artifact upload tasks of a single build on a fixed number of worker threads.
+ * <p>
+ * Files are uploaded largest first, so a huge file does not start last and stretch the publishing.
+ * Files smaller than the threshold go to a separate lane which gets a quarter of the workers, so thousands of tiny files
+ * do not wait for a few huge ones and vice versa. With a single worker both lanes share it.
+ * <p>
+ * Tasks are created only when there is room for them in a lane, so at most the lane workers + queue size
+ * tasks exist in a lane at a time no matter how many files are published. Multipart uploads get a separate pool for their parts,
+ * so a part never waits for a worker occupied by the file it belongs to.
+ * <p>
+ * With the adaptive concurrency the workers are sized for its maximum and the requests they send
+ * are limited by {@link S3UploadConcurrencyLimiter}.
+ */
+final class S3UploadScheduler {
+  private final ExecutorService myUploadExecutor;
+  private final ExecutorService mySmallFilesExecutor;
+  private final ExecutorService myPartsExecutor;
+  private final int myMaxTasksInFlight;
+  private final int myMaxSmallFileTasksInFlight;
+  private final long mySmallFileThreshold;
+  private final S3UploadConcurrencyLimiter myConcurrencyLimiter;
+
+  S3UploadScheduler(final int workers, final int queueSize, final long smallFileThreshold, @Nullable final S3AdaptiveConcurrency concurrency) {
+    final int smallFileWorkers = workers > 1 ? Math.max(1, workers / 4) : 0;
+    final int largeFileWorkers = workers - smallFileWorkers;
+    myUploadExecutor = Executors.newFixedThreadPool(largeFileWorkers, new NamedThreadFactory("S3 artifacts upload"));
+    mySmallFilesExecutor = smallFileWorkers > 0
+                           ? Executors.newFixedThreadPool(smallFileWorkers, new NamedThreadFactory("S3 small artifacts upload"))
+                           : myUploadExecutor;
+    myPartsExecutor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("S3 artifacts multipart upload"));
+    myMaxTasksInFlight = largeFileWorkers + queueSize;
+    myMaxSmallFileTasksInFlight = smallFileWorkers + queueSize;
+    mySmallFileThreshold = smallFileThreshold;
+    myConcurrencyLimiter = new S3UploadConcurrencyLimiter(concurrency, workers);
+  }
+
+  @NotNull
+  static S3UploadScheduler create(@NotNull final AgentRunningBuild build) {
+    final Map<String, String> configParameters = build.getSharedConfigParameters();
+    final int threads = S3Util.getUploadThreads(configParameters);
+    if (S3Util.isAdaptiveConcurrencyEnabled(configParameters)) {
+      final int maxConcurrency = S3Util.getAdaptiveConcurrencyMax(configParameters);
+      return new S3UploadScheduler(maxConcurrency,
+                                   S3Util.getUploadQueueSize(configParameters),
+                                   S3Util.getUploadSmallFileThreshold(configParameters),
+                                   new S3AdaptiveConcurrency(threads, 1, maxConcurrency, S3_ADAPTIVE_CONCURRENCY_WINDOW_MS));
+    }
+    return new S3UploadScheduler(threads,
+                                 S3Util.getUploadQueueSize(configParameters),
+                                 S3Util.getUploadSmallFileThreshold(configParameters),
+                                 null);
+  }
+
+  @NotNull
+  ExecutorService getPartsExecutor() {
+    return myPartsExecutor;
+  }
+
+  @NotNull
+  S3UploadConcurrencyLimiter getConcurrencyLimiter() {
+    return myConcurrencyLimiter;
+  }
+
+  /**
+   * Orders the files largest first, the order in which {@link #executeAll} starts their uploads.
+   *
+   * @return sizes of the files, read once, in the upload order
+   */
+  @NotNull
+  static LinkedHashMap<File, Long> largestFirst(@NotNull final Collection<File> files) {
+    final List<FileWithSize> sized = new ArrayList<FileWithSize>(files.size());
+    for (File file : files) {
+      sized.add(new FileWithSize(file));
+    }
+    Collections.sort(sized);
+    final LinkedHashMap<File, Long> result = new LinkedHashMap<File, Long>();
+    for (FileWithSize file : sized) {
+      result.put(file.myFile, file.mySize);
+    }
+    return result;
+  }
+
+  /**
+   * Uploads the files using tasks created by the factory and waits for all of them to finish.
+   *
+   * @param files files with their sizes as returned by {@link #largestFirst}
+   * @return errors of the failed tasks
+   */
+  @NotNull
+  List<Throwable> executeAll(@NotNull final Map<File, Long> files, @NotNull final Converter<Callable<Void>, File> taskFactory) throws InterruptedException {
+    final List<File> largeFiles = new ArrayList<File>();
+    final List<File> smallFiles = new ArrayList<File>();
+    for (Map.Entry<File, Long> entry : files.entrySet()) {
+      (entry.getValue() < mySmallFileThreshold ? smallFiles : largeFiles).add(entry.getKey());
+    }
+
+    final BlockingQueue<Future<Void>> completed = new LinkedBlockingQueue<Future<Void>>();
+    final Lane large = new Lane(myUploadExecutor, completed, largeFiles.iterator(), taskFactory, myMaxTasksInFlight);
+    final Lane small = new Lane(mySmallFilesExecutor, completed, smallFiles.iterator(), taskFactory, myMaxSmallFileTasksInFlight);
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    try {
+      large.fill();
+      small.fill();
+      while (large.myInFlight.size() + small.myInFlight.size() > 0) {
+        final Future<Void> future = completed.take();
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          errors.add(e.getCause());
+        }
+        if (large.myInFlight.remove(future)) {
+          large.fill();
+        } else if (small.myInFlight.remove(future)) {
+          small.fill();
+        }
+      }
+      return errors;
+    } catch (InterruptedException e) {
+      large.cancel();
+      small.cancel();
+      throw e;
+    }
+  }
+
+  void shutdown() {
+    myUploadExecutor.shutdownNow();
+    mySmallFilesExecutor.shutdownNow();
+    myPartsExecutor.shutdownNow();
+  }
+
+  private static final class Lane {
+    private final CompletionService<Void> myCompletionService;
+    private final Iterator<File> myFiles;
+    private final Converter<Callable<Void>, File> myTaskFactory;
+    private final int myMaxInFlight;
+    private final Set<Future<Void>> myInFlight = new HashSet<Future<Void>>();
+
+    private Lane(@NotNull final Executor executor,
+                 @NotNull final BlockingQueue<Future<Void>> completed,
+                 @NotNull final Iterator<File> files,
+                 @NotNull final Converter<Callable<Void>, File> taskFactory,
+                 final int maxInFlight) {
+      myCompletionService = new ExecutorCompletionService<Void>(executor, completed);
+      myFiles = files;
+      myTaskFactory = taskFactory;
+      myMaxInFlight = maxInFlight;
+    }
+
+    private void fill() {
+      while (myInFlight.size() < myMaxInFlight && myFiles.hasNext()) {
+        myInFlight.add(myCompletionService.submit(myTaskFactory.createFrom(myFiles.next())));
+      }
+    }
+
+    private void cancel() {
+      for (Future<Void> future : myInFlight) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private static final class FileWithSize implements Comparable<FileWithSize> {
+    private final File myFile;
+    private final long mySize;
+
+    private FileWithSize(@NotNull final File file) {
+      myFile = file;
+      mySize = file.length();
+    }
+
+    @Override
+    public int compareTo(@NotNull final FileWithSize other) {
+      return mySize > other.mySize ? -1 : (mySize == other.mySize ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.event.SyncProgressListener;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.s3.S3TokenBucket;
+import jetbrains.buildServer.artifacts.s3.S3Util;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Limits the upload rate of a build to its own limit and to the limit of the agent, whichever is lower.
+ * <p>
+ * The uploading threads take the bytes from the token buckets before sending them and sleep when the buckets are empty.
+ * The agent bucket outlives the builds, the build one is created for every build.
+ */
+final class S3UploadThrottle {
+  private final S3TokenBucket myAgentBucket;
+  private final S3TokenBucket myBuildBucket;
+  private final AtomicLong myBytesSent = new AtomicLong();
+
+  private S3UploadThrottle(@Nullable final S3TokenBucket agentBucket, @Nullable final S3TokenBucket buildBucket) {
+    myAgentBucket = agentBucket;
+    myBuildBucket = buildBucket;
+  }
+
+  /**
+   * @return throttle of the build or null if its uploads are not limited
+   */
+  @Nullable
+  static S3UploadThrottle create(@Nullable final S3TokenBucket agentBucket, @NotNull final AgentRunningBuild build) {
+    final long buildLimit = S3Util.getBuildBandwidthLimit(build.getSharedConfigParameters());
+    final S3TokenBucket buildBucket = buildLimit > 0 ? new S3TokenBucket(buildLimit, System.nanoTime()) : null;
+    return agentBucket != null || buildBucket != null ? new S3UploadThrottle(agentBucket, buildBucket) : null;
+  }
+
+  /**
+   * @return the effective limit in bytes per second
+   */
+  long getBytesPerSecond() {
+    if (myAgentBucket == null) return myBuildBucket.getBytesPerSecond();
+    if (myBuildBucket == null) return myAgentBucket.getBytesPerSecond();
+    return Math.min(myAgentBucket.getBytesPerSecond(), myBuildBucket.getBytesPerSecond());
+  }
+
+  long getBytesSent() {
+    return myBytesSent.get();
+  }
+
+  /**
+   * Waits until the bytes may be sent.
+   */
+  void acquire(final long bytes) throws InterruptedIOException {
+    final long now = System.nanoTime();
+    final long agentWait = myAgentBucket != null ? myAgentBucket.take(bytes, now) : 0;
+    final long buildWait = myBuildBucket != null ? myBuildBucket.take(bytes, now) : 0;
+    myBytesSent.addAndGet(bytes);
+    final long wait = Math.max(agentWait, buildWait);
+    if (wait > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the upload bandwidth");
+      }
+    }
+  }
+
+  /**
+   * @return listener throttling the SDK uploads, its events are delivered in the thread reading the uploaded content
+   */
+  @NotNull
+  ProgressListener asProgressListener() {
+    return new SyncProgressListener() {
+      @Override
+      public void progressChanged(final ProgressEvent progressEvent) {
+        if (progressEvent.getEventType() != ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT) return;
+        try {
+          acquire(progressEvent.getBytesTransferred());
+        } catch (InterruptedIOException ignored) {
+          // the interrupted flag is restored, the upload is being cancelled
+        }
+      }
+    };
+  }
+}
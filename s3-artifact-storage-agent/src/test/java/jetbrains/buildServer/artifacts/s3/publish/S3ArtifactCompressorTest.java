@@ -0,0 +1,70 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactPacks;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class S3ArtifactCompressorTest {
+  private File myDirectory;
+  private File myTextFile;
+  private S3ArtifactCompressor myCompressor;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myDirectory = FileUtil.createTempDirectory("compressor", "");
+    myTextFile = new File(myDirectory, "report.txt");
+    final StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      content.append("line ").append(i).append('\n');
+    }
+    FileUtil.writeFileAndReportErrors(myTextFile, content.toString());
+    final Map<String, String> configParameters = Collections.emptyMap();
+    myCompressor = new S3ArtifactCompressor(configParameters, myDirectory);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myDirectory);
+  }
+
+  public void testCompressesTextArtifact() throws Exception {
+    final File compressed = myCompressor.compress(myTextFile, "reports/report.txt");
+    Assert.assertNotNull(compressed);
+    Assert.assertTrue(compressed.length() < myTextFile.length());
+    Assert.assertTrue(myCompressor.isCompressed(myTextFile));
+  }
+
+  public void testNeverCompressesPack() throws Exception {
+    Assert.assertNull(myCompressor.compress(myTextFile, S3ArtifactPacks.PACKS_PATH + "/1.pack"));
+    Assert.assertFalse(myCompressor.isCompressed(myTextFile));
+  }
+
+  public void testForgetsEncodingOfUncompressedUpload() throws Exception {
+    Assert.assertNotNull(myCompressor.compress(myTextFile, "reports/report.txt"));
+    Assert.assertNull(myCompressor.compress(myTextFile, S3ArtifactPacks.PACKS_PATH + "/1.pack"));
+    Assert.assertFalse(myCompressor.isCompressed(myTextFile));
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class S3ArtifactPathRulesTest {
+  private File myCheckoutDir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myCheckoutDir = FileUtil.createTempDirectory("checkout", "");
+    for (String path : new String[]{"build.log", "out/a.txt", "out/b.log", "out/sub/c.txt", "out/sub/deep/d.txt", "bin/file1.bin", "bin/file12.bin"}) {
+      final File file = new File(myCheckoutDir, path);
+      file.getParentFile().mkdirs();
+      FileUtil.writeFileAndReportErrors(file, path);
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myCheckoutDir);
+  }
+
+  public void testDirectoryKeepsRelativePaths() {
+    assertCollected("out", "out/a.txt", "", "out/b.log", "", "out/sub/c.txt", "sub", "out/sub/deep/d.txt", "sub/deep");
+    assertCollected("+:out/ => dist/", "out/a.txt", "dist", "out/b.log", "dist", "out/sub/c.txt", "dist/sub", "out/sub/deep/d.txt", "dist/sub/deep");
+  }
+
+  public void testFile() {
+    assertCollected("build.log", "build.log", "");
+    assertCollected("build.log => logs", "build.log", "logs");
+  }
+
+  public void testStarMatchesWithinDirectory() {
+    assertCollected("out/*.txt => reports", "out/a.txt", "reports");
+  }
+
+  public void testDoubleStarMatchesAnyDirectories() {
+    assertCollected("out/**/*.txt", "out/a.txt", "", "out/sub/c.txt", "sub", "out/sub/deep/d.txt", "sub/deep");
+    assertCollected("**/*.log => logs", "build.log", "logs", "out/b.log", "logs/out");
+    assertCollected("out/sub/** => sub", "out/sub/c.txt", "sub", "out/sub/deep/d.txt", "sub/deep");
+  }
+
+  public void testQuestionMarkMatchesSingleCharacter() {
+    assertCollected("bin/file?.bin", "bin/file1.bin", "");
+  }
+
+  public void testSeveralRules() {
+    assertCollected("build.log\n+:out/*.log => logs, bin/file1?.bin", "build.log", "", "out/b.log", "logs", "bin/file12.bin", "");
+  }
+
+  public void testSkipsUnsupportedRules() {
+    assertCollected("out => out.zip\nout/a.txt!/x => x\n" + new File(myCheckoutDir, "build.log").getAbsolutePath() + "\nbuild.log => logs",
+                    "build.log", "logs");
+  }
+
+  public void testNothingWithExclusions() {
+    Assert.assertTrue(S3ArtifactPathRules.parse("out\n-:out/sub").isEmpty());
+    Assert.assertTrue(S3ArtifactPathRules.parse(" \n").isEmpty());
+    Assert.assertTrue(S3ArtifactPathRules.parse(null).isEmpty());
+  }
+
+  private void assertCollected(final String rules, final String... expectedPathsAndTargets) {
+    final Map<String, String> expected = new HashMap<String, String>();
+    for (int i = 0; i < expectedPathsAndTargets.length; i += 2) {
+      expected.put(expectedPathsAndTargets[i], expectedPathsAndTargets[i + 1]);
+    }
+    final Map<String, String> actual = new HashMap<String, String>();
+    for (Map.Entry<File, String> entry : S3ArtifactPathRules.parse(rules).collect(myCheckoutDir).entrySet()) {
+      actual.put(FileUtil.toSystemIndependentName(FileUtil.getRelativePath(myCheckoutDir, entry.getKey())), entry.getValue());
+    }
+    Assert.assertEquals(actual, expected, rules);
+  }
+}
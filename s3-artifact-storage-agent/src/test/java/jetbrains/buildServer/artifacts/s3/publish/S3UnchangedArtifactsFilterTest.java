@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.File;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactChecksums;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class S3UnchangedArtifactsFilterTest {
+  // ETags S3 returns for the content uploaded in a single request and in parts of 5 bytes
+  private static final String TEN_BYTES_MD5 = "a925576942e94b2ef57a066101b48876";
+  private static final String TEN_BYTES_SHA_256 = "72399361da6a7754fec986dca5b7cbaf1c810a28ded4abaf56b2106d06cb78b0";
+  private static final String TEN_BYTES_TWO_PARTS_ETAG = "8e18a6d3619b553c27c7028ea9067e05-2";
+  private static final String ELEVEN_BYTES_THREE_PARTS_ETAG = "b9eed0a35d27354142ba9a887da50d29-3";
+
+  private File myDirectory;
+  private File myTenBytes;
+  private File myElevenBytes;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myDirectory = FileUtil.createTempDirectory("unchanged", "");
+    myTenBytes = new File(myDirectory, "ten.txt");
+    FileUtil.writeFileAndReportErrors(myTenBytes, "abcdefghij");
+    myElevenBytes = new File(myDirectory, "eleven.txt");
+    FileUtil.writeFileAndReportErrors(myElevenBytes, "abcdefghijk");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myDirectory);
+  }
+
+  public void testSinglePartEtag() throws Exception {
+    final S3ArtifactChecksums.Digest digest = new S3ArtifactChecksums.Digest();
+    Assert.assertTrue(S3UnchangedArtifactsFilter.matches(myTenBytes, TEN_BYTES_MD5, 5, digest));
+    Assert.assertEquals(digest.getSha256(), TEN_BYTES_SHA_256);
+
+    Assert.assertTrue(matches(myTenBytes, "\"" + TEN_BYTES_MD5 + "\""));
+    Assert.assertTrue(matches(myTenBytes, TEN_BYTES_MD5.toUpperCase()));
+    Assert.assertFalse(matches(myElevenBytes, TEN_BYTES_MD5));
+  }
+
+  public void testMultipartEtagOfExactMultipleOfPartSize() throws Exception {
+    Assert.assertTrue(matches(myTenBytes, TEN_BYTES_TWO_PARTS_ETAG));
+    Assert.assertTrue(matches(myTenBytes, "\"" + TEN_BYTES_TWO_PARTS_ETAG + "\""));
+  }
+
+  public void testMultipartEtagWithRemainder() throws Exception {
+    Assert.assertTrue(matches(myElevenBytes, ELEVEN_BYTES_THREE_PARTS_ETAG));
+    Assert.assertTrue(matches(myElevenBytes, "\"" + ELEVEN_BYTES_THREE_PARTS_ETAG + "\""));
+  }
+
+  public void testMultipartEtagMismatch() throws Exception {
+    // the number of parts doesn't match the file size and the part size
+    Assert.assertFalse(matches(myElevenBytes, TEN_BYTES_TWO_PARTS_ETAG));
+    Assert.assertFalse(S3UnchangedArtifactsFilter.matches(myTenBytes, TEN_BYTES_TWO_PARTS_ETAG, 4, new S3ArtifactChecksums.Digest()));
+    // the number of parts matches, the content doesn't
+    Assert.assertFalse(matches(myTenBytes, ELEVEN_BYTES_THREE_PARTS_ETAG.replace("-3", "-2")));
+    Assert.assertFalse(matches(myTenBytes, TEN_BYTES_MD5 + "-x"));
+  }
+
+  private static boolean matches(final File file, final String etag) throws Exception {
+    return S3UnchangedArtifactsFilter.matches(file, etag, 5, new S3ArtifactChecksums.Digest());
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+import jetbrains.buildServer.artifacts.ArtifactDataInstance;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class S3UploadJournalTest {
+  private static final String PATH_PREFIX = "Project/Build/1/";
+
+  private File myDirectory;
+  private File myJournalFile;
+  private File myUploaded;
+  private File myPending;
+  private File myLarge;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myDirectory = FileUtil.createTempDirectory("journal", "");
+    myJournalFile = new File(myDirectory, "journal/1.journal");
+    myUploaded = createFile("uploaded 100%.txt", "uploaded");
+    myPending = createFile("pending.txt", "pending");
+    myLarge = createFile("large.bin", "0123456789");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myDirectory);
+  }
+
+  public void testUploadedObjectsAreTakenAfterReopen() {
+    final S3UploadJournal journal = S3UploadJournal.open(myJournalFile);
+    journal.objectUploaded(PATH_PREFIX + "libs/" + myUploaded.getName(), myUploaded);
+    journal.close();
+
+    final Map<File, String> filesToPublish = new HashMap<File, String>();
+    filesToPublish.put(myUploaded, "libs");
+    filesToPublish.put(myPending, "libs");
+    final Collection<ArtifactDataInstance> uploaded = S3UploadJournal.open(myJournalFile).takeUploaded(PATH_PREFIX, filesToPublish);
+
+    Assert.assertEquals(uploaded.size(), 1);
+    final ArtifactDataInstance artifact = uploaded.iterator().next();
+    Assert.assertEquals(artifact.getPath(), "libs/" + myUploaded.getName());
+    Assert.assertEquals(artifact.getSize(), myUploaded.length());
+    Assert.assertEquals(filesToPublish, Collections.singletonMap(myPending, "libs"));
+  }
+
+  public void testChangedFileIsNotTaken() {
+    final S3UploadJournal journal = S3UploadJournal.open(myJournalFile);
+    journal.objectUploaded(PATH_PREFIX + myUploaded.getName(), myUploaded);
+    journal.close();
+    Assert.assertTrue(myUploaded.setLastModified(myUploaded.lastModified() - 10000));
+
+    final Map<File, String> filesToPublish = new HashMap<File, String>(Collections.singletonMap(myUploaded, ""));
+    Assert.assertTrue(S3UploadJournal.open(myJournalFile).takeUploaded(PATH_PREFIX, filesToPublish).isEmpty());
+    Assert.assertEquals(filesToPublish.size(), 1);
+  }
+
+  public void testMultipartUploadIsResumedWithSamePartSize() {
+    final String objectKey = PATH_PREFIX + myLarge.getName();
+    final S3UploadJournal journal = S3UploadJournal.open(myJournalFile);
+    journal.multipartUploadStarted(objectKey, myLarge, "upload-1", 5);
+    journal.partUploaded(objectKey, 1, "\"etag-1\"");
+    journal.partUploaded(PATH_PREFIX + "unknown.bin", 1, "\"etag\"");
+    journal.close();
+
+    final S3UploadJournal reopened = S3UploadJournal.open(myJournalFile);
+    final S3UploadJournal.MultipartUpload upload = reopened.getMultipartUpload(objectKey, myLarge, 5);
+    Assert.assertNotNull(upload);
+    Assert.assertEquals(upload.getUploadId(), "upload-1");
+    Assert.assertEquals(upload.getPartEtags(), Collections.singletonMap(1, "\"etag-1\""));
+    Assert.assertNull(reopened.getMultipartUpload(objectKey, myLarge, 6));
+    Assert.assertNull(reopened.getMultipartUpload(PATH_PREFIX + "unknown.bin", myLarge, 5));
+
+    Assert.assertTrue(myLarge.setLastModified(myLarge.lastModified() - 10000));
+    Assert.assertNull(reopened.getMultipartUpload(objectKey, myLarge, 5));
+  }
+
+  public void testForgottenUploadsAreNotResumed() {
+    final String objectKey = PATH_PREFIX + myLarge.getName();
+    final S3UploadJournal journal = S3UploadJournal.open(myJournalFile);
+    journal.multipartUploadStarted(objectKey, myLarge, "upload-1", 5);
+    journal.transferStarted(PATH_PREFIX + myPending.getName(), myPending);
+    journal.objectUploaded(PATH_PREFIX + myUploaded.getName(), myUploaded);
+    journal.forget(objectKey);
+    journal.forget(PATH_PREFIX + myPending.getName());
+    journal.forget(PATH_PREFIX + myUploaded.getName());
+    Assert.assertNull(journal.getMultipartUpload(objectKey, myLarge, 5));
+    journal.close();
+
+    final S3UploadJournal reopened = S3UploadJournal.open(myJournalFile);
+    Assert.assertNull(reopened.getMultipartUpload(objectKey, myLarge, 5));
+    Assert.assertFalse(reopened.hasTransfer(PATH_PREFIX + myPending.getName(), myPending));
+    Assert.assertTrue(reopened.takeUploaded(PATH_PREFIX, new HashMap<File, String>(Collections.singletonMap(myUploaded, ""))).isEmpty());
+  }
+
+  public void testTruncatedLastRecordIsSkipped() throws Exception {
+    final String objectKey = PATH_PREFIX + myLarge.getName();
+    final S3UploadJournal journal = S3UploadJournal.open(myJournalFile);
+    journal.multipartUploadStarted(objectKey, myLarge, "upload-1", 5);
+    journal.partUploaded(objectKey, 1, "etag-1");
+    journal.transferStarted(PATH_PREFIX + myPending.getName(), myPending);
+    journal.close();
+
+    // the agent was stopped in the middle of an escape sequence of the next part record
+    final FileOutputStream output = new FileOutputStream(myJournalFile, true);
+    try {
+      output.write(("P\t" + objectKey.replace("/", "%2F") + "\t2\tetag%2").getBytes("UTF-8"));
+    } finally {
+      output.close();
+    }
+
+    final S3UploadJournal reopened = S3UploadJournal.open(myJournalFile);
+    final S3UploadJournal.MultipartUpload upload = reopened.getMultipartUpload(objectKey, myLarge, 5);
+    Assert.assertNotNull(upload);
+    Assert.assertEquals(upload.getPartEtags(), Collections.singletonMap(1, "etag-1"));
+    Assert.assertTrue(reopened.hasTransfer(PATH_PREFIX + myPending.getName(), myPending));
+
+    // the journal goes on after the skipped record
+    reopened.partUploaded(objectKey, 2, "etag-2");
+    reopened.close();
+    final Map<Integer, String> expected = new TreeMap<Integer, String>();
+    expected.put(1, "etag-1");
+    expected.put(2, "etag-2");
+    Assert.assertEquals(S3UploadJournal.open(myJournalFile).getMultipartUpload(objectKey, myLarge, 5).getPartEtags(), expected);
+  }
+
+  private File createFile(final String name, final String content) throws Exception {
+    final File file = new File(myDirectory, name);
+    FileUtil.writeFileAndReportErrors(file, content);
+    return file;
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+/**
+ * Picks the number of concurrent upload requests with additive increase and multiplicative decrease.
+ * <p>
+ * The completed requests are accounted in windows. After a window the limit grows by one while the aggregate
+ * throughput keeps improving, is halved when S3 throttles the requests or they time out, and is cut by a quarter
+ * when the time to send a byte grows twice above the best one seen, which means the requests only queue up.
+ * The time per byte is measured on large requests only, small ones are dominated by the request overhead.
+ * An increase which didn't improve the throughput is taken back, and the limit is held for a few windows before probing again.
+ */
+public final class S3AdaptiveConcurrency {
+  static final int HOLD_WINDOWS = 5;
+  private static final double MIN_IMPROVEMENT = 1.05;
+  private static final double MAX_LATENCY_GROWTH = 2;
+  private static final long LATENCY_MIN_BYTES = 1024 * 1024;
+
+  private final int myMinLimit;
+  private final int myMaxLimit;
+  private final long myWindowMs;
+
+  private int myLimit;
+  private int myHoldWindows;
+  private boolean myIncreased;
+  private double myLastThroughput;
+  private double myBestLatency = Double.MAX_VALUE;
+
+  private long myWindowStart = -1;
+  private long myWindowBytes;
+  private long myWindowLatencyMs;
+  private long myWindowLatencyBytes;
+  private boolean myWindowThrottled;
+
+  public S3AdaptiveConcurrency(final int initialLimit, final int minLimit, final int maxLimit, final long windowMs) {
+    myMinLimit = Math.max(1, minLimit);
+    myMaxLimit = Math.max(myMinLimit, maxLimit);
+    myLimit = Math.min(myMaxLimit, Math.max(myMinLimit, initialLimit));
+    myWindowMs = windowMs;
+  }
+
+  public synchronized int getLimit() {
+    return myLimit;
+  }
+
+  /**
+   * @param now       current time in milliseconds
+   * @param bytes     number of bytes sent by the request
+   * @param latencyMs duration of the request
+   */
+  public synchronized void requestCompleted(final long now, final long bytes, final long latencyMs) {
+    startWindow(now);
+    myWindowBytes += bytes;
+    if (bytes >= LATENCY_MIN_BYTES) {
+      myWindowLatencyMs += latencyMs;
+      myWindowLatencyBytes += bytes;
+    }
+    completeWindow(now);
+  }
+
+  /**
+   * Reports a request rejected with {@code 503 Slow Down} or timed out.
+   */
+  public synchronized void requestThrottled(final long now) {
+    startWindow(now);
+    myWindowThrottled = true;
+    completeWindow(now);
+  }
+
+  private void startWindow(final long now) {
+    if (myWindowStart < 0) {
+      myWindowStart = now;
+    }
+  }
+
+  private void completeWindow(final long now) {
+    final long duration = now - myWindowStart;
+    if (duration < myWindowMs) return;
+
+    if (myWindowThrottled) {
+      decrease(myLimit / 2);
+    } else if (myWindowBytes > 0) {
+      final double throughput = (double)myWindowBytes / duration;
+      final double latency = myWindowLatencyBytes > 0 ? (double)myWindowLatencyMs / myWindowLatencyBytes : Double.MAX_VALUE;
+      myBestLatency = Math.min(myBestLatency, latency);
+      if (myHoldWindows > 0) {
+        if (--myHoldWindows == 0) {
+          // probe with one more request whatever the throughput is now
+          myLastThroughput = 0;
+        }
+      } else if (latency != Double.MAX_VALUE && latency > myBestLatency * MAX_LATENCY_GROWTH) {
+        decrease(myLimit - myLimit / 4);
+      } else if (throughput >= myLastThroughput * MIN_IMPROVEMENT) {
+        myIncreased = myLimit < myMaxLimit;
+        myLimit = Math.min(myMaxLimit, myLimit + 1);
+        myLastThroughput = throughput;
+      } else {
+        if (myIncreased) {
+          // the last request added didn't help
+          myLimit = Math.max(myMinLimit, myLimit - 1);
+        }
+        myIncreased = false;
+        myHoldWindows = HOLD_WINDOWS;
+      }
+    }
+
+    myWindowStart = now;
+    myWindowBytes = 0;
+    myWindowLatencyMs = 0;
+    myWindowLatencyBytes = 0;
+    myWindowThrottled = false;
+  }
+
+  private void decrease(final int limit) {
+    myLimit = Math.max(myMinLimit, limit);
+    myHoldWindows = HOLD_WINDOWS;
+    myIncreased = false;
+  }
+}
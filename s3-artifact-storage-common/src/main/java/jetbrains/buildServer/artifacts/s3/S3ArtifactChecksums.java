@@ -0,0 +1,130 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_SHA256_ATTR;
+
+/**
+ * Checksums of uploaded artifacts.
+ * <p>
+ * The checksums are computed while the content is sent, the MD5 is compared with the ETag returned by S3
+ * and the SHA-256 is kept in the index stored in a single artifact list common property.
+ */
+public final class S3ArtifactChecksums {
+  public static final String SERVER_SIDE_ENCRYPTION_HEADER = "x-amz-server-side-encryption";
+
+  private static final Pattern SHA_256 = Pattern.compile("[0-9a-f]{64}");
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private S3ArtifactChecksums() {
+  }
+
+  /**
+   * @return hex encoded SHA-256 of the artifact content or null if it was not recorded
+   */
+  @Nullable
+  public static String getSha256(@NotNull final Map<String, String> commonProperties, @NotNull final String artifactPath) {
+    final String sha256 = S3ArtifactIndex.get(commonProperties.get(S3_SHA256_ATTR), artifactPath);
+    return sha256 != null && SHA_256.matcher(sha256).matches() ? sha256 : null;
+  }
+
+  /**
+   * ETag of an object uploaded in a single request or of an uploaded part is the MD5 of the content,
+   * unless the object is encrypted with KMS or a customer key.
+   *
+   * @param serverSideEncryption value of the {@code x-amz-server-side-encryption} response header
+   * @return false if the ETag is known to differ from the content MD5
+   */
+  public static boolean matchesEtag(@Nullable final String etag, @Nullable final String serverSideEncryption, @NotNull final String md5) {
+    if (etag == null || (serverSideEncryption != null && !"AES256".equals(serverSideEncryption.trim()))) return true;
+    String value = etag.trim();
+    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+      value = value.substring(1, value.length() - 1);
+    }
+    return value.contains("-") || value.equalsIgnoreCase(md5);
+  }
+
+  @NotNull
+  public static String toHex(@NotNull final byte[] bytes) {
+    final char[] result = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      result[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+      result[2 * i + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(result);
+  }
+
+  /**
+   * Computes MD5 and SHA-256 of the content in a single pass.
+   */
+  public static final class Digest {
+    private final MessageDigest myMd5;
+    private final MessageDigest mySha256;
+    private String myMd5Hex;
+    private String mySha256Hex;
+
+    public Digest() {
+      try {
+        myMd5 = MessageDigest.getInstance("MD5");
+        mySha256 = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    public void update(@NotNull final byte[] buffer, final int offset, final int length) {
+      myMd5.update(buffer, offset, length);
+      mySha256.update(buffer, offset, length);
+    }
+
+    public void reset() {
+      myMd5.reset();
+      mySha256.reset();
+      myMd5Hex = null;
+      mySha256Hex = null;
+    }
+
+    /**
+     * @return hex encoded MD5 of the content, completes the digest
+     */
+    @NotNull
+    public String getMd5() {
+      if (myMd5Hex == null) {
+        myMd5Hex = toHex(myMd5.digest());
+      }
+      return myMd5Hex;
+    }
+
+    /**
+     * @return hex encoded SHA-256 of the content, completes the digest
+     */
+    @NotNull
+    public String getSha256() {
+      if (mySha256Hex == null) {
+        mySha256Hex = toHex(mySha256.digest());
+      }
+      return mySha256Hex;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compact encoding of per-artifact values kept in a single artifact list common property.
+ * <p>
+ * Every line of the index holds a value and an artifact path separated by a space, like the output of {@code sha256sum},
+ * so the values must not contain spaces or line breaks. A value is looked up by searching the encoded index,
+ * without parsing it into a map.
+ */
+public final class S3ArtifactIndex {
+  private static final char VALUE_SEPARATOR = ' ';
+  private static final char LINE_SEPARATOR = '\n';
+
+  private S3ArtifactIndex() {
+  }
+
+  /**
+   * @param values values by artifact path
+   */
+  @NotNull
+  public static String encode(@NotNull final Map<String, String> values) {
+    final StringBuilder result = new StringBuilder();
+    for (Map.Entry<String, String> entry : new TreeMap<String, String>(values).entrySet()) {
+      result.append(entry.getValue()).append(VALUE_SEPARATOR).append(entry.getKey()).append(LINE_SEPARATOR);
+    }
+    return result.toString();
+  }
+
+  /**
+   * @return value of the artifact or null if the index has no value for it
+   */
+  @Nullable
+  public static String get(@Nullable final String index, @NotNull final String artifactPath) {
+    if (index == null) return null;
+    final String suffix = VALUE_SEPARATOR + artifactPath + LINE_SEPARATOR;
+    int found = index.indexOf(suffix);
+    while (found >= 0) {
+      // the path itself may contain spaces, the value ends at the first space of the line
+      final int lineStart = index.lastIndexOf(LINE_SEPARATOR, found - 1) + 1;
+      if (found > lineStart && index.indexOf(VALUE_SEPARATOR, lineStart) == found) {
+        return index.substring(lineStart, found);
+      }
+      found = index.indexOf(suffix, found + 1);
+    }
+    return null;
+  }
+
+  /**
+   * @return values by artifact path in the order of the index
+   */
+  @NotNull
+  public static Map<String, String> decode(@Nullable final String index) {
+    final Map<String, String> result = new LinkedHashMap<String, String>();
+    if (index == null) return result;
+    int lineStart = 0;
+    while (lineStart < index.length()) {
+      int lineEnd = index.indexOf(LINE_SEPARATOR, lineStart);
+      if (lineEnd < 0) {
+        lineEnd = index.length();
+      }
+      final int separator = index.indexOf(VALUE_SEPARATOR, lineStart);
+      if (separator > lineStart && separator < lineEnd - 1) {
+        result.put(index.substring(separator + 1, lineEnd), index.substring(lineStart, separator));
+      }
+      lineStart = lineEnd + 1;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_PACK_INDEX_ATTR_PREFIX;
+
+/**
+ * Index of artifacts packed into larger S3 objects.
+ * <p>
+ * When packing is enabled the agent concatenates small artifacts into pack objects stored under {@link #PACKS_PATH}.
+ * Every pack has a single artifact list common property holding the offsets of its artifacts as an {@link S3ArtifactIndex},
+ * the length of a packed artifact is its size, so the server reads it as a range of the pack object.
+ */
+public final class S3ArtifactPacks {
+  public static final String PACKS_PATH = ".teamcity/s3/packs";
+
+  private S3ArtifactPacks() {
+  }
+
+  public static boolean isPackPath(@NotNull final String artifactPath) {
+    return artifactPath.startsWith(PACKS_PATH + "/");
+  }
+
+  @NotNull
+  public static String getPropertyName(@NotNull final String packPath) {
+    return S3_PACK_INDEX_ATTR_PREFIX + packPath;
+  }
+
+  /**
+   * @param offsets offsets of the packed artifacts by artifact path
+   */
+  @NotNull
+  public static String getPropertyValue(@NotNull final Map<String, Long> offsets) {
+    final Map<String, String> values = new HashMap<String, String>();
+    for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+      values.put(entry.getKey(), String.valueOf(entry.getValue()));
+    }
+    return S3ArtifactIndex.encode(values);
+  }
+
+  /**
+   * @return location of the artifact inside its pack or null if the artifact is stored as a separate object
+   */
+  @Nullable
+  public static PackedArtifact getPackedArtifact(@NotNull final Map<String, String> commonProperties, @NotNull final String artifactPath) {
+    for (Map.Entry<String, String> entry : commonProperties.entrySet()) {
+      if (!entry.getKey().startsWith(S3_PACK_INDEX_ATTR_PREFIX)) continue;
+      final String offset = S3ArtifactIndex.get(entry.getValue(), artifactPath);
+      if (offset != null) {
+        return parse(entry.getKey().substring(S3_PACK_INDEX_ATTR_PREFIX.length()), offset);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return paths of the packed artifacts grouped by the pack path
+   */
+  @NotNull
+  public static Map<String, List<String>> getPackedArtifacts(@NotNull final Map<String, String> commonProperties) {
+    final Map<String, List<String>> result = new HashMap<String, List<String>>();
+    for (Map.Entry<String, String> entry : commonProperties.entrySet()) {
+      if (!entry.getKey().startsWith(S3_PACK_INDEX_ATTR_PREFIX)) continue;
+      final String packPath = entry.getKey().substring(S3_PACK_INDEX_ATTR_PREFIX.length());
+      final List<String> artifacts = new ArrayList<String>();
+      for (Map.Entry<String, String> artifact : S3ArtifactIndex.decode(entry.getValue()).entrySet()) {
+        if (parse(packPath, artifact.getValue()) != null) {
+          artifacts.add(artifact.getKey());
+        }
+      }
+      if (!artifacts.isEmpty()) {
+        result.put(packPath, artifacts);
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private static PackedArtifact parse(@NotNull final String packPath, @NotNull final String offset) {
+    if (packPath.isEmpty()) return null;
+    try {
+      final long value = Long.parseLong(offset);
+      return value >= 0 ? new PackedArtifact(packPath, value) : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  public static final class PackedArtifact {
+    private final String myPackPath;
+    private final long myOffset;
+
+    private PackedArtifact(@NotNull final String packPath, final long offset) {
+      myPackPath = packPath;
+      myOffset = offset;
+    }
+
+    @NotNull
+    public String getPackPath() {
+      return myPackPath;
+    }
+
+    public long getOffset() {
+      return myOffset;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps S3 clients created for storage settings so that their connection pools, TLS sessions and
+ * credential providers are reused between calls.
+ * <p>
+ * Clients are keyed by the full set of storage settings together with the fingerprint of the trusted certificates directory,
+ * so changed settings or certificates result in a new client. Clients which are not used for the idle timeout are shut down.
+ * <p>
+ * A client is created outside of the cache lock, the callers asking for the same settings meanwhile wait for it.
+ * The fingerprint of the certificates directory is rescanned at most every {@link #CERTIFICATES_FINGERPRINT_TTL_MS}.
+ */
+final class S3ClientCache {
+  private static final Logger LOG = Logger.getInstance(S3ClientCache.class.getName());
+  private static final String CERTIFICATES_FINGERPRINT_KEY = "teamcity.internal.storage.s3.certificates.fingerprint";
+  static final long CERTIFICATES_FINGERPRINT_TTL_MS = 10 * 1000;
+
+  private final Map<Map<String, String>, CachedClient> myClients = new HashMap<Map<String, String>, CachedClient>();
+  private final ConcurrentMap<String, CertificatesFingerprint> myFingerprints = new ConcurrentHashMap<String, CertificatesFingerprint>();
+  private long myLastEvictionTime = System.currentTimeMillis();
+
+  static boolean isEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(S3Constants.S3_CLIENT_CACHE_ENABLED);
+  }
+
+  @NotNull
+  Lease acquire(@NotNull final Map<String, String> params, @NotNull final ClientFactory factory) {
+    return acquire(params, factory, System.currentTimeMillis());
+  }
+
+  @NotNull
+  Lease acquire(@NotNull final Map<String, String> params, @NotNull final ClientFactory factory, final long now) {
+    final Map<String, String> key = new TreeMap<String, String>(params);
+    key.put(CERTIFICATES_FINGERPRINT_KEY, getCertificatesFingerprint(params.get(AWSCommonParams.SSL_CERT_DIRECTORY_PARAM), now));
+
+    final CachedClient cachedClient;
+    boolean created = false;
+    synchronized (this) {
+      evictIdleClients(now);
+      CachedClient existing = myClients.get(key);
+      if (existing == null) {
+        existing = new CachedClient(factory, params);
+        myClients.put(key, existing);
+        created = true;
+      }
+      existing.myUsages++;
+      cachedClient = existing;
+    }
+
+    if (created) {
+      cachedClient.myClient.run();
+    }
+    try {
+      cachedClient.getClient();
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        cachedClient.myUsages--;
+        if (myClients.get(key) == cachedClient) {
+          myClients.remove(key);
+        }
+      }
+      throw e;
+    }
+    return new Lease(cachedClient);
+  }
+
+  private synchronized void release(@NotNull final CachedClient cachedClient) {
+    cachedClient.myUsages--;
+    cachedClient.myLastAccessTime = System.currentTimeMillis();
+  }
+
+  private void evictIdleClients(final long now) {
+    final long idleTimeout = TeamCityProperties.getInteger(S3Constants.S3_CLIENT_CACHE_IDLE_TIMEOUT_SEC, S3Constants.DEFAULT_S3_CLIENT_CACHE_IDLE_TIMEOUT_SEC) * 1000L;
+    if (now - myLastEvictionTime < idleTimeout / 2) return;
+    myLastEvictionTime = now;
+
+    final Iterator<CachedClient> iterator = myClients.values().iterator();
+    while (iterator.hasNext()) {
+      final CachedClient cachedClient = iterator.next();
+      if (cachedClient.myUsages == 0 && now - cachedClient.myLastAccessTime > idleTimeout) {
+        iterator.remove();
+        shutdown(cachedClient);
+      }
+    }
+  }
+
+  @NotNull
+  private String getCertificatesFingerprint(@Nullable final String directory, final long now) {
+    if (directory == null) return "";
+    CertificatesFingerprint fingerprint = myFingerprints.get(directory);
+    if (fingerprint == null || now - fingerprint.myTime > CERTIFICATES_FINGERPRINT_TTL_MS || now < fingerprint.myTime) {
+      fingerprint = new CertificatesFingerprint(TrustedCertificatesCache.getFingerprint(directory), now);
+      myFingerprints.put(directory, fingerprint);
+    }
+    return fingerprint.myValue;
+  }
+
+  private static void shutdown(@NotNull final CachedClient cachedClient) {
+    try {
+      cachedClient.getClient().shutdown();
+    } catch (Exception e) {
+      LOG.debug("Got exception while shutting down S3 client", e);
+    }
+  }
+
+  interface ClientFactory {
+    @NotNull
+    AmazonS3 createClient(@NotNull Map<String, String> params);
+  }
+
+  private static final class CachedClient {
+    private final FutureTask<AmazonS3> myClient;
+    private int myUsages;
+    private long myLastAccessTime = System.currentTimeMillis();
+
+    private CachedClient(@NotNull final ClientFactory factory, @NotNull final Map<String, String> params) {
+      myClient = new FutureTask<AmazonS3>(new Callable<AmazonS3>() {
+        @Override
+        public AmazonS3 call() {
+          return factory.createClient(params);
+        }
+      });
+    }
+
+    @NotNull
+    private AmazonS3 getClient() {
+      boolean interrupted = false;
+      try {
+        while (true) {
+          try {
+            return myClient.get();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IllegalStateException("Failed to create S3 client", cause);
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  private static final class CertificatesFingerprint {
+    private final String myValue;
+    private final long myTime;
+
+    private CertificatesFingerprint(@NotNull final String value, final long time) {
+      myValue = value;
+      myTime = time;
+    }
+  }
+
+  final class Lease {
+    private final CachedClient myCachedClient;
+
+    private Lease(@NotNull final CachedClient cachedClient) {
+      myCachedClient = cachedClient;
+    }
+
+    @NotNull
+    AmazonS3 getClient() {
+      return myCachedClient.getClient();
+    }
+
+    void release() {
+      S3ClientCache.this.release(myCachedClient);
+    }
+  }
+}
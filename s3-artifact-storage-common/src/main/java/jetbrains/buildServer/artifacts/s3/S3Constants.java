@@ -29,18 +29,96 @@ public class S3Constants {
   public static final String S3_SETTINGS_PATH = "s3_storage_settings";
 
   public static final String S3_PATH_PREFIX_ATTR = "s3_path_prefix";
+  public static final String S3_PACK_INDEX_ATTR_PREFIX = "s3_pack:";
+  public static final String S3_CONTENT_ADDRESSED_ATTR = "s3_content";
+  public static final String S3_CONTENT_ENCODING_ATTR = "s3_encoding";
+  public static final String S3_SHA256_ATTR = "s3_sha256";
+  public static final String S3_UNCLAIMED_OBJECTS_ATTR = "s3_unclaimed";
 
   public static final String S3_URL_LIFETIME_SEC = "storage.s3.url.expiration.time.seconds";
   public static final String S3_USE_PRE_SIGNED_URL_FOR_UPLOAD = "storage.s3.upload.presignedUrl.enabled";
   public static final String S3_NUMBER_OF_RETRIES_ON_ERROR = "teamcity.internal.storage.s3.upload.numberOfRetries";
   public static final String S3_RETRY_DELAY_MS_ON_ERROR = "teamcity.internal.storage.s3.upload.retryDelayMs";
+  public static final String S3_PRESIGNED_URLS_BATCH_SIZE = "teamcity.internal.storage.s3.upload.presignedUrl.batchSize";
+  public static final String S3_MULTIPART_UPLOAD_THRESHOLD = "teamcity.internal.storage.s3.upload.multipart.threshold";
+  public static final String S3_MULTIPART_UPLOAD_PART_SIZE = "teamcity.internal.storage.s3.upload.multipart.partSize";
+  public static final String S3_UPLOAD_THREADS = "teamcity.internal.storage.s3.upload.threads";
+  public static final String S3_UPLOAD_QUEUE_SIZE = "teamcity.internal.storage.s3.upload.queueSize";
+  public static final String S3_UPLOAD_SMALL_FILE_THRESHOLD = "teamcity.internal.storage.s3.upload.smallFileThreshold";
+  public static final String S3_PACK_ENABLED = "storage.s3.upload.pack.enabled";
+  public static final String S3_PACK_FILE_THRESHOLD = "storage.s3.upload.pack.fileThreshold";
+  public static final String S3_PACK_SIZE = "storage.s3.upload.pack.size";
+  public static final String S3_CONTENT_ADDRESSED_ENABLED = "storage.s3.upload.contentAddressed.enabled";
+  public static final String S3_CONTENT_ADDRESSED_FILE_THRESHOLD = "storage.s3.upload.contentAddressed.fileThreshold";
+  public static final String S3_ARTIFACT_LIST_PUBLISH_INTERVAL_SEC = "teamcity.internal.storage.s3.artifactList.publishIntervalSec";
+  public static final String S3_EAGER_UPLOAD_ENABLED = "storage.s3.upload.eager.enabled";
+  public static final String S3_EAGER_UPLOAD_POLL_INTERVAL_SEC = "storage.s3.upload.eager.pollIntervalSec";
+  public static final String S3_COMPRESSION_ENABLED = "storage.s3.upload.compression.enabled";
+  public static final String S3_COMPRESSION_LEVEL = "storage.s3.upload.compression.level";
+  public static final String S3_COMPRESSION_CONTENT_TYPES = "storage.s3.upload.compression.contentTypes";
+  public static final String S3_SKIP_UNCHANGED_ENABLED = "storage.s3.upload.skipUnchanged.enabled";
+  public static final String S3_UPLOAD_JOURNAL_ENABLED = "storage.s3.upload.journal.enabled";
+  public static final String S3_UPLOAD_BUFFER_SIZE = "storage.s3.upload.bufferSize";
+  public static final String S3_ADAPTIVE_CONCURRENCY_ENABLED = "storage.s3.upload.adaptiveConcurrency.enabled";
+  public static final String S3_ADAPTIVE_CONCURRENCY_MAX = "storage.s3.upload.adaptiveConcurrency.max";
+  public static final String S3_UPLOAD_BANDWIDTH_LIMIT = "storage.s3.upload.bandwidthLimit";
+  public static final String S3_UPLOAD_AGENT_BANDWIDTH_LIMIT = "storage.s3.upload.agentBandwidthLimit";
   public static final String S3_USE_SIGNATURE_V4 = "storage.s3.use.signature.v4";
+  public static final String S3_TRANSFER_MULTIPART_THRESHOLD = "storage.s3.upload.transfer.multipartThreshold";
+  public static final String S3_TRANSFER_PART_SIZE = "storage.s3.upload.transfer.partSize";
+  public static final String S3_TRANSFER_THREADS = "storage.s3.upload.transfer.threads";
+  public static final String S3_TRANSFER_PART_SIZE_AUTO = "auto";
   public static final String S3_CLEANUP_BATCH_SIZE = "storage.s3.cleanup.batchSize";
   public static final String S3_CLEANUP_USE_PARALLEL = "storage.s3.cleanup.useParallel";
+  public static final String S3_CLIENT_CACHE_ENABLED = "teamcity.internal.storage.s3.client.cache.enabled";
+  public static final String S3_CLIENT_CACHE_IDLE_TIMEOUT_SEC = "teamcity.internal.storage.s3.client.cache.idleTimeoutSec";
+  public static final String S3_PRESIGN_THREADS = "teamcity.internal.storage.s3.presignedUrl.threads";
+  public static final String S3_PRESIGN_CHUNK_SIZE = "teamcity.internal.storage.s3.presignedUrl.chunkSize";
+  public static final String S3_PRESIGN_MAX_CHUNKS_PER_REQUEST = "teamcity.internal.storage.s3.presignedUrl.maxChunksPerRequest";
+  public static final String S3_PRESIGN_LOCAL_SIGNER_ENABLED = "teamcity.internal.storage.s3.presignedUrl.localSigner.enabled";
+  public static final String S3_STORED_OBJECTS_MAX_DIRECTORY_LISTINGS = "teamcity.internal.storage.s3.storedObjects.maxDirectoryListings";
 
   public static final int DEFAULT_S3_URL_LIFETIME_SEC = 60;
   public static final int DEFAULT_S3_RETRY_DELAY_ON_ERROR_MS = 1000;
   public static final int DEFAULT_S3_NUMBER_OF_RETRIES_ON_ERROR = 5;
+  public static final int DEFAULT_S3_PRESIGNED_URLS_BATCH_SIZE = 500;
+  public static final int DEFAULT_S3_UPLOAD_THREADS = 10;
+  public static final int DEFAULT_S3_UPLOAD_QUEUE_SIZE = 100;
+  public static final long DEFAULT_S3_UPLOAD_SMALL_FILE_THRESHOLD = 1024 * 1024;
+  public static final long DEFAULT_S3_PACK_FILE_THRESHOLD = 128 * 1024;
+  public static final long DEFAULT_S3_PACK_SIZE = 64L * 1024 * 1024;
+  public static final long DEFAULT_S3_CONTENT_ADDRESSED_FILE_THRESHOLD = 1024 * 1024;
+  public static final int DEFAULT_S3_ARTIFACT_LIST_PUBLISH_INTERVAL_SEC = 10;
+  public static final int DEFAULT_S3_EAGER_UPLOAD_POLL_INTERVAL_SEC = 10;
+  public static final int DEFAULT_S3_COMPRESSION_LEVEL = 6;
+  public static final int DEFAULT_S3_UPLOAD_BUFFER_SIZE = 1024 * 1024;
+  public static final int MIN_S3_UPLOAD_BUFFER_SIZE = 8 * 1024;
+  public static final int MAX_S3_UPLOAD_BUFFER_SIZE = 64 * 1024 * 1024;
+  public static final int DEFAULT_S3_ADAPTIVE_CONCURRENCY_MAX = 64;
+  public static final long S3_ADAPTIVE_CONCURRENCY_WINDOW_MS = 2000;
+  public static final String DEFAULT_S3_COMPRESSION_CONTENT_TYPES = "text/*,application/xml,application/json,application/javascript,image/svg+xml";
+  public static final String GZIP_CONTENT_ENCODING = "gzip";
+  public static final int DEFAULT_S3_CLIENT_CACHE_IDLE_TIMEOUT_SEC = 1800;
+  public static final int DEFAULT_S3_PRESIGN_THREADS = 4;
+  public static final int DEFAULT_S3_PRESIGN_CHUNK_SIZE = 100;
+  public static final int DEFAULT_S3_PRESIGN_MAX_CHUNKS_PER_REQUEST = 2;
+  public static final int DEFAULT_S3_STORED_OBJECTS_MAX_DIRECTORY_LISTINGS = 100;
+  public static final long DEFAULT_S3_MULTIPART_UPLOAD_THRESHOLD = 64L * 1024 * 1024;
+  public static final long DEFAULT_S3_MULTIPART_UPLOAD_PART_SIZE = 16L * 1024 * 1024;
+  public static final long MIN_S3_MULTIPART_UPLOAD_PART_SIZE = 5L * 1024 * 1024;
+  public static final long MAX_S3_MULTIPART_UPLOAD_PART_SIZE = 5L * 1024 * 1024 * 1024;
+  public static final long DEFAULT_S3_TRANSFER_MULTIPART_THRESHOLD = 16L * 1024 * 1024;
+  public static final long DEFAULT_S3_TRANSFER_PART_SIZE = MIN_S3_MULTIPART_UPLOAD_PART_SIZE;
+  public static final int DEFAULT_S3_TRANSFER_THREADS = 10;
+  public static final int S3_TRANSFER_AUTO_PART_DURATION_SEC = 5;
+  public static final int MAX_S3_MULTIPART_UPLOAD_PARTS = 10000;
 
   public static final String ARTEFACTS_S3_UPLOAD_PRESIGN_URLS_HTML = "/artefacts/s3/upload/presign-urls.html";
+  public static final String S3_MULTIPART_UPLOAD_OPERATION = "operation";
+  public static final String S3_MULTIPART_UPLOAD_INITIATE = "multipart-initiate";
+  public static final String S3_MULTIPART_UPLOAD_PRESIGN_PARTS = "multipart-presign";
+  public static final String S3_MULTIPART_UPLOAD_COMPLETE = "multipart-complete";
+  public static final String S3_MULTIPART_UPLOAD_ABORT = "multipart-abort";
+  public static final String S3_CONTENT_ADDRESSED_LOOKUP = "content-addressed-lookup";
+  public static final String S3_STORED_OBJECTS_LOOKUP = "stored-objects-lookup";
 }
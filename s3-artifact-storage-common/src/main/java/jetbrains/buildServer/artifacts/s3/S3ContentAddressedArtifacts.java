@@ -0,0 +1,200 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_CONTENT_ADDRESSED_ATTR;
+
+/**
+ * Layout of artifacts stored by content.
+ * <p>
+ * A content-addressed artifact is stored once per project as {@code teamcity-cas/<project>/<sha256>/<file name>}
+ * and the index kept in a single artifact list common property maps the artifact path to that key.
+ * The content is never shared between projects: knowing the digest of a file must not give a build access to the file of another project.
+ * The project is the first segment of the build path prefix, see {@link #getProjectId}.
+ * Every build referencing the content has an empty marker object {@code teamcity-cas-refs/<project>/<sha256>/<build path prefix>},
+ * the content is deleted together with the last marker. The build also has an empty record {@code teamcity-cas-builds/<build path prefix>/<sha256>}
+ * for every content it registered, so the markers can be found by the build even when it never published them in its artifact list.
+ */
+public final class S3ContentAddressedArtifacts {
+  public static final String OBJECTS_PATH = "teamcity-cas";
+  public static final String REFERENCES_PATH = "teamcity-cas-refs";
+  public static final String BUILDS_PATH = "teamcity-cas-builds";
+
+  private static final Pattern OBJECT_KEY = Pattern.compile(OBJECTS_PATH + "/([^/]+)/([0-9a-f]{64})/[^/]+");
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private S3ContentAddressedArtifacts() {
+  }
+
+  /**
+   * @param pathPrefix S3 path prefix of the build artifacts
+   * @return external id of the project the content of the build is stored for
+   */
+  @NotNull
+  public static String getProjectId(@NotNull final String pathPrefix) {
+    final int index = pathPrefix.indexOf('/');
+    return index < 0 ? pathPrefix : pathPrefix.substring(0, index);
+  }
+
+  @NotNull
+  public static String getObjectKey(@NotNull final String projectId, @NotNull final String digest, @NotNull final String fileName) {
+    return getObjectsPrefix(projectId, digest) + fileName;
+  }
+
+  @NotNull
+  public static String getObjectsPrefix(@NotNull final String projectId, @NotNull final String digest) {
+    return OBJECTS_PATH + "/" + projectId + "/" + digest + "/";
+  }
+
+  /**
+   * @param pathPrefix S3 path prefix of the build artifacts
+   */
+  @NotNull
+  public static String getReferenceKey(@NotNull final String digest, @NotNull final String pathPrefix) {
+    return getReferencesPrefix(getProjectId(pathPrefix), digest) + (pathPrefix.endsWith("/") ? pathPrefix.substring(0, pathPrefix.length() - 1) : pathPrefix);
+  }
+
+  @NotNull
+  public static String getReferencesPrefix(@NotNull final String projectId, @NotNull final String digest) {
+    return REFERENCES_PATH + "/" + projectId + "/" + digest + "/";
+  }
+
+  /**
+   * @param pathPrefix S3 path prefix of the build artifacts
+   */
+  @NotNull
+  public static String getBuildRecordKey(@NotNull final String digest, @NotNull final String pathPrefix) {
+    return getBuildRecordsPrefix(pathPrefix) + digest;
+  }
+
+  /**
+   * @param pathPrefix S3 path prefix of the build artifacts
+   */
+  @NotNull
+  public static String getBuildRecordsPrefix(@NotNull final String pathPrefix) {
+    return BUILDS_PATH + "/" + (pathPrefix.endsWith("/") ? pathPrefix : pathPrefix + "/");
+  }
+
+  /**
+   * @return digest of a content-addressed object key or null if the key has a different layout
+   */
+  @Nullable
+  public static String getDigest(@NotNull final String objectKey) {
+    final Matcher matcher = OBJECT_KEY.matcher(objectKey);
+    return matcher.matches() ? matcher.group(2) : null;
+  }
+
+  /**
+   * @param pathPrefix S3 path prefix of the build artifacts
+   * @return true if the key is a content-addressed object key of the build project
+   */
+  public static boolean isProjectObject(@NotNull final String objectKey, @Nullable final String pathPrefix) {
+    final String digest = getDigest(objectKey);
+    return digest != null && pathPrefix != null && objectKey.startsWith(getObjectsPrefix(getProjectId(pathPrefix), digest));
+  }
+
+  /**
+   * @param objectKeys keys of the content-addressed objects by artifact path
+   * @return value of the artifact list common property
+   */
+  @NotNull
+  public static String encode(@NotNull final Map<String, String> objectKeys) {
+    final Map<String, String> values = new HashMap<String, String>();
+    for (Map.Entry<String, String> entry : objectKeys.entrySet()) {
+      values.put(entry.getKey(), escape(entry.getValue()));
+    }
+    return S3ArtifactIndex.encode(values);
+  }
+
+  /**
+   * @return key of the content-addressed object of the artifact or null if the artifact is stored under the build path prefix
+   */
+  @Nullable
+  public static String getObjectKey(@NotNull final Map<String, String> commonProperties, @NotNull final String artifactPath) {
+    final String value = S3ArtifactIndex.get(commonProperties.get(S3_CONTENT_ADDRESSED_ATTR), artifactPath);
+    if (value == null) return null;
+    final String objectKey = unescape(value);
+    return isProjectObject(objectKey, S3Util.getPathPrefix(commonProperties)) ? objectKey : null;
+  }
+
+  /**
+   * @return keys of the content-addressed objects by artifact path
+   */
+  @NotNull
+  public static Map<String, String> getObjectKeys(@NotNull final Map<String, String> commonProperties) {
+    final Map<String, String> result = new HashMap<String, String>();
+    final String pathPrefix = S3Util.getPathPrefix(commonProperties);
+    for (Map.Entry<String, String> entry : S3ArtifactIndex.decode(commonProperties.get(S3_CONTENT_ADDRESSED_ATTR)).entrySet()) {
+      final String objectKey = unescape(entry.getValue());
+      if (isProjectObject(objectKey, pathPrefix)) {
+        result.put(entry.getKey(), objectKey);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return hex encoded SHA-256 of the file content
+   */
+  @NotNull
+  public static String digest(@NotNull final File file) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    final InputStream input = new FileInputStream(file);
+    try {
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      FileUtil.close(input);
+    }
+    return S3ArtifactChecksums.toHex(digest.digest());
+  }
+
+  /**
+   * Object keys end with the name of the uploaded file, which may contain characters the index doesn't allow in values.
+   */
+  @NotNull
+  private static String escape(@NotNull final String objectKey) {
+    return objectKey.replace("%", "%25").replace(" ", "%20").replace("\r", "%0D").replace("\n", "%0A");
+  }
+
+  @NotNull
+  private static String unescape(@NotNull final String value) {
+    return value.replace("%0A", "\n").replace("%0D", "\r").replace("%20", " ").replace("%25", "%");
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.net.URL;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * State of a multipart upload exchanged between agent and server when uploading with pre-signed URLs.
+ * Depending on the operation only a subset of the fields is filled in.
+ */
+public class S3MultipartUpload {
+  private final String myObjectKey;
+  private final String myUploadId;
+  private final String myContentType;
+  private final SortedMap<Integer, URL> myPartUrls = new TreeMap<Integer, URL>();
+  private final SortedMap<Integer, String> myPartEtags = new TreeMap<Integer, String>();
+
+  public S3MultipartUpload(@NotNull final String objectKey, @Nullable final String uploadId, @Nullable final String contentType) {
+    myObjectKey = objectKey;
+    myUploadId = uploadId;
+    myContentType = contentType;
+  }
+
+  @NotNull
+  public String getObjectKey() {
+    return myObjectKey;
+  }
+
+  @Nullable
+  public String getUploadId() {
+    return myUploadId;
+  }
+
+  @Nullable
+  public String getContentType() {
+    return myContentType;
+  }
+
+  /**
+   * @return part numbers mentioned in this upload, either with an URL, an ETag or none of them
+   */
+  @NotNull
+  public SortedMap<Integer, URL> getPartUrls() {
+    return myPartUrls;
+  }
+
+  @NotNull
+  public SortedMap<Integer, String> getPartEtags() {
+    return myPartEtags;
+  }
+
+  @NotNull
+  public S3MultipartUpload withPart(final int partNumber, @Nullable final URL url, @Nullable final String etag) {
+    myPartUrls.put(partNumber, url);
+    if (etag != null) {
+      myPartEtags.put(partNumber, etag);
+    }
+    return this;
+  }
+
+  @NotNull
+  public S3MultipartUpload withPartEtags(@NotNull final Map<Integer, String> partEtags) {
+    for (Map.Entry<Integer, String> entry : partEtags.entrySet()) {
+      withPart(entry.getKey(), null, entry.getValue());
+    }
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return "multipart upload " + myUploadId + " of " + myObjectKey;
+  }
+}
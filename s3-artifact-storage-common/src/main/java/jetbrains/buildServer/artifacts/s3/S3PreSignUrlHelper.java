@@ -16,15 +16,15 @@
 
 package jetbrains.buildServer.artifacts.s3;
 
-import com.intellij.openapi.util.JDOMUtil;
-import java.io.IOException;
+import java.io.*;
 import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import javax.xml.stream.*;
 import jetbrains.buildServer.util.StringUtil;
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.JDOMException;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Created by Evgeniy Koshkin (evgeniy.koshkin@jetbrains.com) on 21.07.17.
@@ -35,71 +35,374 @@ public class S3PreSignUrlHelper {
   private static final String S3_PRESIGN_URL_MAP_ENTRY = "s3-presign-url-map-entry";
   private static final String S3_PRESIGN_URL_MAPPING = "s3-presign-url-mapping";
   private static final String S3_OBJECT_KEYS = "s3-object-keys";
+  private static final String S3_MULTIPART_UPLOAD = "s3-multipart-upload";
+  private static final String S3_STORED_OBJECTS = "s3-stored-objects";
+  private static final String S3_STORED_OBJECT = "s3-stored-object";
+  private static final String SIZE = "size";
+  private static final String UPLOAD_ID = "upload-id";
+  private static final String CONTENT_TYPE = "content-type";
+  private static final String PART = "part";
+  private static final String PART_NUMBER = "number";
+  private static final String ETAG = "etag";
+  private static final String AMZ_DATE_QUERY_PARAM = "X-Amz-Date";
+  private static final String AMZ_EXPIRES_QUERY_PARAM = "X-Amz-Expires";
+  private static final String EXPIRES_QUERY_PARAM = "Expires";
+  private static final String AMZ_DATE_FORMAT = "yyyyMMdd'T'HHmmss'Z'";
+  private static final String UTF_8 = "UTF-8";
+  private static final String XML_VERSION = "1.0";
+  private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+  private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
 
   @NotNull
   public static Map<String, URL> readPreSignUrlMapping(String data) throws IOException {
-    Document document;
+    return readPreSignUrlMapping(new StringReader(data));
+  }
+
+  @NotNull
+  public static Map<String, URL> readPreSignUrlMapping(@NotNull Reader data) throws IOException {
     try {
-      document = JDOMUtil.loadDocument(data);
-    } catch (JDOMException e) {
+      return readPreSignUrlMapping(XML_INPUT_FACTORY.createXMLStreamReader(data));
+    } catch (XMLStreamException e) {
       return Collections.emptyMap();
     }
-    final Element rootElement = document.getRootElement();
-    if (!rootElement.getName().equals(S3_PRESIGN_URL_MAPPING)) return Collections.emptyMap();
-    final Map<String, URL> result = new HashMap<String, URL>();
-    for (Object mapEntryElement : rootElement.getChildren(S3_PRESIGN_URL_MAP_ENTRY)) {
-      final Element mapEntryElementCasted = (Element)mapEntryElement;
-      final String s3ObjectKey = mapEntryElementCasted.getChild(S3_OBJECT_KEY).getValue();
-      final String preSignUrlString = mapEntryElementCasted.getChild(PRE_SIGN_URL).getValue();
-      result.put(s3ObjectKey, new URL(preSignUrlString));
+  }
+
+  /**
+   * Reads the mapping directly from a stream, the encoding is taken from the XML declaration.
+   */
+  @NotNull
+  public static Map<String, URL> readPreSignUrlMapping(@NotNull InputStream data) throws IOException {
+    try {
+      return readPreSignUrlMapping(XML_INPUT_FACTORY.createXMLStreamReader(data));
+    } catch (XMLStreamException e) {
+      return Collections.emptyMap();
+    }
+  }
+
+  @NotNull
+  private static Map<String, URL> readPreSignUrlMapping(@NotNull XMLStreamReader reader) throws IOException, XMLStreamException {
+    try {
+      if (!moveToRootElement(reader, S3_PRESIGN_URL_MAPPING)) return Collections.emptyMap();
+      final Map<String, URL> result = new HashMap<String, URL>();
+      String s3ObjectKey = null;
+      String preSignUrlString = null;
+      while (reader.hasNext()) {
+        final int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          final String name = reader.getLocalName();
+          if (S3_PRESIGN_URL_MAP_ENTRY.equals(name)) {
+            s3ObjectKey = null;
+            preSignUrlString = null;
+          } else if (S3_OBJECT_KEY.equals(name)) {
+            s3ObjectKey = reader.getElementText();
+          } else if (PRE_SIGN_URL.equals(name)) {
+            preSignUrlString = reader.getElementText();
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT && S3_PRESIGN_URL_MAP_ENTRY.equals(reader.getLocalName())) {
+          if (s3ObjectKey != null && preSignUrlString != null) {
+            result.put(s3ObjectKey, new URL(preSignUrlString));
+          }
+        }
+      }
+      return result;
+    } finally {
+      reader.close();
     }
-    return result;
   }
 
   @NotNull
   public static String writePreSignUrlMapping(@NotNull Map<String, URL> data) {
-    Element rootElement = new Element(S3_PRESIGN_URL_MAPPING);
-    for (String s3ObjectKey : data.keySet()) {
-      URL preSignUrl = data.get(s3ObjectKey);
-      Element mapEntry = new Element(S3_PRESIGN_URL_MAP_ENTRY);
-      Element preSignUrlElement = new Element(PRE_SIGN_URL);
-      preSignUrlElement.addContent(preSignUrl.toString());
-      mapEntry.addContent(preSignUrlElement);
-      Element s3ObjectKeyElement = new Element(S3_OBJECT_KEY);
-      s3ObjectKeyElement.addContent(s3ObjectKey);
-      mapEntry.addContent(s3ObjectKeyElement);
-      rootElement.addContent(mapEntry);
+    final StringWriter result = new StringWriter();
+    try {
+      writePreSignUrlMapping(data, result);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return result.toString();
+  }
+
+  public static void writePreSignUrlMapping(@NotNull Map<String, URL> data, @NotNull Writer output) throws IOException {
+    try {
+      final XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(output);
+      writer.writeStartDocument(UTF_8, XML_VERSION);
+      writer.writeStartElement(S3_PRESIGN_URL_MAPPING);
+      for (Map.Entry<String, URL> entry : data.entrySet()) {
+        writer.writeStartElement(S3_PRESIGN_URL_MAP_ENTRY);
+        writeElement(writer, PRE_SIGN_URL, entry.getValue().toString());
+        writeElement(writer, S3_OBJECT_KEY, entry.getKey());
+        writer.writeEndElement();
+      }
+      writer.writeEndElement();
+      writer.writeEndDocument();
+      writer.flush();
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Failed to write pre-signed URLs mapping: " + e.getMessage(), e);
     }
-    return JDOMUtil.writeDocument(new Document(rootElement), System.getProperty("line.separator"));
   }
 
   @NotNull
   public static Collection<String> readS3ObjectKeys(String data) throws IOException {
-    Document document;
+    return readS3ObjectKeys(new StringReader(data));
+  }
+
+  @NotNull
+  public static Collection<String> readS3ObjectKeys(@NotNull Reader data) throws IOException {
     try {
-      document = JDOMUtil.loadDocument(data);
-    } catch (JDOMException e) {
+      final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(data);
+      try {
+        if (!moveToRootElement(reader, S3_OBJECT_KEYS)) return Collections.emptyList();
+        final Collection<String> result = new HashSet<String>();
+        while (reader.hasNext()) {
+          if (reader.next() == XMLStreamConstants.START_ELEMENT && S3_OBJECT_KEY.equals(reader.getLocalName())) {
+            result.add(reader.getElementText());
+          }
+        }
+        return result;
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
       return Collections.emptyList();
     }
-    Element rootElement = document.getRootElement();
-    if (!rootElement.getName().equals(S3_OBJECT_KEYS)) return Collections.emptyList();
-    Collection<String> result = new HashSet<String>();
-    for (Object element : rootElement.getChildren(S3_OBJECT_KEY)) {
-      Element elementCasted = (Element)element;
-      result.add(elementCasted.getValue());
-    }
-    return result;
   }
 
   @NotNull
   public static String writeS3ObjectKeys(@NotNull Collection<String> s3ObjectKeys) {
-    Element rootElement = new Element(S3_OBJECT_KEYS);
-    for (String s3ObjectKey : s3ObjectKeys) {
-      if (StringUtil.isEmpty(s3ObjectKey)) continue;
-      Element xmlElement = new Element(S3_OBJECT_KEY);
-      xmlElement.addContent(s3ObjectKey);
-      rootElement.addContent(xmlElement);
-    }
-    return JDOMUtil.writeDocument(new Document(rootElement), System.getProperty("line.separator"));
+    final StringWriter result = new StringWriter();
+    try {
+      writeS3ObjectKeys(s3ObjectKeys, result);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return result.toString();
+  }
+
+  public static void writeS3ObjectKeys(@NotNull Collection<String> s3ObjectKeys, @NotNull Writer output) throws IOException {
+    try {
+      final XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(output);
+      writer.writeStartDocument(UTF_8, XML_VERSION);
+      writer.writeStartElement(S3_OBJECT_KEYS);
+      for (String s3ObjectKey : s3ObjectKeys) {
+        if (StringUtil.isEmpty(s3ObjectKey)) continue;
+        writeElement(writer, S3_OBJECT_KEY, s3ObjectKey);
+      }
+      writer.writeEndElement();
+      writer.writeEndDocument();
+      writer.flush();
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Failed to write S3 object keys: " + e.getMessage(), e);
+    }
+  }
+
+  @NotNull
+  public static Collection<S3StoredObject> readStoredObjects(String data) throws IOException {
+    try {
+      final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new StringReader(data));
+      try {
+        if (!moveToRootElement(reader, S3_STORED_OBJECTS)) return Collections.emptyList();
+        final List<S3StoredObject> result = new ArrayList<S3StoredObject>();
+        while (reader.hasNext()) {
+          if (reader.next() == XMLStreamConstants.START_ELEMENT && S3_STORED_OBJECT.equals(reader.getLocalName())) {
+            final String objectKey = reader.getAttributeValue(null, S3_OBJECT_KEY);
+            final String size = reader.getAttributeValue(null, SIZE);
+            final String etag = reader.getAttributeValue(null, ETAG);
+            if (StringUtil.isEmpty(objectKey) || size == null || etag == null) continue;
+            try {
+              result.add(new S3StoredObject(objectKey, Long.parseLong(size), etag));
+            } catch (NumberFormatException ignored) {
+            }
+          }
+        }
+        return result;
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  public static void writeStoredObjects(@NotNull Collection<S3StoredObject> storedObjects, @NotNull Writer output) throws IOException {
+    try {
+      final XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(output);
+      writer.writeStartDocument(UTF_8, XML_VERSION);
+      writer.writeStartElement(S3_STORED_OBJECTS);
+      for (S3StoredObject storedObject : storedObjects) {
+        writer.writeEmptyElement(S3_STORED_OBJECT);
+        writer.writeAttribute(S3_OBJECT_KEY, storedObject.getObjectKey());
+        writer.writeAttribute(SIZE, String.valueOf(storedObject.getSize()));
+        writer.writeAttribute(ETAG, storedObject.getEtag());
+      }
+      writer.writeEndElement();
+      writer.writeEndDocument();
+      writer.flush();
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Failed to write stored S3 objects: " + e.getMessage(), e);
+    }
+  }
+
+  private static void writeElement(@NotNull XMLStreamWriter writer, @NotNull String name, @NotNull String value) throws XMLStreamException {
+    writer.writeStartElement(name);
+    writer.writeCharacters(value);
+    writer.writeEndElement();
+  }
+
+  private static boolean moveToRootElement(@NotNull XMLStreamReader reader, @NotNull String rootElementName) throws XMLStreamException {
+    while (reader.hasNext()) {
+      if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+        return rootElementName.equals(reader.getLocalName());
+      }
+    }
+    return false;
+  }
+
+  @NotNull
+  private static XMLInputFactory createXmlInputFactory() {
+    final XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  }
+
+  @Nullable
+  public static S3MultipartUpload readMultipartUpload(String data) throws IOException {
+    return readMultipartUpload(new StringReader(data));
+  }
+
+  @Nullable
+  public static S3MultipartUpload readMultipartUpload(@NotNull Reader data) throws IOException {
+    try {
+      final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(data);
+      try {
+        if (!moveToRootElement(reader, S3_MULTIPART_UPLOAD)) return null;
+        final String s3ObjectKey = reader.getAttributeValue(null, S3_OBJECT_KEY);
+        if (StringUtil.isEmpty(s3ObjectKey)) return null;
+        final S3MultipartUpload result =
+          new S3MultipartUpload(s3ObjectKey, reader.getAttributeValue(null, UPLOAD_ID), reader.getAttributeValue(null, CONTENT_TYPE));
+        Integer partNumber = null;
+        String etag = null;
+        URL preSignUrl = null;
+        while (reader.hasNext()) {
+          final int event = reader.next();
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            final String name = reader.getLocalName();
+            if (PART.equals(name)) {
+              try {
+                partNumber = Integer.parseInt(reader.getAttributeValue(null, PART_NUMBER));
+              } catch (NumberFormatException e) {
+                return null;
+              }
+              etag = reader.getAttributeValue(null, ETAG);
+              preSignUrl = null;
+            } else if (PRE_SIGN_URL.equals(name)) {
+              preSignUrl = new URL(reader.getElementText());
+            }
+          } else if (event == XMLStreamConstants.END_ELEMENT && PART.equals(reader.getLocalName()) && partNumber != null) {
+            result.withPart(partNumber, preSignUrl, etag);
+            partNumber = null;
+          }
+        }
+        return result;
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  public static String writeMultipartUpload(@NotNull S3MultipartUpload data) {
+    final StringWriter result = new StringWriter();
+    try {
+      writeMultipartUpload(data, result);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return result.toString();
+  }
+
+  public static void writeMultipartUpload(@NotNull S3MultipartUpload data, @NotNull Writer output) throws IOException {
+    try {
+      final XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(output);
+      writer.writeStartDocument(UTF_8, XML_VERSION);
+      writer.writeStartElement(S3_MULTIPART_UPLOAD);
+      writer.writeAttribute(S3_OBJECT_KEY, data.getObjectKey());
+      if (data.getUploadId() != null) {
+        writer.writeAttribute(UPLOAD_ID, data.getUploadId());
+      }
+      if (data.getContentType() != null) {
+        writer.writeAttribute(CONTENT_TYPE, data.getContentType());
+      }
+      for (Map.Entry<Integer, URL> part : data.getPartUrls().entrySet()) {
+        if (part.getValue() == null) {
+          writer.writeEmptyElement(PART);
+        } else {
+          writer.writeStartElement(PART);
+        }
+        writer.writeAttribute(PART_NUMBER, String.valueOf(part.getKey()));
+        final String etag = data.getPartEtags().get(part.getKey());
+        if (etag != null) {
+          writer.writeAttribute(ETAG, etag);
+        }
+        if (part.getValue() != null) {
+          writeElement(writer, PRE_SIGN_URL, part.getValue().toString());
+          writer.writeEndElement();
+        }
+      }
+      writer.writeEndElement();
+      writer.writeEndDocument();
+      writer.flush();
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Failed to write multipart upload: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Extracts the moment a pre-signed URL stops being valid from its query string.
+   * Both Signature Version 4 (X-Amz-Date + X-Amz-Expires) and Signature Version 2 (Expires) URLs are supported.
+   *
+   * @param preSignUrl pre-signed URL
+   * @return expiration time in milliseconds since epoch or null if it cannot be determined
+   */
+  @Nullable
+  public static Long getExpirationTime(@NotNull URL preSignUrl) {
+    final String query = preSignUrl.getQuery();
+    if (StringUtil.isEmpty(query)) return null;
+    String amzDate = null;
+    String amzExpires = null;
+    String expires = null;
+    for (String pair : query.split("&")) {
+      final int idx = pair.indexOf('=');
+      if (idx <= 0) continue;
+      final String name = pair.substring(0, idx);
+      final String value = pair.substring(idx + 1);
+      if (AMZ_DATE_QUERY_PARAM.equals(name)) {
+        amzDate = value;
+      } else if (AMZ_EXPIRES_QUERY_PARAM.equals(name)) {
+        amzExpires = value;
+      } else if (EXPIRES_QUERY_PARAM.equals(name)) {
+        expires = value;
+      }
+    }
+    try {
+      if (amzDate != null && amzExpires != null) {
+        final SimpleDateFormat format = new SimpleDateFormat(AMZ_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.parse(amzDate).getTime() + Long.parseLong(amzExpires) * 1000;
+      }
+      if (expires != null) {
+        return Long.parseLong(expires) * 1000;
+      }
+    } catch (ParseException e) {
+      return null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return null;
   }
 }
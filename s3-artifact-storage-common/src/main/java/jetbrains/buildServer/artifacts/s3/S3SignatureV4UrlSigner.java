@@ -0,0 +1,192 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Creates AWS Signature Version 4 pre-signed URLs without constructing an S3 client.
+ * <p>
+ * Only plain AWS settings are supported: static access keys, a standard region without a custom endpoint
+ * and a bucket name which can be used as a virtual host. For other settings {@link #presign} returns null
+ * and the caller should use the SDK. Derived signing keys are cached per day, region and credentials.
+ */
+public final class S3SignatureV4UrlSigner {
+  private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+  private static final String SERVICE = "s3";
+  private static final String TERMINATOR = "aws4_request";
+  private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+  private static final String HMAC_SHA256 = "HmacSHA256";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int MAX_EXPIRATION_SEC = 7 * 24 * 60 * 60;
+  private static final int MAX_CACHED_SIGNING_KEYS = 100;
+  private static final Pattern VIRTUAL_HOST_BUCKET = Pattern.compile("[a-z0-9][a-z0-9\\-]{1,61}[a-z0-9]");
+  private static final Pattern STANDARD_REGION = Pattern.compile("[a-z]{2}(-gov)?-[a-z]+-\\d");
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final ConcurrentMap<String, byte[]> mySigningKeys = new ConcurrentHashMap<String, byte[]>();
+
+  /**
+   * @return pre-signed URL or null if the settings are not supported and the SDK should be used instead
+   */
+  @Nullable
+  public URL presign(@NotNull final String httpMethod,
+                     @NotNull final String bucketName,
+                     @NotNull final String objectKey,
+                     @NotNull final Map<String, String> queryParams,
+                     final int lifetimeSec,
+                     @NotNull final Map<String, String> params) {
+    if (lifetimeSec <= 0 || lifetimeSec > MAX_EXPIRATION_SEC) return null;
+    if (!VIRTUAL_HOST_BUCKET.matcher(bucketName).matches()) return null;
+    if (!AWSCommonParams.ACCESS_KEYS_OPTION.equals(params.get(AWSCommonParams.CREDENTIALS_TYPE_PARAM))) return null;
+    if (Boolean.parseBoolean(params.get(AWSCommonParams.USE_DEFAULT_CREDENTIAL_PROVIDER_CHAIN_PARAM))) return null;
+    if (StringUtil.isNotEmpty(params.get(AWSCommonParams.SERVICE_ENDPOINT_PARAM))) return null;
+    if (StringUtil.isNotEmpty(params.get(AWSCommonParams.ENVIRONMENT_NAME_PARAM))) return null;
+
+    final String region = params.get(AWSCommonParams.REGION_NAME_PARAM);
+    if (region == null || region.startsWith("cn-") || !STANDARD_REGION.matcher(region).matches()) return null;
+    final String accessKeyId = params.get(AWSCommonParams.ACCESS_KEY_ID_PARAM);
+    String secretAccessKey = params.get(AWSCommonParams.SECURE_SECRET_ACCESS_KEY_PARAM);
+    if (StringUtil.isEmpty(secretAccessKey)) {
+      secretAccessKey = params.get(AWSCommonParams.SECRET_ACCESS_KEY_PARAM);
+    }
+    if (StringUtil.isEmpty(accessKeyId) || StringUtil.isEmpty(secretAccessKey)) return null;
+
+    return presign(httpMethod, bucketName, objectKey, queryParams, accessKeyId, secretAccessKey, region, lifetimeSec, new Date());
+  }
+
+  @NotNull
+  URL presign(@NotNull final String httpMethod,
+              @NotNull final String bucketName,
+              @NotNull final String objectKey,
+              @NotNull final Map<String, String> queryParams,
+              @NotNull final String accessKeyId,
+              @NotNull final String secretAccessKey,
+              @NotNull final String region,
+              final int lifetimeSec,
+              @NotNull final Date now) {
+    final String amzDate = formatDate("yyyyMMdd'T'HHmmss'Z'", now);
+    final String date = amzDate.substring(0, 8);
+    final String scope = date + "/" + region + "/" + SERVICE + "/" + TERMINATOR;
+    final String host = bucketName + (region.equals("us-east-1") ? ".s3.amazonaws.com" : ".s3." + region + ".amazonaws.com");
+    final String path = "/" + encode(objectKey, false);
+
+    final SortedMap<String, String> query = new TreeMap<String, String>();
+    for (Map.Entry<String, String> entry : queryParams.entrySet()) {
+      query.put(encode(entry.getKey(), true), encode(entry.getValue(), true));
+    }
+    query.put("X-Amz-Algorithm", ALGORITHM);
+    query.put("X-Amz-Credential", encode(accessKeyId + "/" + scope, true));
+    query.put("X-Amz-Date", amzDate);
+    query.put("X-Amz-Expires", String.valueOf(lifetimeSec));
+    query.put("X-Amz-SignedHeaders", "host");
+    final StringBuilder canonicalQuery = new StringBuilder();
+    for (Map.Entry<String, String> entry : query.entrySet()) {
+      if (canonicalQuery.length() > 0) canonicalQuery.append('&');
+      canonicalQuery.append(entry.getKey()).append('=').append(entry.getValue());
+    }
+
+    final String canonicalRequest = httpMethod + "\n" + path + "\n" + canonicalQuery + "\nhost:" + host + "\n\nhost\n" + UNSIGNED_PAYLOAD;
+    final String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + toHex(sha256(canonicalRequest));
+    final String signature = toHex(hmac(getSigningKey(secretAccessKey, date, region), stringToSign));
+    try {
+      return new URL("https://" + host + path + "?" + canonicalQuery + "&X-Amz-Signature=" + signature);
+    } catch (MalformedURLException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private byte[] getSigningKey(@NotNull final String secretAccessKey, @NotNull final String date, @NotNull final String region) {
+    final String cacheKey = date + "/" + region + "/" + secretAccessKey;
+    byte[] signingKey = mySigningKeys.get(cacheKey);
+    if (signingKey == null) {
+      signingKey = hmac(hmac(hmac(hmac(("AWS4" + secretAccessKey).getBytes(UTF_8), date), region), SERVICE), TERMINATOR);
+      if (mySigningKeys.size() >= MAX_CACHED_SIGNING_KEYS) {
+        mySigningKeys.clear();
+      }
+      mySigningKeys.put(cacheKey, signingKey);
+    }
+    return signingKey;
+  }
+
+  @NotNull
+  private static String encode(@NotNull final String value, final boolean encodeSlash) {
+    final StringBuilder result = new StringBuilder(value.length());
+    for (byte b : value.getBytes(UTF_8)) {
+      final char c = (char)(b & 0xFF);
+      if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+        result.append(c);
+      } else {
+        result.append('%').append(Character.toUpperCase(HEX[(b >> 4) & 0xF])).append(Character.toUpperCase(HEX[b & 0xF]));
+      }
+    }
+    return result.toString();
+  }
+
+  @NotNull
+  private static String formatDate(@NotNull final String pattern, @NotNull final Date date) {
+    final SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(date);
+  }
+
+  @NotNull
+  private static byte[] hmac(@NotNull final byte[] key, @NotNull final String data) {
+    try {
+      final Mac mac = Mac.getInstance(HMAC_SHA256);
+      mac.init(new SecretKeySpec(key, HMAC_SHA256));
+      return mac.doFinal(data.getBytes(UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static byte[] sha256(@NotNull final String data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data.getBytes(UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static String toHex(@NotNull final byte[] bytes) {
+    final char[] result = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      result[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+      result[2 * i + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(result);
+  }
+}
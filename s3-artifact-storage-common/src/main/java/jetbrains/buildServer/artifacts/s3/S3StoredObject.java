@@ -0,0 +1,53 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Size and ETag of an object already stored in the bucket, sent by the server to let the agent skip unchanged artifacts.
+ */
+public class S3StoredObject {
+  private final String myObjectKey;
+  private final long mySize;
+  private final String myEtag;
+
+  public S3StoredObject(@NotNull final String objectKey, final long size, @NotNull final String etag) {
+    myObjectKey = objectKey;
+    mySize = size;
+    myEtag = etag;
+  }
+
+  @NotNull
+  public String getObjectKey() {
+    return myObjectKey;
+  }
+
+  public long getSize() {
+    return mySize;
+  }
+
+  @NotNull
+  public String getEtag() {
+    return myEtag;
+  }
+
+  @Override
+  public String toString() {
+    return "stored object " + myObjectKey;
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of the sent bytes.
+ * <p>
+ * The bucket holds up to a tenth of a second worth of bytes, so the rate is kept smooth and short bursts are still allowed.
+ * Taking more bytes than the bucket holds puts it into debt, which the next senders wait out,
+ * so concurrent senders share the rate in proportion to what they send.
+ */
+public final class S3TokenBucket {
+  private static final long MIN_CAPACITY = 64 * 1024;
+
+  private final long myBytesPerSecond;
+  private final double myCapacity;
+  private double myTokens;
+  private long myLastRefill;
+
+  public S3TokenBucket(final long bytesPerSecond, final long nowNanos) {
+    myBytesPerSecond = bytesPerSecond;
+    myCapacity = Math.max(MIN_CAPACITY, bytesPerSecond / 10);
+    myTokens = myCapacity;
+    myLastRefill = nowNanos;
+  }
+
+  public long getBytesPerSecond() {
+    return myBytesPerSecond;
+  }
+
+  /**
+   * Takes the tokens for the bytes about to be sent.
+   *
+   * @return nanoseconds to wait before sending the bytes
+   */
+  public synchronized long take(final long bytes, final long nowNanos) {
+    if (nowNanos > myLastRefill) {
+      myTokens = Math.min(myCapacity, myTokens + (double)(nowNanos - myLastRefill) * myBytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+      myLastRefill = nowNanos;
+    }
+    myTokens -= bytes;
+    return myTokens >= 0 ? 0 : (long)(-myTokens * TimeUnit.SECONDS.toNanos(1) / myBytesPerSecond);
+  }
+}
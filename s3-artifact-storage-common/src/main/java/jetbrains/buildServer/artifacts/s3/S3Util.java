@@ -17,24 +17,29 @@
 package jetbrains.buildServer.artifacts.s3;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.client.builder.ExecutorFactory;
 import com.amazonaws.services.s3.transfer.Transfer;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import java.io.File;
 import java.lang.reflect.Method;
 import java.net.URLConnection;
-import java.security.KeyStore;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import javax.net.ssl.SSLContext;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import jetbrains.buildServer.artifacts.ArtifactListData;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedThreadFactory;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.amazon.AWSClients;
 import jetbrains.buildServer.util.amazon.AWSCommonParams;
-import jetbrains.buildServer.util.ssl.SSLContextUtil;
-import jetbrains.buildServer.util.ssl.TrustStoreIO;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -51,6 +56,25 @@ public class S3Util {
   private static final Method PROBE_CONTENT_TYPE_METHOD = getProbeContentTypeMethod();
   private static final Method FILE_TO_PATH_METHOD = getFileToPathMethod();
   public static final String V4_SIGNER_TYPE = "AWSS3V4SignerType";
+  private static final TrustedCertificatesCache TRUSTED_CERTIFICATES_CACHE = new TrustedCertificatesCache();
+  private static final S3ClientCache CLIENT_CACHE = new S3ClientCache();
+  private static final S3ClientCache.ClientFactory CLIENT_FACTORY = new S3ClientCache.ClientFactory() {
+    @NotNull
+    @Override
+    public AmazonS3 createClient(@NotNull final Map<String, String> params) {
+      return AWSCommonParams.withAWSClients(params, new AWSCommonParams.WithAWSClients<AmazonS3, RuntimeException>() {
+        @NotNull
+        @Override
+        public AmazonS3 run(@NotNull AWSClients clients) {
+          if (useSignatureVersion4(params)) {
+            clients.setS3SignerType(V4_SIGNER_TYPE);
+          }
+          patchAWSClientsSsl(clients, params);
+          return clients.createS3Client();
+        }
+      });
+    }
+  };
 
   @NotNull
   public static Map<String, String> validateParameters(@NotNull Map<String, String> params, boolean acceptReferences) {
@@ -94,6 +118,24 @@ public class S3Util {
     return properties.get(S3Constants.S3_PATH_PREFIX_ATTR);
   }
 
+  /**
+   * @return paths relative to the path prefix of the objects uploaded by the build and not published as artifacts
+   */
+  @NotNull
+  public static List<String> getUnclaimedObjectPaths(@NotNull Map<String, String> properties) {
+    final String paths = properties.get(S3Constants.S3_UNCLAIMED_OBJECTS_ATTR);
+    if (StringUtil.isEmpty(paths)) {
+      return Collections.emptyList();
+    }
+    final List<String> result = new ArrayList<String>();
+    for (String path : paths.split("\n")) {
+      if (!path.isEmpty()) {
+        result.add(path);
+      }
+    }
+    return result;
+  }
+
   public static boolean usePreSignedUrls(@NotNull Map<String, String> properties) {
     return Boolean.parseBoolean(properties.get(S3Constants.S3_USE_PRE_SIGNED_URL_FOR_UPLOAD));
   }
@@ -116,16 +158,256 @@ public class S3Util {
     }
   }
 
-  private static boolean useSignatureVersion4(@NotNull Map<String, String> properties) {
-    return Boolean.parseBoolean(properties.get(S3Constants.S3_USE_SIGNATURE_V4));
+  public static int getPresignedUrlsBatchSize(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final int batchSize = Integer.parseInt(configurationParameters.get(S3_PRESIGNED_URLS_BATCH_SIZE));
+      return batchSize > 0 ? batchSize : DEFAULT_S3_PRESIGNED_URLS_BATCH_SIZE;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_PRESIGNED_URLS_BATCH_SIZE;
+    }
+  }
+
+  public static int getUploadThreads(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final int threads = Integer.parseInt(configurationParameters.get(S3_UPLOAD_THREADS));
+      return threads > 0 ? threads : DEFAULT_S3_UPLOAD_THREADS;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_UPLOAD_THREADS;
+    }
+  }
+
+  public static int getUploadQueueSize(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final int queueSize = Integer.parseInt(configurationParameters.get(S3_UPLOAD_QUEUE_SIZE));
+      return queueSize >= 0 ? queueSize : DEFAULT_S3_UPLOAD_QUEUE_SIZE;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_UPLOAD_QUEUE_SIZE;
+    }
+  }
+
+  public static long getUploadSmallFileThreshold(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final long threshold = Long.parseLong(configurationParameters.get(S3_UPLOAD_SMALL_FILE_THRESHOLD));
+      return threshold >= 0 ? threshold : DEFAULT_S3_UPLOAD_SMALL_FILE_THRESHOLD;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_UPLOAD_SMALL_FILE_THRESHOLD;
+    }
+  }
+
+  public static boolean isPackingEnabled(@NotNull final Map<String, String> configurationParameters) {
+    return Boolean.parseBoolean(configurationParameters.get(S3_PACK_ENABLED));
+  }
+
+  public static long getPackFileThreshold(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final long threshold = Long.parseLong(configurationParameters.get(S3_PACK_FILE_THRESHOLD));
+      return threshold >= 0 ? threshold : DEFAULT_S3_PACK_FILE_THRESHOLD;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_PACK_FILE_THRESHOLD;
+    }
+  }
+
+  public static long getPackSize(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final long packSize = Long.parseLong(configurationParameters.get(S3_PACK_SIZE));
+      return packSize > 0 ? packSize : DEFAULT_S3_PACK_SIZE;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_PACK_SIZE;
+    }
+  }
+
+  public static boolean isContentAddressingEnabled(@NotNull final Map<String, String> configurationParameters) {
+    return Boolean.parseBoolean(configurationParameters.get(S3_CONTENT_ADDRESSED_ENABLED));
   }
 
+  public static long getContentAddressedFileThreshold(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final long threshold = Long.parseLong(configurationParameters.get(S3_CONTENT_ADDRESSED_FILE_THRESHOLD));
+      return threshold >= 0 ? threshold : DEFAULT_S3_CONTENT_ADDRESSED_FILE_THRESHOLD;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_CONTENT_ADDRESSED_FILE_THRESHOLD;
+    }
+  }
+
+  public static int getArtifactListPublishIntervalSec(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final int interval = Integer.parseInt(configurationParameters.get(S3_ARTIFACT_LIST_PUBLISH_INTERVAL_SEC));
+      return interval >= 0 ? interval : DEFAULT_S3_ARTIFACT_LIST_PUBLISH_INTERVAL_SEC;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_ARTIFACT_LIST_PUBLISH_INTERVAL_SEC;
+    }
+  }
+
+  public static boolean isEagerUploadEnabled(@NotNull final Map<String, String> configurationParameters) {
+    return Boolean.parseBoolean(configurationParameters.get(S3_EAGER_UPLOAD_ENABLED));
+  }
+
+  public static int getEagerUploadPollIntervalSec(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final int interval = Integer.parseInt(configurationParameters.get(S3_EAGER_UPLOAD_POLL_INTERVAL_SEC));
+      return interval > 0 ? interval : DEFAULT_S3_EAGER_UPLOAD_POLL_INTERVAL_SEC;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_EAGER_UPLOAD_POLL_INTERVAL_SEC;
+    }
+  }
+
+  public static boolean isCompressionEnabled(@NotNull final Map<String, String> configurationParameters) {
+    return Boolean.parseBoolean(configurationParameters.get(S3_COMPRESSION_ENABLED));
+  }
+
+  public static int getCompressionLevel(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final int level = Integer.parseInt(configurationParameters.get(S3_COMPRESSION_LEVEL));
+      return level >= 1 && level <= 9 ? level : DEFAULT_S3_COMPRESSION_LEVEL;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_COMPRESSION_LEVEL;
+    }
+  }
+
+  /**
+   * @return true if the content type matches one of the comma-separated patterns like {@code text/*} or {@code application/json}
+   */
+  public static boolean isCompressibleContentType(@NotNull final Map<String, String> configurationParameters, @NotNull final String contentType) {
+    final String patterns = StringUtil.notEmpty(configurationParameters.get(S3_COMPRESSION_CONTENT_TYPES), DEFAULT_S3_COMPRESSION_CONTENT_TYPES);
+    final String type = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ENGLISH);
+    for (String pattern : patterns.split(",")) {
+      final String normalized = pattern.trim().toLowerCase(Locale.ENGLISH);
+      if (normalized.isEmpty()) continue;
+      if (normalized.endsWith("/*") ? type.startsWith(normalized.substring(0, normalized.length() - 1)) : type.equals(normalized)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return content encoding of the artifact stored by the agent or null if the artifact is stored as is
+   */
   @Nullable
-  private static KeyStore trustStore(@Nullable final String directory) {
-    if (directory == null) {
-      return null;
+  public static String getContentEncoding(@NotNull final Map<String, String> commonProperties, @NotNull final String artifactPath) {
+    return S3ArtifactIndex.get(commonProperties.get(S3_CONTENT_ENCODING_ATTR), artifactPath);
+  }
+
+  /**
+   * @param acceptEncoding value of an Accept-Encoding request header
+   * @return whether the header accepts the content encoding, encodings listed with zero quality are not accepted
+   */
+  public static boolean acceptsContentEncoding(@Nullable final String acceptEncoding, @NotNull final String contentEncoding) {
+    if (StringUtil.isEmptyOrSpaces(acceptEncoding)) return false;
+    Boolean wildcard = null;
+    for (String coding : acceptEncoding.split(",")) {
+      final String[] parts = coding.trim().split(";");
+      final String name = parts[0].trim();
+      boolean accepted = true;
+      for (int i = 1; i < parts.length; i++) {
+        final String param = parts[i].trim();
+        if (param.startsWith("q=") || param.startsWith("Q=")) {
+          try {
+            accepted = Double.parseDouble(param.substring(2).trim()) > 0;
+          } catch (NumberFormatException e) {
+            accepted = false;
+          }
+        }
+      }
+      if (contentEncoding.equalsIgnoreCase(name)) return accepted;
+      if ("*".equals(name)) wildcard = accepted;
     }
-    return TrustStoreIO.readTrustStoreFromDirectory(directory);
+    return wildcard != null && wildcard;
+  }
+
+  public static boolean isSkipUnchangedEnabled(@NotNull final Map<String, String> configurationParameters) {
+    return Boolean.parseBoolean(configurationParameters.get(S3_SKIP_UNCHANGED_ENABLED));
+  }
+
+  public static boolean isUploadJournalEnabled(@NotNull final Map<String, String> configurationParameters) {
+    return Boolean.parseBoolean(configurationParameters.get(S3_UPLOAD_JOURNAL_ENABLED));
+  }
+
+  public static boolean isAdaptiveConcurrencyEnabled(@NotNull final Map<String, String> configurationParameters) {
+    return Boolean.parseBoolean(configurationParameters.get(S3_ADAPTIVE_CONCURRENCY_ENABLED));
+  }
+
+  /**
+   * @return the highest number of concurrent upload requests the adaptive concurrency may reach, not less than the upload threads
+   */
+  public static int getAdaptiveConcurrencyMax(@NotNull final Map<String, String> configurationParameters) {
+    int max;
+    try {
+      max = Integer.parseInt(configurationParameters.get(S3_ADAPTIVE_CONCURRENCY_MAX));
+      if (max <= 0) {
+        max = DEFAULT_S3_ADAPTIVE_CONCURRENCY_MAX;
+      }
+    } catch (NumberFormatException e) {
+      max = DEFAULT_S3_ADAPTIVE_CONCURRENCY_MAX;
+    }
+    return Math.max(max, getUploadThreads(configurationParameters));
+  }
+
+  /**
+   * @return upload rate limit of a build in bytes per second, 0 if not limited
+   */
+  public static long getBuildBandwidthLimit(@NotNull final Map<String, String> configurationParameters) {
+    return getBandwidthLimit(configurationParameters.get(S3_UPLOAD_BANDWIDTH_LIMIT));
+  }
+
+  /**
+   * @param agentConfigurationParameters parameters of the agent configuration, which builds can't override
+   * @return upload rate limit of all builds on the agent in bytes per second, 0 if not limited
+   */
+  public static long getAgentBandwidthLimit(@NotNull final Map<String, String> agentConfigurationParameters) {
+    return getBandwidthLimit(agentConfigurationParameters.get(S3_UPLOAD_AGENT_BANDWIDTH_LIMIT));
+  }
+
+  private static long getBandwidthLimit(@Nullable final String value) {
+    try {
+      final long limit = Long.parseLong(value);
+      return limit > 0 ? limit : 0;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return size of the buffer the artifact content is read into and written to the connection from
+   */
+  public static int getUploadBufferSize(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final int size = Integer.parseInt(configurationParameters.get(S3_UPLOAD_BUFFER_SIZE));
+      return size >= MIN_S3_UPLOAD_BUFFER_SIZE && size <= MAX_S3_UPLOAD_BUFFER_SIZE ? size : DEFAULT_S3_UPLOAD_BUFFER_SIZE;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_UPLOAD_BUFFER_SIZE;
+    }
+  }
+
+  public static long getMultipartUploadThreshold(@NotNull final Map<String, String> configurationParameters) {
+    try {
+      final long threshold = Long.parseLong(configurationParameters.get(S3_MULTIPART_UPLOAD_THRESHOLD));
+      return threshold >= MIN_S3_MULTIPART_UPLOAD_PART_SIZE ? threshold : DEFAULT_S3_MULTIPART_UPLOAD_THRESHOLD;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_MULTIPART_UPLOAD_THRESHOLD;
+    }
+  }
+
+  /**
+   * Calculates the size of a single part for a multipart upload of the file: the configured part size
+   * is increased when needed to keep the number of parts within the S3 limit.
+   */
+  public static long getMultipartUploadPartSize(@NotNull final Map<String, String> configurationParameters, final long fileSize) {
+    long partSize;
+    try {
+      partSize = Long.parseLong(configurationParameters.get(S3_MULTIPART_UPLOAD_PART_SIZE));
+      if (partSize < MIN_S3_MULTIPART_UPLOAD_PART_SIZE) {
+        partSize = DEFAULT_S3_MULTIPART_UPLOAD_PART_SIZE;
+      }
+    } catch (NumberFormatException e) {
+      partSize = DEFAULT_S3_MULTIPART_UPLOAD_PART_SIZE;
+    }
+    final long minPartSizeForFile = (fileSize + MAX_S3_MULTIPART_UPLOAD_PARTS - 1) / MAX_S3_MULTIPART_UPLOAD_PARTS;
+    return Math.max(partSize, minPartSizeForFile);
+  }
+
+  private static boolean useSignatureVersion4(@NotNull Map<String, String> properties) {
+    return Boolean.parseBoolean(properties.get(S3Constants.S3_USE_SIGNATURE_V4));
   }
 
   @Nullable
@@ -134,20 +416,20 @@ public class S3Util {
     if (certDirectory == null) {
       return null;
     }
-    final KeyStore trustStore = trustStore(certDirectory);
-    if (trustStore == null) {
-      return null;
-    }
-    final SSLContext sslContext = SSLContextUtil.createUserSSLContext(trustStore);
-    if (sslContext == null) {
-      return null;
-    }
-    return new SSLConnectionSocketFactory(sslContext);
+    return TRUSTED_CERTIFICATES_CACHE.getSocketFactory(certDirectory);
   }
 
   public static <T, E extends Throwable> T withS3Client(
     @NotNull final Map<String, String> params,
     @NotNull final WithS3<T, E> withClient) throws E {
+    if (S3ClientCache.isEnabled()) {
+      final S3ClientCache.Lease lease = CLIENT_CACHE.acquire(params, CLIENT_FACTORY);
+      try {
+        return withClient.run(lease.getClient());
+      } finally {
+        lease.release();
+      }
+    }
     return AWSCommonParams.withAWSClients(params, new AWSCommonParams.WithAWSClients<T, E>() {
       @Nullable
       @Override
@@ -165,17 +447,147 @@ public class S3Util {
   public static <T extends Transfer> Collection<T> withTransferManager(
     @NotNull final Map<String, String> params,
     @NotNull final jetbrains.buildServer.util.amazon.S3Util.WithTransferManager<T> withTransferManager
+  ) throws Throwable {
+    return withTransferManagers(params, 0, new WithTransferManagers<T>() {
+      @NotNull
+      @Override
+      public Collection<T> run(@NotNull final TransferManagers transferManagers) throws Throwable {
+        return withTransferManager.run(transferManagers.forFile(0));
+      }
+    });
+  }
+
+  /**
+   * Runs the action with transfer managers configured from the storage settings and waits for all returned transfers.
+   * <p>
+   * A transfer manager only supports a single part size, so every part size in use gets its own manager,
+   * all of them share the S3 client and the pool of transfer threads.
+   *
+   * @param bytesPerSecond measured upload throughput or 0 if unknown, used by the auto part size
+   */
+  @SuppressWarnings("UnusedReturnValue")
+  public static <T extends Transfer> Collection<T> withTransferManagers(
+    @NotNull final Map<String, String> params,
+    final long bytesPerSecond,
+    @NotNull final WithTransferManagers<T> withTransferManagers
   ) throws Throwable {
     return AWSCommonParams.withAWSClients(params, new AWSCommonParams.WithAWSClients<Collection<T>, Throwable>() {
       @NotNull
       @Override
       public Collection<T> run(@NotNull AWSClients clients) throws Throwable {
         patchAWSClientsSsl(clients, params);
-        return jetbrains.buildServer.util.amazon.S3Util.withTransferManager(clients.createS3Client(), true, withTransferManager);
+        final AmazonS3 s3Client = clients.createS3Client();
+        final ExecutorService executor = Executors.newFixedThreadPool(getTransferThreads(params), new NamedThreadFactory("S3 transfer manager"));
+        final Map<Long, TransferManager> managers = new HashMap<Long, TransferManager>();
+        try {
+          final Collection<T> transfers = withTransferManagers.run(new TransferManagers() {
+            @NotNull
+            @Override
+            public TransferManager forFile(final long fileSize) {
+              final long partSize = getTransferPartSize(params, fileSize, bytesPerSecond);
+              synchronized (managers) {
+                TransferManager manager = managers.get(partSize);
+                if (manager == null) {
+                  manager = TransferManagerBuilder.standard()
+                    .withS3Client(s3Client)
+                    .withExecutorFactory(new ExecutorFactory() {
+                      @Override
+                      public ExecutorService newExecutor() {
+                        return executor;
+                      }
+                    })
+                    .withShutDownThreadPools(false)
+                    .withMultipartUploadThreshold(getTransferMultipartThreshold(params))
+                    .withMinimumUploadPartSize(partSize)
+                    .build();
+                  managers.put(partSize, manager);
+                }
+                return manager;
+              }
+            }
+          });
+          for (T transfer : transfers) {
+            transfer.waitForCompletion();
+          }
+          return transfers;
+        } finally {
+          executor.shutdownNow();
+          s3Client.shutdown();
+        }
       }
     });
   }
 
+  /**
+   * Transfer managers of a {@link #withTransferManagers} call.
+   */
+  public interface TransferManagers {
+    /**
+     * @return transfer manager with the part size suitable for the file
+     */
+    @NotNull
+    TransferManager forFile(long fileSize);
+  }
+
+  public interface WithTransferManagers<T extends Transfer> {
+    @NotNull
+    Collection<T> run(@NotNull TransferManagers transferManagers) throws Throwable;
+  }
+
+  public static long getTransferMultipartThreshold(@NotNull final Map<String, String> params) {
+    try {
+      final long threshold = Long.parseLong(params.get(S3_TRANSFER_MULTIPART_THRESHOLD));
+      return threshold >= MIN_S3_MULTIPART_UPLOAD_PART_SIZE ? threshold : DEFAULT_S3_TRANSFER_MULTIPART_THRESHOLD;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_TRANSFER_MULTIPART_THRESHOLD;
+    }
+  }
+
+  public static boolean isTransferPartSizeAuto(@NotNull final Map<String, String> params) {
+    return S3_TRANSFER_PART_SIZE_AUTO.equalsIgnoreCase(params.get(S3_TRANSFER_PART_SIZE));
+  }
+
+  public static long getTransferPartSize(@NotNull final Map<String, String> params) {
+    try {
+      final long partSize = Long.parseLong(params.get(S3_TRANSFER_PART_SIZE));
+      return partSize >= MIN_S3_MULTIPART_UPLOAD_PART_SIZE && partSize <= MAX_S3_MULTIPART_UPLOAD_PART_SIZE ? partSize : DEFAULT_S3_TRANSFER_PART_SIZE;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_TRANSFER_PART_SIZE;
+    }
+  }
+
+  /**
+   * @return part size to upload the file with, in the auto mode it is rounded down to a power of two
+   * so that files of a similar size share the transfer manager
+   */
+  public static long getTransferPartSize(@NotNull final Map<String, String> params, final long fileSize, final long bytesPerSecond) {
+    if (!isTransferPartSizeAuto(params)) return getTransferPartSize(params);
+    final long partSize = getAutoTransferPartSize(fileSize, bytesPerSecond, getTransferThreads(params));
+    return Math.max(MIN_S3_MULTIPART_UPLOAD_PART_SIZE, Long.highestOneBit(partSize));
+  }
+
+  public static int getTransferThreads(@NotNull final Map<String, String> params) {
+    try {
+      final int threads = Integer.parseInt(params.get(S3_TRANSFER_THREADS));
+      return threads > 0 ? threads : DEFAULT_S3_TRANSFER_THREADS;
+    } catch (NumberFormatException e) {
+      return DEFAULT_S3_TRANSFER_THREADS;
+    }
+  }
+
+  /**
+   * Picks a part size so that the file is split into at least as many parts as there are transfer threads
+   * and, when the throughput is known, a single part takes about {@link S3Constants#S3_TRANSFER_AUTO_PART_DURATION_SEC} to upload.
+   */
+  public static long getAutoTransferPartSize(final long fileSize, final long bytesPerSecond, final int threads) {
+    long partSize = fileSize / Math.max(1, threads);
+    if (bytesPerSecond > 0) {
+      partSize = Math.min(partSize, bytesPerSecond / Math.max(1, threads) * S3_TRANSFER_AUTO_PART_DURATION_SEC);
+    }
+    partSize = Math.max(partSize, (fileSize + MAX_S3_MULTIPART_UPLOAD_PARTS - 1) / MAX_S3_MULTIPART_UPLOAD_PARTS);
+    return Math.min(MAX_S3_MULTIPART_UPLOAD_PART_SIZE, Math.max(MIN_S3_MULTIPART_UPLOAD_PART_SIZE, partSize));
+  }
+
   private static void patchAWSClientsSsl(@NotNull final AWSClients clients, @NotNull final Map<String, String> params) {
     final ConnectionSocketFactory socketFactory = socketFactory(params);
     if (socketFactory != null) {
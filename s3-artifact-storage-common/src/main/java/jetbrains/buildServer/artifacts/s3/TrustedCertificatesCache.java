@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.io.File;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.net.ssl.SSLContext;
+import jetbrains.buildServer.util.ssl.SSLContextUtil;
+import jetbrains.buildServer.util.ssl.TrustStoreIO;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Caches SSL socket factories built from trusted certificates directories.
+ * <p>
+ * Certificates are parsed again only when the fingerprint of the directory changes,
+ * i.e. a certificate file is added, removed, resized or touched.
+ */
+final class TrustedCertificatesCache {
+  private final ConcurrentMap<String, CachedSocketFactory> mySocketFactories = new ConcurrentHashMap<String, CachedSocketFactory>();
+
+  @Nullable
+  ConnectionSocketFactory getSocketFactory(@NotNull final String directory) {
+    final String fingerprint = getFingerprint(directory);
+    final CachedSocketFactory cached = mySocketFactories.get(directory);
+    if (cached != null && cached.myFingerprint.equals(fingerprint)) {
+      return cached.mySocketFactory;
+    }
+    final ConnectionSocketFactory socketFactory = createSocketFactory(directory);
+    mySocketFactories.put(directory, new CachedSocketFactory(fingerprint, socketFactory));
+    return socketFactory;
+  }
+
+  @Nullable
+  private static ConnectionSocketFactory createSocketFactory(@NotNull final String directory) {
+    final KeyStore trustStore = TrustStoreIO.readTrustStoreFromDirectory(directory);
+    if (trustStore == null) {
+      return null;
+    }
+    final SSLContext sslContext = SSLContextUtil.createUserSSLContext(trustStore);
+    if (sslContext == null) {
+      return null;
+    }
+    return new SSLConnectionSocketFactory(sslContext);
+  }
+
+  /**
+   * Cheap fingerprint of the certificates directory based on file names, sizes and modification times.
+   */
+  @NotNull
+  static String getFingerprint(@Nullable final String directory) {
+    if (directory == null) return "";
+    final File[] files = new File(directory).listFiles();
+    if (files == null) return "";
+    Arrays.sort(files);
+    final StringBuilder fingerprint = new StringBuilder();
+    for (File file : files) {
+      fingerprint.append(file.getName()).append(':').append(file.length()).append(':').append(file.lastModified()).append(';');
+    }
+    return fingerprint.toString();
+  }
+
+  private static final class CachedSocketFactory {
+    private final String myFingerprint;
+    private final ConnectionSocketFactory mySocketFactory;
+
+    private CachedSocketFactory(@NotNull final String fingerprint, @Nullable final ConnectionSocketFactory socketFactory) {
+      myFingerprint = fingerprint;
+      mySocketFactory = socketFactory;
+    }
+  }
+}
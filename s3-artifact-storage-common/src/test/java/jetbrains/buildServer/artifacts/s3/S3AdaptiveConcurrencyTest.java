@@ -0,0 +1,83 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class S3AdaptiveConcurrencyTest {
+  private static final long WINDOW = 1000;
+  private static final long MB = 1024 * 1024;
+
+  public void testGrowsWhileThroughputImproves() {
+    final S3AdaptiveConcurrency concurrency = new S3AdaptiveConcurrency(4, 1, 6, WINDOW);
+    long now = 0;
+    long bytes = 10 * MB;
+    for (int i = 0; i < 5; i++) {
+      now = window(concurrency, now, bytes, 100);
+      bytes *= 2;
+    }
+    Assert.assertEquals(concurrency.getLimit(), 6);
+  }
+
+  public void testTakesBackIncreaseWhichDidNotHelp() {
+    final S3AdaptiveConcurrency concurrency = new S3AdaptiveConcurrency(4, 1, 10, WINDOW);
+    long now = window(concurrency, 0, 10 * MB, 100);
+    Assert.assertEquals(concurrency.getLimit(), 5);
+    now = window(concurrency, now, 10 * MB, 100);
+    Assert.assertEquals(concurrency.getLimit(), 4);
+
+    for (int i = 0; i < S3AdaptiveConcurrency.HOLD_WINDOWS; i++) {
+      now = window(concurrency, now, 10 * MB, 100);
+      Assert.assertEquals(concurrency.getLimit(), 4);
+    }
+    window(concurrency, now, 10 * MB, 100);
+    Assert.assertEquals(concurrency.getLimit(), 5);
+  }
+
+  public void testHalvesWhenThrottled() {
+    final S3AdaptiveConcurrency concurrency = new S3AdaptiveConcurrency(8, 3, 10, WINDOW);
+    concurrency.requestThrottled(0);
+    concurrency.requestThrottled(WINDOW);
+    Assert.assertEquals(concurrency.getLimit(), 4);
+    concurrency.requestThrottled(2 * WINDOW);
+    Assert.assertEquals(concurrency.getLimit(), 3);
+  }
+
+  public void testDecreasesWhenLatencyGrows() {
+    final S3AdaptiveConcurrency concurrency = new S3AdaptiveConcurrency(8, 1, 8, WINDOW);
+    long now = window(concurrency, 0, 10 * MB, 100);
+    Assert.assertEquals(concurrency.getLimit(), 8);
+    now = window(concurrency, now, 20 * MB, 500);
+    Assert.assertEquals(concurrency.getLimit(), 6);
+  }
+
+  public void testIgnoresLatencyOfSmallRequests() {
+    final S3AdaptiveConcurrency concurrency = new S3AdaptiveConcurrency(8, 1, 8, WINDOW);
+    long now = window(concurrency, 0, 10 * MB, 100);
+    concurrency.requestCompleted(now, 1024, 10000);
+    window(concurrency, now, 20 * MB, 100);
+    Assert.assertEquals(concurrency.getLimit(), 8);
+  }
+
+  private static long window(final S3AdaptiveConcurrency concurrency, final long start, final long bytes, final long latencyMs) {
+    concurrency.requestCompleted(start, bytes / 2, latencyMs * bytes / 2 / MB);
+    concurrency.requestCompleted(start + WINDOW, bytes / 2, latencyMs * bytes / 2 / MB);
+    return start + WINDOW;
+  }
+}
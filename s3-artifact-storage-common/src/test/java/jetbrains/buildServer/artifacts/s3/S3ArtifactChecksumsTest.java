@@ -0,0 +1,67 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class S3ArtifactChecksumsTest {
+  private static final String ABC_MD5 = "900150983cd24fb0d6963f7d28e17f72";
+  private static final String ABC_SHA_256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+  public void testDigest() {
+    final S3ArtifactChecksums.Digest digest = new S3ArtifactChecksums.Digest();
+    final byte[] content = "xabcx".getBytes();
+    digest.update(content, 1, 1);
+    digest.update(content, 2, 2);
+    Assert.assertEquals(digest.getMd5(), ABC_MD5);
+    Assert.assertEquals(digest.getSha256(), ABC_SHA_256);
+    Assert.assertEquals(digest.getSha256(), ABC_SHA_256);
+
+    digest.reset();
+    digest.update(content, 0, 1);
+    digest.reset();
+    digest.update(content, 1, 3);
+    Assert.assertEquals(digest.getMd5(), ABC_MD5);
+    Assert.assertEquals(digest.getSha256(), ABC_SHA_256);
+  }
+
+  public void testMatchesEtag() {
+    Assert.assertTrue(S3ArtifactChecksums.matchesEtag("\"" + ABC_MD5 + "\"", null, ABC_MD5));
+    Assert.assertTrue(S3ArtifactChecksums.matchesEtag(ABC_MD5.toUpperCase(), "AES256", ABC_MD5));
+    Assert.assertFalse(S3ArtifactChecksums.matchesEtag("\"d41d8cd98f00b204e9800998ecf8427e\"", null, ABC_MD5));
+    Assert.assertFalse(S3ArtifactChecksums.matchesEtag("\"d41d8cd98f00b204e9800998ecf8427e\"", "AES256", ABC_MD5));
+    Assert.assertTrue(S3ArtifactChecksums.matchesEtag("\"d41d8cd98f00b204e9800998ecf8427e\"", "aws:kms", ABC_MD5));
+    Assert.assertTrue(S3ArtifactChecksums.matchesEtag("\"d41d8cd98f00b204e9800998ecf8427e-3\"", null, ABC_MD5));
+    Assert.assertTrue(S3ArtifactChecksums.matchesEtag(null, null, ABC_MD5));
+  }
+
+  public void testProperties() {
+    final Map<String, String> checksums = new HashMap<String, String>();
+    checksums.put("libs/lib.jar", ABC_SHA_256);
+    checksums.put("libs/other.jar", "abc");
+    final Map<String, String> properties = Collections.singletonMap(S3Constants.S3_SHA256_ATTR, S3ArtifactIndex.encode(checksums));
+
+    Assert.assertEquals(S3ArtifactChecksums.getSha256(properties, "libs/lib.jar"), ABC_SHA_256);
+    Assert.assertNull(S3ArtifactChecksums.getSha256(properties, "libs/other.jar"));
+    Assert.assertNull(S3ArtifactChecksums.getSha256(properties, "libs/missing.jar"));
+  }
+}
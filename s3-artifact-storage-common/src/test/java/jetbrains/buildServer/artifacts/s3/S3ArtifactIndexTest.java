@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class S3ArtifactIndexTest {
+
+  public void testLookup() {
+    final Map<String, String> values = new LinkedHashMap<String, String>();
+    values.put("reports/index.html", "10");
+    values.put("index.html", "20");
+    values.put("with space/a b.txt", "30");
+    values.put("b.txt", "40");
+    final String index = S3ArtifactIndex.encode(values);
+
+    Assert.assertEquals(S3ArtifactIndex.get(index, "reports/index.html"), "10");
+    Assert.assertEquals(S3ArtifactIndex.get(index, "index.html"), "20");
+    Assert.assertEquals(S3ArtifactIndex.get(index, "with space/a b.txt"), "30");
+    Assert.assertEquals(S3ArtifactIndex.get(index, "b.txt"), "40");
+    Assert.assertNull(S3ArtifactIndex.get(index, "a b.txt"));
+    Assert.assertNull(S3ArtifactIndex.get(index, "space/a b.txt"));
+    Assert.assertNull(S3ArtifactIndex.get(index, "reports"));
+    Assert.assertNull(S3ArtifactIndex.get(null, "index.html"));
+  }
+
+  public void testDecode() {
+    final Map<String, String> values = new LinkedHashMap<String, String>();
+    values.put("a", "1");
+    values.put("b c", "2");
+    Assert.assertEquals(S3ArtifactIndex.decode(S3ArtifactIndex.encode(values)), values);
+    Assert.assertTrue(S3ArtifactIndex.decode(null).isEmpty());
+  }
+
+  public void testMalformedLinesAreIgnored() {
+    final Map<String, String> decoded = S3ArtifactIndex.decode("1\n 2\n3 \n4 d");
+    Assert.assertEquals(decoded.size(), 1);
+    Assert.assertEquals(decoded.get("d"), "4");
+    Assert.assertNull(S3ArtifactIndex.get("1\n 2\n3 \n", "2"));
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class S3ArtifactPacksTest {
+  private static final String PACK_1 = S3ArtifactPacks.PACKS_PATH + "/1.pack";
+  private static final String PACK_2 = S3ArtifactPacks.PACKS_PATH + "/2.pack";
+
+  public void testPackedArtifactLocation() {
+    final Map<String, Long> offsets = new HashMap<String, Long>();
+    offsets.put("reports/a:b.html", 1234L);
+    offsets.put("reports/index.html", 0L);
+    final Map<String, String> properties = new HashMap<String, String>();
+    properties.put(S3Constants.S3_PATH_PREFIX_ATTR, "project/build/1/");
+    properties.put(S3ArtifactPacks.getPropertyName(PACK_1), S3ArtifactPacks.getPropertyValue(offsets));
+
+    final S3ArtifactPacks.PackedArtifact packedArtifact = S3ArtifactPacks.getPackedArtifact(properties, "reports/a:b.html");
+    Assert.assertNotNull(packedArtifact);
+    Assert.assertEquals(packedArtifact.getPackPath(), PACK_1);
+    Assert.assertEquals(packedArtifact.getOffset(), 1234);
+
+    Assert.assertNull(S3ArtifactPacks.getPackedArtifact(properties, "reports/other.html"));
+  }
+
+  public void testSinglePropertyPerPack() {
+    final Map<String, Long> offsets = new HashMap<String, Long>();
+    for (int i = 0; i < 1000; i++) {
+      offsets.put("reports/" + i + ".html", i * 100L);
+    }
+    final Map<String, String> properties = Collections.singletonMap(S3ArtifactPacks.getPropertyName(PACK_1), S3ArtifactPacks.getPropertyValue(offsets));
+
+    final S3ArtifactPacks.PackedArtifact packedArtifact = S3ArtifactPacks.getPackedArtifact(properties, "reports/500.html");
+    Assert.assertNotNull(packedArtifact);
+    Assert.assertEquals(packedArtifact.getOffset(), 50000);
+    Assert.assertEquals(S3ArtifactPacks.getPackedArtifacts(properties).get(PACK_1).size(), 1000);
+  }
+
+  public void testMalformedValuesAreIgnored() {
+    final Map<String, String> properties = new HashMap<String, String>();
+    properties.put(S3ArtifactPacks.getPropertyName(PACK_1), "x a\n-1 b\n12\n");
+    properties.put(S3ArtifactPacks.getPropertyName(""), "0 c\n");
+
+    for (String path : Arrays.asList("a", "b", "c")) {
+      Assert.assertNull(S3ArtifactPacks.getPackedArtifact(properties, path));
+    }
+    Assert.assertTrue(S3ArtifactPacks.getPackedArtifacts(properties).isEmpty());
+  }
+
+  public void testArtifactsGroupedByPack() {
+    final Map<String, Long> first = new HashMap<String, Long>();
+    first.put("a", 0L);
+    first.put("b", 10L);
+    final Map<String, String> properties = new HashMap<String, String>();
+    properties.put(S3Constants.S3_PATH_PREFIX_ATTR, "project/build/1/");
+    properties.put(S3ArtifactPacks.getPropertyName(PACK_1), S3ArtifactPacks.getPropertyValue(first));
+    properties.put(S3ArtifactPacks.getPropertyName(PACK_2), S3ArtifactPacks.getPropertyValue(Collections.singletonMap("c", 0L)));
+
+    final Map<String, List<String>> packs = S3ArtifactPacks.getPackedArtifacts(properties);
+    Assert.assertEquals(packs.size(), 2);
+    final List<String> firstArtifacts = packs.get(PACK_1);
+    Collections.sort(firstArtifacts);
+    Assert.assertEquals(firstArtifacts, Arrays.asList("a", "b"));
+    Assert.assertEquals(packs.get(PACK_2), Collections.singletonList("c"));
+  }
+
+  public void testPackPath() {
+    Assert.assertTrue(S3ArtifactPacks.isPackPath(PACK_1));
+    Assert.assertFalse(S3ArtifactPacks.isPackPath("reports/1.pack"));
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.AmazonS3;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class S3ClientCacheTest {
+  private static final long IDLE_TIMEOUT = S3Constants.DEFAULT_S3_CLIENT_CACHE_IDLE_TIMEOUT_SEC * 1000L;
+
+  public void testReusesClientForSameSettings() {
+    final S3ClientCache cache = new S3ClientCache();
+    final CountingFactory factory = new CountingFactory();
+
+    final S3ClientCache.Lease first = cache.acquire(settings("bucket"), factory);
+    final S3ClientCache.Lease second = cache.acquire(settings("bucket"), factory);
+    Assert.assertSame(second.getClient(), first.getClient());
+    first.release();
+    second.release();
+    Assert.assertSame(cache.acquire(settings("bucket"), factory).getClient(), first.getClient());
+    Assert.assertEquals(factory.myCreated.get(), 1);
+
+    Assert.assertNotSame(cache.acquire(settings("other"), factory).getClient(), first.getClient());
+    Assert.assertEquals(factory.myCreated.get(), 2);
+  }
+
+  public void testShutsDownIdleClient() {
+    final S3ClientCache cache = new S3ClientCache();
+    final CountingFactory factory = new CountingFactory();
+    final long now = System.currentTimeMillis();
+
+    final S3ClientCache.Lease lease = cache.acquire(settings("bucket"), factory, now);
+    final FakeS3 client = (FakeS3)lease.getClient();
+    lease.release();
+
+    cache.acquire(settings("other"), factory, now + 2 * IDLE_TIMEOUT).release();
+    Assert.assertTrue(client.myShutdown);
+    Assert.assertNotSame(cache.acquire(settings("bucket"), factory, now + 2 * IDLE_TIMEOUT).getClient(), client);
+  }
+
+  public void testKeepsLeasedClient() {
+    final S3ClientCache cache = new S3ClientCache();
+    final CountingFactory factory = new CountingFactory();
+    final long now = System.currentTimeMillis();
+
+    final S3ClientCache.Lease lease = cache.acquire(settings("bucket"), factory, now);
+    cache.acquire(settings("other"), factory, now + 2 * IDLE_TIMEOUT).release();
+    Assert.assertFalse(((FakeS3)lease.getClient()).myShutdown);
+    Assert.assertSame(cache.acquire(settings("bucket"), factory, now + 2 * IDLE_TIMEOUT).getClient(), lease.getClient());
+  }
+
+  public void testRetriesFailedCreation() {
+    final S3ClientCache cache = new S3ClientCache();
+    final AtomicInteger attempts = new AtomicInteger();
+    final S3ClientCache.ClientFactory factory = new S3ClientCache.ClientFactory() {
+      @NotNull
+      @Override
+      public AmazonS3 createClient(@NotNull final Map<String, String> params) {
+        if (attempts.incrementAndGet() == 1) throw new IllegalArgumentException("Invalid settings");
+        return new FakeS3();
+      }
+    };
+
+    try {
+      cache.acquire(settings("bucket"), factory);
+      Assert.fail("Creation failure expected");
+    } catch (IllegalArgumentException expected) {
+    }
+    Assert.assertNotNull(cache.acquire(settings("bucket"), factory).getClient());
+    Assert.assertEquals(attempts.get(), 2);
+  }
+
+  public void testCreatesClientOutsideOfLock() throws Exception {
+    final S3ClientCache cache = new S3ClientCache();
+    final CountDownLatch creationStarted = new CountDownLatch(1);
+    final CountDownLatch creationAllowed = new CountDownLatch(1);
+    final S3ClientCache.ClientFactory slowFactory = new S3ClientCache.ClientFactory() {
+      @NotNull
+      @Override
+      public AmazonS3 createClient(@NotNull final Map<String, String> params) {
+        creationStarted.countDown();
+        try {
+          creationAllowed.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        return new FakeS3();
+      }
+    };
+
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final Future<AmazonS3> slow = executor.submit(acquireTask(cache, "slow", slowFactory));
+      Assert.assertTrue(creationStarted.await(10, TimeUnit.SECONDS));
+      final Future<AmazonS3> waiting = executor.submit(acquireTask(cache, "slow", slowFactory));
+
+      Assert.assertNotNull(cache.acquire(settings("fast"), new CountingFactory()).getClient());
+      Assert.assertFalse(waiting.isDone());
+
+      creationAllowed.countDown();
+      Assert.assertSame(waiting.get(10, TimeUnit.SECONDS), slow.get(10, TimeUnit.SECONDS));
+    } finally {
+      creationAllowed.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @NotNull
+  private static Callable<AmazonS3> acquireTask(@NotNull final S3ClientCache cache,
+                                                @NotNull final String bucket,
+                                                @NotNull final S3ClientCache.ClientFactory factory) {
+    return new Callable<AmazonS3>() {
+      @Override
+      public AmazonS3 call() {
+        return cache.acquire(settings(bucket), factory).getClient();
+      }
+    };
+  }
+
+  @NotNull
+  private static Map<String, String> settings(@NotNull final String bucket) {
+    return Collections.singletonMap(S3Constants.S3_BUCKET_NAME, bucket);
+  }
+
+  private static final class CountingFactory implements S3ClientCache.ClientFactory {
+    private final AtomicInteger myCreated = new AtomicInteger();
+
+    @NotNull
+    @Override
+    public AmazonS3 createClient(@NotNull final Map<String, String> params) {
+      myCreated.incrementAndGet();
+      return new FakeS3();
+    }
+  }
+
+  private static final class FakeS3 extends AbstractAmazonS3 {
+    private volatile boolean myShutdown;
+
+    @Override
+    public void shutdown() {
+      myShutdown = true;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class S3ContentAddressedArtifactsTest {
+  private static final String EMPTY_SHA_256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+  private static final String ABC_SHA_256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+  public void testDigest() throws Exception {
+    final File file = File.createTempFile("content", ".txt");
+    try {
+      Assert.assertEquals(S3ContentAddressedArtifacts.digest(file), EMPTY_SHA_256);
+      FileUtil.writeFileAndReportErrors(file, "abc");
+      Assert.assertEquals(S3ContentAddressedArtifacts.digest(file), ABC_SHA_256);
+    } finally {
+      FileUtil.delete(file);
+    }
+  }
+
+  public void testObjectKeys() {
+    final String objectKey = S3ContentAddressedArtifacts.getObjectKey("project", ABC_SHA_256, "lib.jar");
+    Assert.assertEquals(objectKey, "teamcity-cas/project/" + ABC_SHA_256 + "/lib.jar");
+    Assert.assertEquals(S3ContentAddressedArtifacts.getDigest(objectKey), ABC_SHA_256);
+    Assert.assertNull(S3ContentAddressedArtifacts.getDigest("project/build/1/lib.jar"));
+    Assert.assertNull(S3ContentAddressedArtifacts.getDigest("teamcity-cas/project/abc/lib.jar"));
+    Assert.assertNull(S3ContentAddressedArtifacts.getDigest("teamcity-cas/" + ABC_SHA_256 + "/lib.jar"));
+    Assert.assertNull(S3ContentAddressedArtifacts.getDigest("teamcity-cas/project/" + ABC_SHA_256 + "/../lib.jar/x"));
+  }
+
+  public void testProjectObjects() {
+    Assert.assertEquals(S3ContentAddressedArtifacts.getProjectId("project/build/1/"), "project");
+    Assert.assertEquals(S3ContentAddressedArtifacts.getProjectId("project"), "project");
+
+    final String objectKey = S3ContentAddressedArtifacts.getObjectKey("project", ABC_SHA_256, "lib.jar");
+    Assert.assertTrue(S3ContentAddressedArtifacts.isProjectObject(objectKey, "project/build/1/"));
+    Assert.assertFalse(S3ContentAddressedArtifacts.isProjectObject(objectKey, "other/build/1/"));
+    Assert.assertFalse(S3ContentAddressedArtifacts.isProjectObject(objectKey, "projectX/build/1/"));
+    Assert.assertFalse(S3ContentAddressedArtifacts.isProjectObject(objectKey, null));
+    Assert.assertFalse(S3ContentAddressedArtifacts.isProjectObject("project/build/1/lib.jar", "project/build/1/"));
+  }
+
+  public void testReferenceKey() {
+    Assert.assertEquals(S3ContentAddressedArtifacts.getReferenceKey(ABC_SHA_256, "project/build/1/"),
+                        "teamcity-cas-refs/project/" + ABC_SHA_256 + "/project/build/1");
+    Assert.assertTrue(S3ContentAddressedArtifacts.getReferenceKey(ABC_SHA_256, "project/build/1/")
+                                                 .startsWith(S3ContentAddressedArtifacts.getReferencesPrefix("project", ABC_SHA_256)));
+  }
+
+  public void testArtifactMapping() {
+    final String objectKey = S3ContentAddressedArtifacts.getObjectKey("project", ABC_SHA_256, "lib.jar");
+    final String spacedObjectKey = S3ContentAddressedArtifacts.getObjectKey("project", EMPTY_SHA_256, "my 100% lib.jar");
+    final Map<String, String> objectKeys = new HashMap<String, String>();
+    objectKeys.put("libs/lib.jar", objectKey);
+    objectKeys.put("libs/my lib.jar", spacedObjectKey);
+    objectKeys.put("libs/other.jar", "project/build/1/other.jar");
+    objectKeys.put("libs/foreign.jar", S3ContentAddressedArtifacts.getObjectKey("other", ABC_SHA_256, "foreign.jar"));
+    final Map<String, String> properties = new HashMap<String, String>();
+    properties.put(S3Constants.S3_PATH_PREFIX_ATTR, "project/build/1/");
+    properties.put(S3Constants.S3_CONTENT_ADDRESSED_ATTR, S3ContentAddressedArtifacts.encode(objectKeys));
+
+    Assert.assertEquals(S3ContentAddressedArtifacts.getObjectKey(properties, "libs/lib.jar"), objectKey);
+    Assert.assertEquals(S3ContentAddressedArtifacts.getObjectKey(properties, "libs/my lib.jar"), spacedObjectKey);
+    Assert.assertNull(S3ContentAddressedArtifacts.getObjectKey(properties, "libs/other.jar"));
+    // the content of other projects is never served
+    Assert.assertNull(S3ContentAddressedArtifacts.getObjectKey(properties, "libs/foreign.jar"));
+    Assert.assertNull(S3ContentAddressedArtifacts.getObjectKey(properties, "libs/missing.jar"));
+    Assert.assertNull(S3ContentAddressedArtifacts.getObjectKey(Collections.<String, String>emptyMap(), "libs/lib.jar"));
+
+    final Map<String, String> expected = new HashMap<String, String>(objectKeys);
+    expected.remove("libs/other.jar");
+    expected.remove("libs/foreign.jar");
+    Assert.assertEquals(S3ContentAddressedArtifacts.getObjectKeys(properties), expected);
+  }
+}
@@ -19,10 +19,16 @@ package jetbrains.buildServer.artifacts.s3;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -51,4 +57,109 @@ public class S3PreSignUrlHelperTest {
     Collection<String> readData = S3PreSignUrlHelper.readS3ObjectKeys(writtenData);
     Assert.assertEquals(data, readData);
   }
+
+  @Test
+  public void testPreSignUrlMappingStreaming() throws Exception {
+    Map<String, URL> data = new HashMap<String, URL>();
+    data.put("some & <key>", new URL("http://some url?a=1&b=2"));
+    data.put("another key", new URL("http://another url"));
+    StringWriter writer = new StringWriter();
+    S3PreSignUrlHelper.writePreSignUrlMapping(data, writer);
+    Assert.assertEquals(S3PreSignUrlHelper.readPreSignUrlMapping(new StringReader(writer.toString())), data);
+    Assert.assertEquals(S3PreSignUrlHelper.readPreSignUrlMapping(new ByteArrayInputStream(writer.toString().getBytes("UTF-8"))), data);
+  }
+
+  @Test
+  public void testPreSignUrlMappingLegacyFormat() throws Exception {
+    String legacyData = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                        "<s3-presign-url-mapping>\n" +
+                        "  <s3-presign-url-map-entry>\n" +
+                        "    <pre-sign-url>http://some url?a=1&amp;b=2</pre-sign-url>\n" +
+                        "    <s3-object-key>some &amp; &lt;key&gt;</s3-object-key>\n" +
+                        "  </s3-presign-url-map-entry>\n" +
+                        "</s3-presign-url-mapping>\n";
+    Map<String, URL> readData = S3PreSignUrlHelper.readPreSignUrlMapping(legacyData);
+    Assert.assertEquals(readData.size(), 1);
+    Assert.assertEquals(readData.get("some & <key>"), new URL("http://some url?a=1&b=2"));
+    Assert.assertTrue(S3PreSignUrlHelper.readPreSignUrlMapping("not an xml").isEmpty());
+  }
+
+  @Test
+  public void testS3ObjectKeysStreaming() throws Exception {
+    Collection<String> data = new HashSet<String>();
+    data.add("one key");
+    data.add("other & key");
+    StringWriter writer = new StringWriter();
+    S3PreSignUrlHelper.writeS3ObjectKeys(data, writer);
+    Assert.assertEquals(S3PreSignUrlHelper.readS3ObjectKeys(new StringReader(writer.toString())), data);
+  }
+
+  @Test
+  public void testStoredObjects() throws Exception {
+    final StringWriter writer = new StringWriter();
+    S3PreSignUrlHelper.writeStoredObjects(Arrays.asList(new S3StoredObject("some key", 42, "\"900150983cd24fb0d6963f7d28e17f72\""),
+                                                        new S3StoredObject("other key", 0, "d41d8cd98f00b204e9800998ecf8427e-2")), writer);
+    final List<S3StoredObject> readData = new ArrayList<S3StoredObject>(S3PreSignUrlHelper.readStoredObjects(writer.toString()));
+    Assert.assertEquals(readData.size(), 2);
+    Assert.assertEquals(readData.get(0).getObjectKey(), "some key");
+    Assert.assertEquals(readData.get(0).getSize(), 42);
+    Assert.assertEquals(readData.get(0).getEtag(), "\"900150983cd24fb0d6963f7d28e17f72\"");
+    Assert.assertEquals(readData.get(1).getObjectKey(), "other key");
+    Assert.assertEquals(readData.get(1).getSize(), 0);
+    Assert.assertEquals(readData.get(1).getEtag(), "d41d8cd98f00b204e9800998ecf8427e-2");
+    Assert.assertTrue(S3PreSignUrlHelper.readStoredObjects("<s3-object-keys/>").isEmpty());
+  }
+
+  @Test
+  public void testMultipartUpload() throws Exception {
+    final S3MultipartUpload data = new S3MultipartUpload("some key", "upload id", "application/zip")
+      .withPart(1, new URL("http://some url"), "\"etag1\"")
+      .withPart(2, new URL("http://another url"), null)
+      .withPart(3, null, null);
+    final String writtenData = S3PreSignUrlHelper.writeMultipartUpload(data);
+    Assert.assertFalse(writtenData.isEmpty());
+    final S3MultipartUpload readData = S3PreSignUrlHelper.readMultipartUpload(writtenData);
+    Assert.assertNotNull(readData);
+    Assert.assertEquals(readData.getObjectKey(), data.getObjectKey());
+    Assert.assertEquals(readData.getUploadId(), data.getUploadId());
+    Assert.assertEquals(readData.getContentType(), data.getContentType());
+    Assert.assertEquals(readData.getPartUrls(), data.getPartUrls());
+    Assert.assertEquals(readData.getPartEtags(), data.getPartEtags());
+  }
+
+  @Test
+  public void testMultipartUploadStreamed() throws Exception {
+    final S3MultipartUpload data = new S3MultipartUpload("key & <value>", "upload id", null);
+    for (int partNumber = 1; partNumber <= 10000; partNumber++) {
+      data.withPart(partNumber, null, "\"etag" + partNumber + "\"");
+    }
+    final StringWriter writer = new StringWriter();
+    S3PreSignUrlHelper.writeMultipartUpload(data, writer);
+    final S3MultipartUpload readData = S3PreSignUrlHelper.readMultipartUpload(new StringReader(writer.toString()));
+    Assert.assertNotNull(readData);
+    Assert.assertEquals(readData.getObjectKey(), data.getObjectKey());
+    Assert.assertNull(readData.getContentType());
+    Assert.assertEquals(readData.getPartEtags(), data.getPartEtags());
+    Assert.assertNull(S3PreSignUrlHelper.readMultipartUpload("<s3-object-keys/>"));
+    Assert.assertNull(S3PreSignUrlHelper.readMultipartUpload("<s3-multipart-upload s3-object-key=\"key\"><part number=\"x\"/></s3-multipart-upload>"));
+  }
+
+  @Test
+  public void testExpirationTimeV4() throws Exception {
+    final URL url = new URL("https://examplebucket.s3.amazonaws.com/test.txt?X-Amz-Algorithm=AWS4-HMAC-SHA256" +
+                            "&X-Amz-Date=20130524T000000Z&X-Amz-Expires=86400&X-Amz-SignedHeaders=host&X-Amz-Signature=abc");
+    Assert.assertEquals(S3PreSignUrlHelper.getExpirationTime(url), Long.valueOf(1369353600000L + 86400000L));
+  }
+
+  @Test
+  public void testExpirationTimeV2() throws Exception {
+    final URL url = new URL("https://examplebucket.s3.amazonaws.com/test.txt?AWSAccessKeyId=key&Expires=1369440000&Signature=abc");
+    Assert.assertEquals(S3PreSignUrlHelper.getExpirationTime(url), Long.valueOf(1369440000000L));
+  }
+
+  @Test
+  public void testExpirationTimeUnknown() throws Exception {
+    Assert.assertNull(S3PreSignUrlHelper.getExpirationTime(new URL("http://some url")));
+    Assert.assertNull(S3PreSignUrlHelper.getExpirationTime(new URL("https://host/key?X-Amz-Date=broken&X-Amz-Expires=60")));
+  }
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.util.concurrent.TimeUnit;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class S3TokenBucketTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final long MB = 1024 * 1024;
+
+  public void testAllowsBurstWithinCapacity() {
+    final S3TokenBucket bucket = new S3TokenBucket(10 * MB, 0);
+    Assert.assertEquals(bucket.take(MB, 0), 0);
+    Assert.assertTrue(bucket.take(MB, 0) > 0);
+  }
+
+  public void testWaitsOutDebt() {
+    final S3TokenBucket bucket = new S3TokenBucket(10 * MB, 0);
+    bucket.take(MB, 0);
+    Assert.assertEquals(bucket.take(5 * MB, 0), SECOND / 2);
+    Assert.assertEquals(bucket.take(5 * MB, 0), SECOND);
+    Assert.assertEquals(bucket.take(0, SECOND), 0);
+  }
+
+  public void testKeepsRate() {
+    final S3TokenBucket bucket = new S3TokenBucket(MB, 0);
+    long now = 0;
+    for (int i = 0; i < 100; i++) {
+      now += bucket.take(64 * 1024, now);
+    }
+    Assert.assertTrue(Math.abs(now - (100 * 64 * 1024 - MB / 10) * SECOND / MB) < TimeUnit.MILLISECONDS.toNanos(1));
+  }
+
+  public void testDoesNotAccumulateIdleTime() {
+    final S3TokenBucket bucket = new S3TokenBucket(10 * MB, 0);
+    bucket.take(MB, 0);
+    Assert.assertEquals(bucket.take(MB, 100 * SECOND), 0);
+    Assert.assertTrue(bucket.take(MB, 100 * SECOND) > 0);
+  }
+}
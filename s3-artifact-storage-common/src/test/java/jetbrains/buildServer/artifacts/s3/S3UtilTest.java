@@ -21,6 +21,10 @@ import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 public class S3UtilTest {
   @DataProvider
@@ -39,4 +43,126 @@ public class S3UtilTest {
   public void getContentTypeTest(String fileName, String expectedType) {
     Assert.assertEquals(S3Util.getContentType(new File("S3UtilsTest", fileName)), expectedType);
   }
+
+  @Test
+  public void multipartUploadPartSizeTest() {
+    final long mb = 1024 * 1024;
+    Assert.assertEquals(S3Util.getMultipartUploadPartSize(Collections.<String, String>emptyMap(), 100 * mb), S3Constants.DEFAULT_S3_MULTIPART_UPLOAD_PART_SIZE);
+    Assert.assertEquals(S3Util.getMultipartUploadPartSize(Collections.singletonMap(S3Constants.S3_MULTIPART_UPLOAD_PART_SIZE, String.valueOf(mb)), 100 * mb),
+                        S3Constants.DEFAULT_S3_MULTIPART_UPLOAD_PART_SIZE);
+    Assert.assertEquals(S3Util.getMultipartUploadPartSize(Collections.singletonMap(S3Constants.S3_MULTIPART_UPLOAD_PART_SIZE, String.valueOf(32 * mb)), 100 * mb), 32 * mb);
+    final long hugeFile = 500L * 1024 * mb;
+    Assert.assertTrue(hugeFile / S3Util.getMultipartUploadPartSize(Collections.<String, String>emptyMap(), hugeFile) <= S3Constants.MAX_S3_MULTIPART_UPLOAD_PARTS);
+  }
+
+  @Test
+  public void transferPartSizeTest() {
+    final long mb = 1024 * 1024;
+    Assert.assertEquals(S3Util.getTransferPartSize(Collections.<String, String>emptyMap()), S3Constants.DEFAULT_S3_TRANSFER_PART_SIZE);
+    Assert.assertEquals(S3Util.getTransferPartSize(Collections.singletonMap(S3Constants.S3_TRANSFER_PART_SIZE, String.valueOf(mb))), S3Constants.DEFAULT_S3_TRANSFER_PART_SIZE);
+    Assert.assertEquals(S3Util.getTransferPartSize(Collections.singletonMap(S3Constants.S3_TRANSFER_PART_SIZE, String.valueOf(64 * mb))), 64 * mb);
+    Assert.assertTrue(S3Util.isTransferPartSizeAuto(Collections.singletonMap(S3Constants.S3_TRANSFER_PART_SIZE, "auto")));
+    Assert.assertFalse(S3Util.isTransferPartSizeAuto(Collections.<String, String>emptyMap()));
+  }
+
+  @Test
+  public void uploadBufferSizeTest() {
+    Assert.assertEquals(S3Util.getUploadBufferSize(Collections.<String, String>emptyMap()), S3Constants.DEFAULT_S3_UPLOAD_BUFFER_SIZE);
+    Assert.assertEquals(S3Util.getUploadBufferSize(Collections.singletonMap(S3Constants.S3_UPLOAD_BUFFER_SIZE, "100")), S3Constants.DEFAULT_S3_UPLOAD_BUFFER_SIZE);
+    Assert.assertEquals(S3Util.getUploadBufferSize(Collections.singletonMap(S3Constants.S3_UPLOAD_BUFFER_SIZE, "4194304")), 4 * 1024 * 1024);
+  }
+
+  @Test
+  public void adaptiveConcurrencyMaxTest() {
+    Assert.assertEquals(S3Util.getAdaptiveConcurrencyMax(Collections.<String, String>emptyMap()), S3Constants.DEFAULT_S3_ADAPTIVE_CONCURRENCY_MAX);
+    Assert.assertEquals(S3Util.getAdaptiveConcurrencyMax(Collections.singletonMap(S3Constants.S3_ADAPTIVE_CONCURRENCY_MAX, "32")), 32);
+    Assert.assertEquals(S3Util.getAdaptiveConcurrencyMax(Collections.singletonMap(S3Constants.S3_ADAPTIVE_CONCURRENCY_MAX, "2")), S3Constants.DEFAULT_S3_UPLOAD_THREADS);
+  }
+
+  @Test
+  public void bandwidthLimitTest() {
+    Assert.assertEquals(S3Util.getBuildBandwidthLimit(Collections.<String, String>emptyMap()), 0);
+    Assert.assertEquals(S3Util.getBuildBandwidthLimit(Collections.singletonMap(S3Constants.S3_UPLOAD_BANDWIDTH_LIMIT, "-1")), 0);
+    Assert.assertEquals(S3Util.getBuildBandwidthLimit(Collections.singletonMap(S3Constants.S3_UPLOAD_BANDWIDTH_LIMIT, "1048576")), 1048576);
+    Assert.assertEquals(S3Util.getAgentBandwidthLimit(Collections.singletonMap(S3Constants.S3_UPLOAD_BANDWIDTH_LIMIT, "1048576")), 0);
+    Assert.assertEquals(S3Util.getAgentBandwidthLimit(Collections.singletonMap(S3Constants.S3_UPLOAD_AGENT_BANDWIDTH_LIMIT, "1048576")), 1048576);
+  }
+
+  @Test
+  public void autoTransferPartSizeTest() {
+    final long mb = 1024 * 1024;
+    Assert.assertEquals(S3Util.getAutoTransferPartSize(100 * mb, 0, 10), 10 * mb);
+    Assert.assertEquals(S3Util.getAutoTransferPartSize(10 * mb, 0, 10), S3Constants.MIN_S3_MULTIPART_UPLOAD_PART_SIZE);
+    Assert.assertEquals(S3Util.getAutoTransferPartSize(30L * 1024 * mb, 100 * mb, 10), 50 * mb);
+    final long hugeFile = 60L * 1024 * mb;
+    Assert.assertEquals(S3Util.getAutoTransferPartSize(hugeFile, mb, 10), (hugeFile + S3Constants.MAX_S3_MULTIPART_UPLOAD_PARTS - 1) / S3Constants.MAX_S3_MULTIPART_UPLOAD_PARTS);
+  }
+
+  @Test
+  public void mixedBatchTransferPartSizeTest() {
+    final long mb = 1024 * 1024;
+    final Map<String, String> params = new HashMap<String, String>();
+    params.put(S3Constants.S3_TRANSFER_PART_SIZE, "auto");
+    params.put(S3Constants.S3_TRANSFER_THREADS, "10");
+    // the huge file of the batch doesn't affect the parts of the others
+    Assert.assertEquals(S3Util.getTransferPartSize(params, 20L * 1024 * mb, 0), 2L * 1024 * mb);
+    Assert.assertEquals(S3Util.getTransferPartSize(params, 1024 * mb, 0), 64 * mb);
+    Assert.assertEquals(S3Util.getTransferPartSize(params, 200 * mb, 0), 16 * mb);
+    Assert.assertEquals(S3Util.getTransferPartSize(params, 30 * mb, 0), S3Constants.MIN_S3_MULTIPART_UPLOAD_PART_SIZE);
+    Assert.assertEquals(S3Util.getTransferPartSize(params, 1024 * mb, 100 * mb), 32 * mb);
+    Assert.assertEquals(S3Util.getTransferMultipartThreshold(params), S3Constants.DEFAULT_S3_TRANSFER_MULTIPART_THRESHOLD);
+
+    params.put(S3Constants.S3_TRANSFER_PART_SIZE, String.valueOf(64 * mb));
+    Assert.assertEquals(S3Util.getTransferPartSize(params, 20L * 1024 * mb, 0), 64 * mb);
+    Assert.assertEquals(S3Util.getTransferPartSize(params, 30 * mb, 0), 64 * mb);
+  }
+
+  @Test
+  public void compressibleContentTypeTest() {
+    final Map<String, String> defaults = Collections.emptyMap();
+    Assert.assertTrue(S3Util.isCompressibleContentType(defaults, "text/plain"));
+    Assert.assertTrue(S3Util.isCompressibleContentType(defaults, "application/xml"));
+    Assert.assertTrue(S3Util.isCompressibleContentType(defaults, "Application/JSON; charset=UTF-8"));
+    Assert.assertFalse(S3Util.isCompressibleContentType(defaults, "application/zip"));
+    Assert.assertFalse(S3Util.isCompressibleContentType(defaults, "application/octet-stream"));
+
+    final Map<String, String> custom = Collections.singletonMap(S3Constants.S3_COMPRESSION_CONTENT_TYPES, " application/octet-stream ,, image/* ");
+    Assert.assertTrue(S3Util.isCompressibleContentType(custom, "application/octet-stream"));
+    Assert.assertTrue(S3Util.isCompressibleContentType(custom, "image/png"));
+    Assert.assertFalse(S3Util.isCompressibleContentType(custom, "text/plain"));
+  }
+
+  @Test
+  public void contentEncodingTest() {
+    final Map<String, String> encodings = new HashMap<String, String>();
+    encodings.put("reports/report.txt", S3Constants.GZIP_CONTENT_ENCODING);
+    encodings.put("logs/build log.txt", S3Constants.GZIP_CONTENT_ENCODING);
+    final Map<String, String> properties = Collections.singletonMap(S3Constants.S3_CONTENT_ENCODING_ATTR, S3ArtifactIndex.encode(encodings));
+
+    Assert.assertEquals(S3Util.getContentEncoding(properties, "reports/report.txt"), S3Constants.GZIP_CONTENT_ENCODING);
+    Assert.assertEquals(S3Util.getContentEncoding(properties, "logs/build log.txt"), S3Constants.GZIP_CONTENT_ENCODING);
+    Assert.assertNull(S3Util.getContentEncoding(properties, "report.txt"));
+    Assert.assertNull(S3Util.getContentEncoding(Collections.<String, String>emptyMap(), "reports/report.txt"));
+  }
+
+  @Test
+  public void unclaimedObjectPathsTest() {
+    Assert.assertTrue(S3Util.getUnclaimedObjectPaths(Collections.<String, String>emptyMap()).isEmpty());
+    final Map<String, String> properties = Collections.singletonMap(S3Constants.S3_UNCLAIMED_OBJECTS_ATTR, "logs/build log.txt\nreports/report.txt");
+    Assert.assertEquals(S3Util.getUnclaimedObjectPaths(properties), Arrays.asList("logs/build log.txt", "reports/report.txt"));
+  }
+
+  @Test
+  public void acceptsContentEncodingTest() {
+    Assert.assertTrue(S3Util.acceptsContentEncoding("gzip", "gzip"));
+    Assert.assertTrue(S3Util.acceptsContentEncoding("deflate, GZIP;q=0.5", "gzip"));
+    Assert.assertTrue(S3Util.acceptsContentEncoding("br, *", "gzip"));
+    Assert.assertFalse(S3Util.acceptsContentEncoding("gzip;q=0", "gzip"));
+    Assert.assertFalse(S3Util.acceptsContentEncoding("gzip; q=0.000", "gzip"));
+    Assert.assertFalse(S3Util.acceptsContentEncoding("*, gzip;q=0", "gzip"));
+    Assert.assertFalse(S3Util.acceptsContentEncoding("*;q=0", "gzip"));
+    Assert.assertFalse(S3Util.acceptsContentEncoding("x-gzip-like, identity", "gzip"));
+    Assert.assertFalse(S3Util.acceptsContentEncoding("", "gzip"));
+    Assert.assertFalse(S3Util.acceptsContentEncoding(null, "gzip"));
+  }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import java.io.File;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class TrustedCertificatesCacheTest {
+  private File myDirectory;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myDirectory = FileUtil.createTempDirectory("certificates", "");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myDirectory);
+  }
+
+  public void testFingerprintChangesWithDirectoryContent() throws Exception {
+    final String empty = TrustedCertificatesCache.getFingerprint(myDirectory.getPath());
+    Assert.assertEquals(TrustedCertificatesCache.getFingerprint(myDirectory.getPath()), empty);
+
+    final File certificate = new File(myDirectory, "cert.pem");
+    FileUtil.writeFileAndReportErrors(certificate, "certificate");
+    Assert.assertTrue(certificate.setLastModified(1000000L));
+    final String withCertificate = TrustedCertificatesCache.getFingerprint(myDirectory.getPath());
+    Assert.assertNotEquals(withCertificate, empty);
+
+    Assert.assertTrue(certificate.setLastModified(2000000L));
+    Assert.assertNotEquals(TrustedCertificatesCache.getFingerprint(myDirectory.getPath()), withCertificate);
+  }
+
+  public void testFingerprintOfMissingDirectory() {
+    Assert.assertEquals(TrustedCertificatesCache.getFingerprint(null), "");
+    Assert.assertEquals(TrustedCertificatesCache.getFingerprint(new File(myDirectory, "missing").getPath()), "");
+  }
+
+  public void testSocketFactoryIsReusedForUnchangedDirectory() {
+    final TrustedCertificatesCache cache = new TrustedCertificatesCache();
+    Assert.assertSame(cache.getSocketFactory(myDirectory.getPath()), cache.getSocketFactory(myDirectory.getPath()));
+  }
+}
@@ -16,6 +16,7 @@
 
 package jetbrains.buildServer.artifacts.s3;
 
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.artifacts.ArtifactData;
 import jetbrains.buildServer.artifacts.s3.util.ParamUtil;
@@ -26,9 +27,11 @@ import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.amazon.AWSException;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author vbedrosova
@@ -65,12 +68,27 @@ public class S3ArtifactContentProvider implements ArtifactContentProvider {
     }
 
     final String bucketName = S3Util.getBucketName(params);
-    final String key = S3Util.getPathPrefix(storedBuildArtifactInfo.getCommonProperties()) + artifactPath;
+    final Map<String, String> commonProperties = storedBuildArtifactInfo.getCommonProperties();
+    final S3ArtifactPacks.PackedArtifact packedArtifact = S3ArtifactPacks.getPackedArtifact(commonProperties, artifactPath);
+    final GetObjectRequest request;
+    final String contentAddressedKey = S3ContentAddressedArtifacts.getObjectKey(commonProperties, artifactPath);
+    if (contentAddressedKey != null) {
+      request = new GetObjectRequest(bucketName, contentAddressedKey);
+    } else if (packedArtifact == null) {
+      request = new GetObjectRequest(bucketName, S3Util.getPathPrefix(commonProperties) + artifactPath);
+    } else if (artifactData.getSize() == 0) {
+      return new ByteArrayInputStream(new byte[0]);
+    } else {
+      final long offset = packedArtifact.getOffset();
+      request = new GetObjectRequest(bucketName, S3Util.getPathPrefix(commonProperties) + packedArtifact.getPackPath())
+        .withRange(offset, offset + artifactData.getSize() - 1);
+    }
 
+    final InputStream content;
     try {
-      return S3Util.withS3Client(
+      content = S3Util.withS3Client(
         ParamUtil.putSslValues(myServerPaths, params),
-        client -> client.getObject(bucketName, key).getObjectContent()
+        client -> client.getObject(request).getObjectContent()
       );
     } catch (Throwable t) {
       final AWSException awsException = new AWSException(t);
@@ -84,5 +102,14 @@ public class S3ArtifactContentProvider implements ArtifactContentProvider {
         artifactPath, bucketName, awsException.getMessage()
       ), awsException);
     }
+    if (S3Constants.GZIP_CONTENT_ENCODING.equals(S3Util.getContentEncoding(commonProperties, artifactPath))) {
+      try {
+        return new GZIPInputStream(content);
+      } catch (IOException e) {
+        content.close();
+        throw new IOException(String.format("Failed to decompress artifact '%s' content in bucket '%s': %s", artifactPath, bucketName, e.getMessage()), e);
+      }
+    }
+    return content;
   }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.util.concurrent.Striped;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import jetbrains.buildServer.artifacts.s3.util.ParamUtil;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps track of the builds using content-addressed artifacts.
+ * <p>
+ * A build is registered as a user of the content when it looks the content up, before anything is uploaded,
+ * so the content can't be removed by a cleanup between the lookup and the artifact list publishing.
+ * The content registered by a build which never published it, e.g. because the build failed before publishing its artifacts,
+ * is released by the cleanup of that build, see {@link #getRegisteredDigests}.
+ * <p>
+ * Registering a build and releasing the content take the same per-digest lock. The lock is held by this server only,
+ * S3 can't add a marker and check the other markers atomically, so only a single node may register and release the content:
+ * with several nodes handling the agent requests the cleanup on one of them may delete the content another one
+ * has just reported as stored.
+ *
+ * @see S3ContentAddressedArtifacts
+ */
+public class S3ContentAddressedStorage {
+  private final Striped<Lock> myLocks = Striped.lock(64);
+  private final ServerPaths myServerPaths;
+
+  public S3ContentAddressedStorage(@NotNull final ServerPaths serverPaths) {
+    myServerPaths = serverPaths;
+  }
+
+  @NotNull
+  public static String getPathPrefix(@NotNull final SBuild build) {
+    return build.getProjectExternalId() + "/" + build.getBuildTypeExternalId() + "/" + build.getBuildId() + "/";
+  }
+
+  /**
+   * Registers the build as a user of the content of the objects.
+   *
+   * @param objectKeys content-addressed object keys the build is going to use, other keys including the keys of other projects are ignored
+   * @param pathPrefix S3 path prefix of the build artifacts
+   * @return keys of the objects which are already stored, one per digest
+   */
+  @NotNull
+  public Collection<String> register(@NotNull final String bucketName,
+                                     @NotNull final Collection<String> objectKeys,
+                                     @NotNull final String pathPrefix,
+                                     @NotNull final Map<String, String> params) {
+    return S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> register(client, bucketName, objectKeys, pathPrefix));
+  }
+
+  @NotNull
+  Collection<String> register(@NotNull final AmazonS3 client,
+                               @NotNull final String bucketName,
+                               @NotNull final Collection<String> objectKeys,
+                               @NotNull final String pathPrefix) {
+    final String projectId = S3ContentAddressedArtifacts.getProjectId(pathPrefix);
+    final Set<String> digests = objectKeys.stream()
+                                          .filter(key -> S3ContentAddressedArtifacts.isProjectObject(key, pathPrefix))
+                                          .map(S3ContentAddressedArtifacts::getDigest)
+                                          .collect(Collectors.toSet());
+    final List<String> result = new ArrayList<>();
+    for (String digest : digests) {
+      final Lock lock = myLocks.get(digest);
+      lock.lock();
+      try {
+        client.putObject(bucketName, S3ContentAddressedArtifacts.getBuildRecordKey(digest, pathPrefix), "");
+        client.putObject(bucketName, S3ContentAddressedArtifacts.getReferenceKey(digest, pathPrefix), "");
+        final String storedKey = findFirst(client, bucketName, S3ContentAddressedArtifacts.getObjectsPrefix(projectId, digest));
+        if (storedKey != null) {
+          result.add(storedKey);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param pathPrefix S3 path prefix of the build artifacts
+   * @return digests of the content the build was registered for, including the content missing in its artifact list
+   */
+  @NotNull
+  public Set<String> getRegisteredDigests(@NotNull final String bucketName,
+                                          @NotNull final String pathPrefix,
+                                          @NotNull final Map<String, String> params) {
+    final Set<String> digests = S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> getRegisteredDigests(client, bucketName, pathPrefix));
+    return digests == null ? Collections.emptySet() : digests;
+  }
+
+  @NotNull
+  Set<String> getRegisteredDigests(@NotNull final AmazonS3 client, @NotNull final String bucketName, @NotNull final String pathPrefix) {
+    final String prefix = S3ContentAddressedArtifacts.getBuildRecordsPrefix(pathPrefix);
+    final Set<String> result = new HashSet<>();
+    ObjectListing listing = client.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+    while (true) {
+      for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+        final String digest = summary.getKey().substring(prefix.length());
+        if (!digest.isEmpty() && !digest.contains("/")) {
+          result.add(digest);
+        }
+      }
+      if (!listing.isTruncated()) break;
+      listing = client.listNextBatchOfObjects(listing);
+    }
+    return result;
+  }
+
+  /**
+   * Removes the build from the users of the content and deletes the content nobody uses anymore.
+   *
+   * @return number of deleted content objects
+   */
+  public int release(@NotNull final String bucketName,
+                     @NotNull final Collection<String> digests,
+                     @NotNull final String pathPrefix,
+                     @NotNull final Map<String, String> params) {
+    final Integer deleted = S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> release(client, bucketName, digests, pathPrefix));
+    return deleted == null ? 0 : deleted;
+  }
+
+  int release(@NotNull final AmazonS3 client,
+              @NotNull final String bucketName,
+              @NotNull final Collection<String> digests,
+              @NotNull final String pathPrefix) {
+    final String projectId = S3ContentAddressedArtifacts.getProjectId(pathPrefix);
+    int result = 0;
+    for (String digest : digests) {
+      final Lock lock = myLocks.get(digest);
+      lock.lock();
+      try {
+        client.deleteObject(bucketName, S3ContentAddressedArtifacts.getReferenceKey(digest, pathPrefix));
+        client.deleteObject(bucketName, S3ContentAddressedArtifacts.getBuildRecordKey(digest, pathPrefix));
+        if (findFirst(client, bucketName, S3ContentAddressedArtifacts.getReferencesPrefix(projectId, digest)) != null) continue;
+
+        final List<DeleteObjectsRequest.KeyVersion> keys = client.listObjects(bucketName, S3ContentAddressedArtifacts.getObjectsPrefix(projectId, digest))
+                                                                 .getObjectSummaries().stream()
+                                                                 .map(summary -> new DeleteObjectsRequest.KeyVersion(summary.getKey()))
+                                                                 .collect(Collectors.toList());
+        if (!keys.isEmpty()) {
+          result += client.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(keys)).getDeletedObjects().size();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private static String findFirst(@NotNull final AmazonS3 client, @NotNull final String bucketName, @NotNull final String prefix) {
+    final ObjectListing listing = client.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix).withMaxKeys(1));
+    final List<S3ObjectSummary> summaries = listing.getObjectSummaries();
+    return summaries.isEmpty() ? null : summaries.get(0).getKey();
+  }
+}
@@ -19,8 +19,12 @@ package jetbrains.buildServer.artifacts.s3.cleanup;
 import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.amazonaws.services.s3.model.MultiObjectDeleteException;
 import com.google.common.collect.Lists;
+import jetbrains.buildServer.artifacts.ArtifactData;
 import jetbrains.buildServer.artifacts.ArtifactListData;
 import jetbrains.buildServer.artifacts.ServerArtifactStorageSettingsProvider;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactPacks;
+import jetbrains.buildServer.artifacts.s3.S3ContentAddressedArtifacts;
+import jetbrains.buildServer.artifacts.s3.S3ContentAddressedStorage;
 import jetbrains.buildServer.artifacts.s3.S3Constants;
 import jetbrains.buildServer.artifacts.s3.S3Util;
 import jetbrains.buildServer.artifacts.s3.util.ParamUtil;
@@ -37,8 +41,12 @@ import jetbrains.buildServer.util.positioning.PositionConstraint;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -51,14 +59,18 @@ public class S3CleanupExtension implements CleanupExtension, PositionAware {
   private final ServerArtifactHelper myHelper;
   @NotNull
   private final ServerPaths myServerPaths;
+  @NotNull
+  private final S3ContentAddressedStorage myContentAddressedStorage;
 
   public S3CleanupExtension(
     @NotNull final ServerArtifactHelper helper,
     @NotNull final ServerArtifactStorageSettingsProvider settingsProvider,
-    @NotNull final ServerPaths serverPaths) {
+    @NotNull final ServerPaths serverPaths,
+    @NotNull final S3ContentAddressedStorage contentAddressedStorage) {
     myHelper = helper;
     mySettingsProvider = settingsProvider;
     myServerPaths = serverPaths;
+    myContentAddressedStorage = contentAddressedStorage;
   }
 
   @Override
@@ -67,6 +79,7 @@ public class S3CleanupExtension implements CleanupExtension, PositionAware {
       try {
         final ArtifactListData artifactsInfo = myHelper.getArtifactList(build);
         if (artifactsInfo == null) {
+          releaseUnpublishedContent(build);
           continue;
         }
         final String pathPrefix = S3Util.getPathPrefix(artifactsInfo);
@@ -75,11 +88,11 @@ public class S3CleanupExtension implements CleanupExtension, PositionAware {
         }
 
         List<String> pathsToDelete = ArtifactPathsEvaluator.getPathsToDelete((BuildCleanupContextEx) cleanupContext, build, artifactsInfo);
-        if (pathsToDelete.isEmpty()) {
+        if (pathsToDelete.isEmpty() && !(artifactsInfo.getArtifactList().isEmpty() && hasUnclaimedObjects(artifactsInfo))) {
           continue;
         }
 
-        doClean(cleanupContext.getErrorReporter(), build, pathPrefix, pathsToDelete);
+        doClean(cleanupContext.getErrorReporter(), build, artifactsInfo, pathPrefix, pathsToDelete);
       } catch (Throwable e) {
         Loggers.CLEANUP.debug(e);
         cleanupContext.getErrorReporter().buildCleanupError(build.getBuildId(), "Failed to remove S3 artifacts: " + e.getMessage());
@@ -87,9 +100,26 @@ public class S3CleanupExtension implements CleanupExtension, PositionAware {
     }
   }
 
-  private void doClean(@NotNull ErrorReporter errorReporter, @NotNull SFinishedBuild build, @NotNull String pathPrefix, @NotNull List<String> pathsToDelete) throws IOException {
+  private void doClean(@NotNull ErrorReporter errorReporter,
+                       @NotNull SFinishedBuild build,
+                       @NotNull ArtifactListData artifactsInfo,
+                       @NotNull String pathPrefix,
+                       @NotNull List<String> pathsToDelete) throws IOException {
     final Map<String, String> params = S3Util.validateParameters(mySettingsProvider.getStorageSettings(build));
     final String bucketName = S3Util.getBucketName(params);
+    final Map<String, List<String>> packs = S3ArtifactPacks.getPackedArtifacts(artifactsInfo.getCommonProperties());
+    final Map<String, String> contentAddressedKeys = S3ContentAddressedArtifacts.getObjectKeys(artifactsInfo.getCommonProperties());
+    final List<String> objectsToDelete = getObjectsToDelete(artifactsInfo, packs, contentAddressedKeys.keySet(), pathsToDelete);
+    // objects uploaded by the agent in advance and not published are removed together with the last artifact of the build
+    if (getRemainingPaths(artifactsInfo, new HashSet<>(pathsToDelete)).isEmpty()) {
+      objectsToDelete.addAll(S3Util.getUnclaimedObjectPaths(artifactsInfo.getCommonProperties()));
+    }
+    final Set<String> digestsToRelease = new HashSet<>(getDigestsToRelease(artifactsInfo, contentAddressedKeys, pathsToDelete));
+    if ((!contentAddressedKeys.isEmpty() || isContentAddressingEnabled(build))
+        && getRemainingPaths(artifactsInfo, new HashSet<>(pathsToDelete)).stream().noneMatch(contentAddressedKeys::containsKey)) {
+      // the content the build registered and did not publish is released together with its last content-addressed artifact
+      digestsToRelease.addAll(myContentAddressedStorage.getRegisteredDigests(bucketName, pathPrefix, params));
+    }
     S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> {
       final String suffix = " from S3 bucket [" + bucketName + "]" + " from path [" + pathPrefix + "]";
 
@@ -98,7 +128,7 @@ public class S3CleanupExtension implements CleanupExtension, PositionAware {
 
       final int batchSize = TeamCityProperties.getInteger(S3Constants.S3_CLEANUP_BATCH_SIZE, 1000);
       final boolean useParallelStream = TeamCityProperties.getBooleanOrTrue(S3Constants.S3_CLEANUP_USE_PARALLEL);
-      final List<List<String>> partitions = Lists.partition(pathsToDelete, batchSize);
+      final List<List<String>> partitions = Lists.partition(objectsToDelete, batchSize);
       final Stream<List<String>> listStream = partitions.size() > 1 && useParallelStream
         ? partitions.parallelStream()
         : partitions.stream();
@@ -122,13 +152,29 @@ public class S3CleanupExtension implements CleanupExtension, PositionAware {
             final String key = error.getKey();
             if (key.startsWith(pathPrefix)) {
               Loggers.CLEANUP.debug("Failed to remove " + key + " from S3 bucket " + bucketName + ": " + error.getMessage());
-              pathsToDelete.remove(key.substring(pathPrefix.length()));
+              final String path = key.substring(pathPrefix.length());
+              final List<String> packedArtifacts = packs.get(path);
+              if (packedArtifacts != null) {
+                pathsToDelete.removeAll(packedArtifacts);
+              } else {
+                pathsToDelete.remove(path);
+              }
             }
           });
           errorNum.addAndGet(errors.size());
         }
       });
 
+      if (!digestsToRelease.isEmpty()) {
+        try {
+          succeededNum.addAndGet(myContentAddressedStorage.release(bucketName, digestsToRelease, pathPrefix, params));
+        } catch (Exception e) {
+          Loggers.CLEANUP.debug("Failed to release content-addressed artifacts" + suffix, e);
+          errorNum.addAndGet(digestsToRelease.size());
+          pathsToDelete.removeAll(contentAddressedKeys.keySet());
+        }
+      }
+
       if (errorNum.get() > 0) {
         String errorMessage = "Failed to remove [" + errorNum + "] S3 " + StringUtil.pluralize("object", errorNum.get()) + suffix;
         errorReporter.buildCleanupError(build.getBuildId(), errorMessage);
@@ -142,6 +188,98 @@ public class S3CleanupExtension implements CleanupExtension, PositionAware {
     });
   }
 
+  /**
+   * A build which failed before publishing its artifact list may still be registered as a user of content-addressed artifacts.
+   */
+  private void releaseUnpublishedContent(@NotNull SFinishedBuild build) {
+    if (!isContentAddressingEnabled(build)) {
+      return;
+    }
+    final Map<String, String> storageSettings = mySettingsProvider.getStorageSettings(build);
+    if (S3Util.getBucketName(storageSettings) == null) {
+      return;
+    }
+    final Map<String, String> params = S3Util.validateParameters(storageSettings);
+    final String bucketName = S3Util.getBucketName(params);
+    final String pathPrefix = S3ContentAddressedStorage.getPathPrefix(build);
+    final Set<String> digests = myContentAddressedStorage.getRegisteredDigests(bucketName, pathPrefix, params);
+    if (!digests.isEmpty()) {
+      final int deleted = myContentAddressedStorage.release(bucketName, digests, pathPrefix, params);
+      Loggers.CLEANUP.info("Removed [" + deleted + "] S3 " + StringUtil.pluralize("object", deleted) +
+                           " from S3 bucket [" + bucketName + "] unused after build " + build.getBuildId() + " without artifact list");
+    }
+  }
+
+  private static boolean isContentAddressingEnabled(@NotNull SFinishedBuild build) {
+    return Boolean.parseBoolean(build.getParametersProvider().get(S3Constants.S3_CONTENT_ADDRESSED_ENABLED));
+  }
+
+  /**
+   * Packed and content-addressed artifacts have no objects of their own: a pack is removed together with the last of its artifacts,
+   * content-addressed objects are released separately.
+   */
+  @NotNull
+  private static List<String> getObjectsToDelete(@NotNull ArtifactListData artifactsInfo,
+                                                 @NotNull Map<String, List<String>> packs,
+                                                 @NotNull Set<String> contentAddressed,
+                                                 @NotNull List<String> pathsToDelete) {
+    if (packs.isEmpty() && contentAddressed.isEmpty()) {
+      return new ArrayList<>(pathsToDelete);
+    }
+    final Set<String> deleted = new HashSet<>(pathsToDelete);
+    final Set<String> packed = new HashSet<>();
+    packs.values().forEach(packed::addAll);
+    final Set<String> remaining = getRemainingPaths(artifactsInfo, deleted);
+
+    final List<String> result = pathsToDelete.stream()
+      .filter(path -> !packed.contains(path) && !contentAddressed.contains(path))
+      .collect(Collectors.toList());
+    packs.forEach((packPath, artifacts) -> {
+      if (artifacts.stream().anyMatch(deleted::contains) && artifacts.stream().noneMatch(remaining::contains)) {
+        result.add(packPath);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * @return digests of the content which is not used by the remaining artifacts of the build
+   */
+  @NotNull
+  private static Set<String> getDigestsToRelease(@NotNull ArtifactListData artifactsInfo,
+                                                 @NotNull Map<String, String> contentAddressedKeys,
+                                                 @NotNull List<String> pathsToDelete) {
+    if (contentAddressedKeys.isEmpty()) {
+      return Collections.emptySet();
+    }
+    final Set<String> deleted = new HashSet<>(pathsToDelete);
+    final Set<String> remaining = getRemainingPaths(artifactsInfo, deleted);
+    final Set<String> used = new HashSet<>();
+    final Set<String> released = new HashSet<>();
+    contentAddressedKeys.forEach((path, objectKey) -> {
+      final String digest = S3ContentAddressedArtifacts.getDigest(objectKey);
+      if (remaining.contains(path)) {
+        used.add(digest);
+      } else if (deleted.contains(path)) {
+        released.add(digest);
+      }
+    });
+    released.removeAll(used);
+    return released;
+  }
+
+  private static boolean hasUnclaimedObjects(@NotNull ArtifactListData artifactsInfo) {
+    return !S3Util.getUnclaimedObjectPaths(artifactsInfo.getCommonProperties()).isEmpty();
+  }
+
+  @NotNull
+  private static Set<String> getRemainingPaths(@NotNull ArtifactListData artifactsInfo, @NotNull Set<String> deleted) {
+    return artifactsInfo.getArtifactList().stream()
+      .map(ArtifactData::getPath)
+      .filter(path -> !deleted.contains(path))
+      .collect(Collectors.toSet());
+  }
+
   @Override
   public void afterCleanup(@NotNull CleanupProcessState cleanupProcessState) {
     // do nothing
@@ -18,17 +18,21 @@ package jetbrains.buildServer.artifacts.s3.preSignedUrl;
 
 import com.amazonaws.HttpMethod;
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.openapi.util.io.StreamUtil;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import jetbrains.buildServer.BuildAuthUtil;
 import jetbrains.buildServer.artifacts.ServerArtifactStorageSettingsProvider;
+import jetbrains.buildServer.artifacts.s3.S3ContentAddressedStorage;
+import jetbrains.buildServer.artifacts.s3.S3MultipartUpload;
 import jetbrains.buildServer.artifacts.s3.S3PreSignUrlHelper;
+import jetbrains.buildServer.artifacts.s3.S3StoredObject;
 import jetbrains.buildServer.artifacts.s3.S3Util;
 import jetbrains.buildServer.controllers.BaseController;
 import jetbrains.buildServer.controllers.interceptors.auth.util.AuthorizationHeader;
@@ -41,25 +45,33 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.web.servlet.ModelAndView;
 
-import static jetbrains.buildServer.artifacts.s3.S3Constants.ARTEFACTS_S3_UPLOAD_PRESIGN_URLS_HTML;
+import static jetbrains.buildServer.artifacts.s3.S3Constants.*;
 
 /**
  * Created by Evgeniy Koshkin (evgeniy.koshkin@jetbrains.com) on 19.07.17.
  */
 public class S3PreSignedUrlController extends BaseController {
   private static final Logger LOG = Logger.getInstance(S3PreSignedUrlController.class.getName());
+  private static final String APPLICATION_XML = "application/xml";
+  private static final String UTF_8 = "UTF-8";
+  private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+  private static final String GZIP = "gzip";
 
   private RunningBuildsCollection myRunningBuildsCollection;
   private S3PreSignedUrlProvider myPreSignedUrlProvider;
   private ServerArtifactStorageSettingsProvider myStorageSettingsProvider;
+  private S3ContentAddressedStorage myContentAddressedStorage;
 
   public S3PreSignedUrlController(@NotNull WebControllerManager web,
                                   @NotNull RunningBuildsCollection runningBuildsCollection,
                                   @NotNull S3PreSignedUrlProvider preSignedUrlProvider,
-                                  @NotNull ServerArtifactStorageSettingsProvider storageSettingsProvider) {
+                                  @NotNull ServerArtifactStorageSettingsProvider storageSettingsProvider,
+                                  @NotNull S3ContentAddressedStorage contentAddressedStorage) {
     myRunningBuildsCollection = runningBuildsCollection;
     myPreSignedUrlProvider = preSignedUrlProvider;
     myStorageSettingsProvider = storageSettingsProvider;
+    myContentAddressedStorage = contentAddressedStorage;
     web.registerController(ARTEFACTS_S3_UPLOAD_PRESIGN_URLS_HTML, this);
   }
 
@@ -95,8 +107,18 @@ public class S3PreSignedUrlController extends BaseController {
       return null;
     }
 
-    final String text = StreamUtil.readTextFrom(httpServletRequest.getReader());
-    final Collection<String> s3ObjectKeys = S3PreSignUrlHelper.readS3ObjectKeys(text);
+    final String operation = httpServletRequest.getParameter(S3_MULTIPART_UPLOAD_OPERATION);
+    if (S3_CONTENT_ADDRESSED_LOOKUP.equals(operation)) {
+      return handleContentAddressedLookup(bucketName, storageSettings, runningBuild, httpServletRequest, httpServletResponse);
+    }
+    if (S3_STORED_OBJECTS_LOOKUP.equals(operation)) {
+      return handleStoredObjectsLookup(bucketName, storageSettings, runningBuild, httpServletRequest, httpServletResponse);
+    }
+    if (operation != null) {
+      return handleMultipartUpload(operation, bucketName, storageSettings, runningBuild, httpServletRequest, httpServletResponse);
+    }
+
+    final Collection<String> s3ObjectKeys = S3PreSignUrlHelper.readS3ObjectKeys(httpServletRequest.getReader());
     if(s3ObjectKeys.isEmpty()){
       httpServletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST);
       LOG.debug("Failed to provide presigned urls for request " + httpServletRequest + ". S3 object keys collection is empty.");
@@ -104,11 +126,20 @@ public class S3PreSignedUrlController extends BaseController {
     }
 
     try{
-      Map<String, URL> data = new HashMap<>();
-      for(String objectKey : s3ObjectKeys){
-        data.put(objectKey, new URL(myPreSignedUrlProvider.getPreSignedUrl(HttpMethod.PUT, bucketName, objectKey, storageSettings)));
+      final Map<String, URL> data = myPreSignedUrlProvider.getPreSignedUrls(HttpMethod.PUT, bucketName, s3ObjectKeys, storageSettings);
+      httpServletResponse.setContentType(APPLICATION_XML);
+      httpServletResponse.setCharacterEncoding(UTF_8);
+      if (acceptsGzip(httpServletRequest)) {
+        httpServletResponse.setHeader(CONTENT_ENCODING_HEADER, GZIP);
+        final Writer writer = new OutputStreamWriter(new GZIPOutputStream(httpServletResponse.getOutputStream()), UTF_8);
+        try {
+          S3PreSignUrlHelper.writePreSignUrlMapping(data, writer);
+        } finally {
+          writer.close();
+        }
+      } else {
+        S3PreSignUrlHelper.writePreSignUrlMapping(data, httpServletResponse.getWriter());
       }
-      httpServletResponse.getWriter().append(S3PreSignUrlHelper.writePreSignUrlMapping(data));
       return null;
     } catch (IOException ex){
       LOG.debug("Failed to resolve presigned upload urls for artifacts of build " + runningBuild.getBuildId(), ex);
@@ -117,6 +148,108 @@ public class S3PreSignedUrlController extends BaseController {
     }
   }
 
+  private static boolean acceptsGzip(@NotNull HttpServletRequest httpServletRequest) {
+    return S3Util.acceptsContentEncoding(httpServletRequest.getHeader(ACCEPT_ENCODING_HEADER), GZIP);
+  }
+
+  @Nullable
+  private ModelAndView handleContentAddressedLookup(@NotNull String bucketName,
+                                                    @NotNull Map<String, String> storageSettings,
+                                                    @NotNull RunningBuildEx runningBuild,
+                                                    @NotNull HttpServletRequest httpServletRequest,
+                                                    @NotNull HttpServletResponse httpServletResponse) throws IOException {
+    final Collection<String> s3ObjectKeys = S3PreSignUrlHelper.readS3ObjectKeys(httpServletRequest.getReader());
+    try {
+      final Collection<String> storedKeys =
+        myContentAddressedStorage.register(bucketName, s3ObjectKeys, S3ContentAddressedStorage.getPathPrefix(runningBuild), storageSettings);
+      httpServletResponse.setContentType(APPLICATION_XML);
+      httpServletResponse.setCharacterEncoding(UTF_8);
+      S3PreSignUrlHelper.writeS3ObjectKeys(storedKeys, httpServletResponse.getWriter());
+      return null;
+    } catch (Exception ex) {
+      LOG.debug("Failed to look up stored content-addressed artifacts of build " + runningBuild.getBuildId(), ex);
+      httpServletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return null;
+    }
+  }
+
+  /**
+   * Returns size and ETag of the requested objects which are already stored, only objects of the build itself are looked up.
+   */
+  @Nullable
+  private ModelAndView handleStoredObjectsLookup(@NotNull String bucketName,
+                                                 @NotNull Map<String, String> storageSettings,
+                                                 @NotNull RunningBuildEx runningBuild,
+                                                 @NotNull HttpServletRequest httpServletRequest,
+                                                 @NotNull HttpServletResponse httpServletResponse) throws IOException {
+    final Collection<String> s3ObjectKeys = S3PreSignUrlHelper.readS3ObjectKeys(httpServletRequest.getReader());
+    final String pathPrefix = S3ContentAddressedStorage.getPathPrefix(runningBuild);
+    try {
+      final Collection<S3StoredObject> result = myPreSignedUrlProvider.getStoredObjects(bucketName, pathPrefix, s3ObjectKeys, storageSettings).values();
+      httpServletResponse.setContentType(APPLICATION_XML);
+      httpServletResponse.setCharacterEncoding(UTF_8);
+      S3PreSignUrlHelper.writeStoredObjects(result, httpServletResponse.getWriter());
+      return null;
+    } catch (IOException ex) {
+      LOG.debug("Failed to look up stored artifacts of build " + runningBuild.getBuildId(), ex);
+      httpServletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return null;
+    }
+  }
+
+  @Nullable
+  private ModelAndView handleMultipartUpload(@NotNull String operation,
+                                             @NotNull String bucketName,
+                                             @NotNull Map<String, String> storageSettings,
+                                             @NotNull RunningBuildEx runningBuild,
+                                             @NotNull HttpServletRequest httpServletRequest,
+                                             @NotNull HttpServletResponse httpServletResponse) throws IOException {
+    final S3MultipartUpload request = S3PreSignUrlHelper.readMultipartUpload(httpServletRequest.getReader());
+    if (request == null || (request.getUploadId() == null && !S3_MULTIPART_UPLOAD_INITIATE.equals(operation))) {
+      httpServletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      LOG.debug("Failed to process " + operation + " request " + httpServletRequest + ". Multipart upload description is missing or incomplete.");
+      return null;
+    }
+
+    final String objectKey = request.getObjectKey();
+    try {
+      final S3MultipartUpload response;
+      switch (operation) {
+        case S3_MULTIPART_UPLOAD_INITIATE:
+          final String uploadId = myPreSignedUrlProvider.startMultipartUpload(bucketName, objectKey, request.getContentType(), storageSettings);
+          response = new S3MultipartUpload(objectKey, uploadId, null);
+          break;
+        case S3_MULTIPART_UPLOAD_PRESIGN_PARTS:
+          response = new S3MultipartUpload(objectKey, request.getUploadId(), null);
+          for (Integer partNumber : request.getPartUrls().keySet()) {
+            final String url = myPreSignedUrlProvider.getPreSignedPartUrl(bucketName, objectKey, request.getUploadId(), partNumber, storageSettings);
+            response.withPart(partNumber, new URL(url), null);
+          }
+          break;
+        case S3_MULTIPART_UPLOAD_COMPLETE:
+          myPreSignedUrlProvider.completeMultipartUpload(bucketName, objectKey, request.getUploadId(), request.getPartEtags(), storageSettings);
+          response = new S3MultipartUpload(objectKey, request.getUploadId(), null);
+          break;
+        case S3_MULTIPART_UPLOAD_ABORT:
+          myPreSignedUrlProvider.abortMultipartUpload(bucketName, objectKey, request.getUploadId(), storageSettings);
+          response = new S3MultipartUpload(objectKey, request.getUploadId(), null);
+          break;
+        default:
+          httpServletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST);
+          LOG.debug("Failed to process request " + httpServletRequest + ". Unknown operation " + operation + ".");
+          return null;
+      }
+      httpServletResponse.setContentType(APPLICATION_XML);
+      httpServletResponse.setCharacterEncoding(UTF_8);
+      S3PreSignUrlHelper.writeMultipartUpload(response, httpServletResponse.getWriter());
+      return null;
+    } catch (IOException ex) {
+      LOG.debug("Failed to process " + operation + " request for artifact " + objectKey + " of build " + runningBuild.getBuildId(), ex);
+      httpServletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return null;
+    }
+  }
+
   @Nullable
   private RunningBuildEx getRunningBuild(@NotNull final HttpServletRequest request) {
     AuthorizationHeader header = AuthorizationHeader.getFrom(request);
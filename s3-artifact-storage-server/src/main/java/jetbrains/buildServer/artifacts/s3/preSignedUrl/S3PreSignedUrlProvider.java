@@ -17,9 +17,14 @@
 package jetbrains.buildServer.artifacts.s3.preSignedUrl;
 
 import com.amazonaws.HttpMethod;
+import com.google.common.cache.CacheStats;
+import jetbrains.buildServer.artifacts.s3.S3StoredObject;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.net.URL;
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -28,6 +33,66 @@ import java.util.Map;
 public interface S3PreSignedUrlProvider {
   int getUrlLifetimeSec();
 
+  /**
+   * @return minimum time a URL returned by {@link #getPreSignedUrl} stays valid, may be less than the lifetime for cached URLs
+   */
+  int getUrlMinValiditySec();
+
+  /**
+   * @return hit, miss and eviction counters of the cache of GET links returned by {@link #getPreSignedUrl}
+   */
+  @NotNull
+  CacheStats getGetLinksCacheStats();
+
   @NotNull
   String getPreSignedUrl(@NotNull HttpMethod httpMethod, @NotNull String bucketName, @NotNull String objectKey, @NotNull Map<String, String> params) throws IOException;
+
+  /**
+   * @param contentDisposition Content-Disposition S3 responds with instead of the stored one, e.g. to name the downloaded file
+   *                           differently from the object key
+   */
+  @NotNull
+  String getPreSignedUrl(@NotNull HttpMethod httpMethod,
+                         @NotNull String bucketName,
+                         @NotNull String objectKey,
+                         @Nullable String contentDisposition,
+                         @NotNull Map<String, String> params) throws IOException;
+
+  /**
+   * Signs all the given object keys with a single S3 client.
+   *
+   * @return mapping from object key to its pre-signed URL
+   */
+  @NotNull
+  Map<String, URL> getPreSignedUrls(@NotNull HttpMethod httpMethod, @NotNull String bucketName, @NotNull Collection<String> objectKeys, @NotNull Map<String, String> params)
+    throws IOException;
+
+  /**
+   * @return id of the started multipart upload
+   */
+  @NotNull
+  String startMultipartUpload(@NotNull String bucketName, @NotNull String objectKey, @Nullable String contentType, @NotNull Map<String, String> params) throws IOException;
+
+  @NotNull
+  String getPreSignedPartUrl(@NotNull String bucketName, @NotNull String objectKey, @NotNull String uploadId, int partNumber, @NotNull Map<String, String> params)
+    throws IOException;
+
+  void completeMultipartUpload(@NotNull String bucketName,
+                               @NotNull String objectKey,
+                               @NotNull String uploadId,
+                               @NotNull Map<Integer, String> partEtags,
+                               @NotNull Map<String, String> params) throws IOException;
+
+  void abortMultipartUpload(@NotNull String bucketName, @NotNull String objectKey, @NotNull String uploadId, @NotNull Map<String, String> params) throws IOException;
+
+  /**
+   * Looks up the given objects stored under the prefix, keys outside of the prefix are ignored.
+   *
+   * @return stored objects by key
+   */
+  @NotNull
+  Map<String, S3StoredObject> getStoredObjects(@NotNull String bucketName,
+                                               @NotNull String prefix,
+                                               @NotNull Collection<String> objectKeys,
+                                               @NotNull Map<String, String> params) throws IOException;
 }
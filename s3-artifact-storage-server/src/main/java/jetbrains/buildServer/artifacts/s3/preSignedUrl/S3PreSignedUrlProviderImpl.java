@@ -17,12 +17,17 @@
 package jetbrains.buildServer.artifacts.s3.preSignedUrl;
 
 import com.amazonaws.HttpMethod;
-import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
 import jetbrains.buildServer.artifacts.s3.S3Constants;
+import jetbrains.buildServer.artifacts.s3.S3SignatureV4UrlSigner;
+import jetbrains.buildServer.artifacts.s3.S3StoredObject;
 import jetbrains.buildServer.artifacts.s3.S3Util;
 import jetbrains.buildServer.artifacts.s3.util.ParamUtil;
 import jetbrains.buildServer.serverSide.ServerPaths;
@@ -30,67 +35,392 @@ import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.amazon.AWSCommonParams;
 import jetbrains.buildServer.util.amazon.AWSException;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.DisposableBean;
 
 import java.io.IOException;
-import java.util.Date;
-import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Evgeniy Koshkin (evgeniy.koshkin@jetbrains.com) on 19.07.17.
  */
-public class S3PreSignedUrlProviderImpl implements S3PreSignedUrlProvider {
+public class S3PreSignedUrlProviderImpl implements S3PreSignedUrlProvider, DisposableBean {
   private static final Logger LOG = Logger.getInstance(S3PreSignedUrlProviderImpl.class.getName());
   private static final String TEAMCITY_S3_PRESIGNURL_GET_CACHE_ENABLED = "teamcity.s3.presignurl.get.cache.enabled";
+  private static final String TEAMCITY_S3_PRESIGNURL_GET_CACHE_MAX_SIZE = "teamcity.s3.presignurl.get.cache.maxSize";
+  private static final String TEAMCITY_S3_PRESIGNURL_GET_CACHE_MAX_WEIGHT = "teamcity.s3.presignurl.get.cache.maxWeight";
+  private static final String TEAMCITY_S3_PRESIGNURL_GET_CACHE_EXPIRY_FRACTION = "teamcity.s3.presignurl.get.cache.expiryFraction";
+  private static final String TEAMCITY_S3_PRESIGNURL_GET_CACHE_STATS_INTERVAL_SEC = "teamcity.s3.presignurl.get.cache.statsIntervalSec";
+  private static final int DEFAULT_GET_CACHE_MAX_SIZE = 10000;
+  private static final float DEFAULT_GET_CACHE_EXPIRY_FRACTION = 0.5f;
+  private static final int DEFAULT_GET_CACHE_STATS_INTERVAL_SEC = 3600;
+
+  private static final String UPLOAD_ID_PARAM = "uploadId";
+  private static final String PART_NUMBER_PARAM = "partNumber";
+  private static final String RESPONSE_CONTENT_DISPOSITION_PARAM = "response-content-disposition";
 
   private final ServerPaths myServerPaths;
+  private final S3SignatureV4UrlSigner myUrlSigner = new S3SignatureV4UrlSigner();
+  private final S3SigningExecutor mySigningExecutor;
 
   public S3PreSignedUrlProviderImpl(@NotNull ServerPaths serverPaths) {
     myServerPaths = serverPaths;
+    final int threads = Math.max(1, TeamCityProperties.getInteger(S3Constants.S3_PRESIGN_THREADS, S3Constants.DEFAULT_S3_PRESIGN_THREADS));
+    final int maxChunksPerRequest = Math.max(1, TeamCityProperties.getInteger(S3Constants.S3_PRESIGN_MAX_CHUNKS_PER_REQUEST, S3Constants.DEFAULT_S3_PRESIGN_MAX_CHUNKS_PER_REQUEST));
+    mySigningExecutor = new S3SigningExecutor(threads, maxChunksPerRequest);
+  }
+
+  @Override
+  public void destroy() {
+    mySigningExecutor.shutdownNow();
+    if (myGetLinksCache.stats().requestCount() > 0) {
+      LOG.info(describeGetLinksCacheStats());
+    }
+  }
+
+  private final Cache<String, String> myGetLinksCache = createGetLinksCache();
+  private final AtomicLong myLastGetLinksCacheReportTime = new AtomicLong(System.currentTimeMillis());
+
+  /**
+   * GET links are cached for a fraction of their lifetime, so every link handed out from the cache stays valid
+   * for at least {@link #getUrlMinValiditySec()}. The cache is bounded either by the number of links or,
+   * when the max weight is set, by the total length of cached links.
+   */
+  @NotNull
+  private Cache<String, String> createGetLinksCache() {
+    final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+      .expireAfterWrite(getGetLinksCacheExpirySec(), TimeUnit.SECONDS)
+      .recordStats();
+    final long maxWeight = TeamCityProperties.getLong(TEAMCITY_S3_PRESIGNURL_GET_CACHE_MAX_WEIGHT, 0);
+    if (maxWeight > 0) {
+      return builder.maximumWeight(maxWeight).weigher((String key, String url) -> key.length() + url.length()).build();
+    }
+    return builder.maximumSize(TeamCityProperties.getInteger(TEAMCITY_S3_PRESIGNURL_GET_CACHE_MAX_SIZE, DEFAULT_GET_CACHE_MAX_SIZE)).build();
   }
 
-  private final Cache<String, String> myGetLinksCache = CacheBuilder.newBuilder()
-    .expireAfterWrite(getUrlLifetimeSec(), TimeUnit.SECONDS)
-    .maximumSize(200)
-    .build();
+  private int getGetLinksCacheExpirySec() {
+    float fraction = TeamCityProperties.getFloat(TEAMCITY_S3_PRESIGNURL_GET_CACHE_EXPIRY_FRACTION, DEFAULT_GET_CACHE_EXPIRY_FRACTION);
+    if (fraction <= 0 || fraction >= 1) {
+      fraction = DEFAULT_GET_CACHE_EXPIRY_FRACTION;
+    }
+    return Math.max(1, (int)(getUrlLifetimeSec() * fraction));
+  }
+
+  private static boolean isGetLinksCacheEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(TEAMCITY_S3_PRESIGNURL_GET_CACHE_ENABLED);
+  }
 
   @Override
   public int getUrlLifetimeSec() {
     return TeamCityProperties.getInteger(S3Constants.S3_URL_LIFETIME_SEC, S3Constants.DEFAULT_S3_URL_LIFETIME_SEC);
   }
 
+  @Override
+  public int getUrlMinValiditySec() {
+    return isGetLinksCacheEnabled() ? Math.max(0, getUrlLifetimeSec() - getGetLinksCacheExpirySec()) : getUrlLifetimeSec();
+  }
+
+  @NotNull
+  @Override
+  public CacheStats getGetLinksCacheStats() {
+    return myGetLinksCache.stats();
+  }
+
+  /**
+   * Logs the statistics of the GET links cache to the server log once per the configured interval.
+   */
+  private void reportGetLinksCacheStats() {
+    final long interval = TeamCityProperties.getInteger(TEAMCITY_S3_PRESIGNURL_GET_CACHE_STATS_INTERVAL_SEC, DEFAULT_GET_CACHE_STATS_INTERVAL_SEC) * 1000L;
+    if (interval <= 0) return;
+    final long now = System.currentTimeMillis();
+    final long lastReportTime = myLastGetLinksCacheReportTime.get();
+    if (now - lastReportTime >= interval && myLastGetLinksCacheReportTime.compareAndSet(lastReportTime, now)) {
+      LOG.info(describeGetLinksCacheStats());
+    }
+  }
+
+  @NotNull
+  private String describeGetLinksCacheStats() {
+    final CacheStats stats = myGetLinksCache.stats();
+    return String.format("Pre-signed GET links cache: %d hits, %d misses, hit rate %.1f%%, %d evictions, %d links cached",
+                         stats.hitCount(), stats.missCount(), stats.hitRate() * 100, stats.evictionCount(), myGetLinksCache.size());
+  }
+
   @NotNull
   @Override
   public String getPreSignedUrl(@NotNull HttpMethod httpMethod, @NotNull String bucketName, @NotNull String objectKey, @NotNull Map<String, String> params) throws IOException {
+    return getPreSignedUrl(httpMethod, bucketName, objectKey, null, params);
+  }
+
+  @NotNull
+  @Override
+  public String getPreSignedUrl(@NotNull HttpMethod httpMethod,
+                                @NotNull String bucketName,
+                                @NotNull String objectKey,
+                                @Nullable String contentDisposition,
+                                @NotNull Map<String, String> params) throws IOException {
     try {
-      final Callable<String> resolver = () -> S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> {
-        final GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucketName, objectKey, httpMethod)
-          .withExpiration(new Date(System.currentTimeMillis() + getUrlLifetimeSec() * 1000));
-        return client.generatePresignedUrl(request).toString();
-      });
-      if (httpMethod == HttpMethod.GET) {
-        return TeamCityProperties.getBoolean(TEAMCITY_S3_PRESIGNURL_GET_CACHE_ENABLED)
-          ? myGetLinksCache.get(getCacheIdentity(params, objectKey, bucketName), resolver)
-          : resolver.call();
+      final Callable<String> resolver = () -> {
+        final Map<String, String> queryParams = contentDisposition != null
+                                                ? Collections.singletonMap(RESPONSE_CONTENT_DISPOSITION_PARAM, contentDisposition)
+                                                : Collections.emptyMap();
+        final URL url = presignLocally(httpMethod, bucketName, objectKey, queryParams, params);
+        if (url != null) {
+          return url.toString();
+        }
+        return S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> {
+          final GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucketName, objectKey, httpMethod)
+            .withExpiration(new Date(System.currentTimeMillis() + getUrlLifetimeSec() * 1000));
+          if (contentDisposition != null) {
+            request.withResponseHeaders(new ResponseHeaderOverrides().withContentDisposition(contentDisposition));
+          }
+          return client.generatePresignedUrl(request).toString();
+        });
+      };
+      if (httpMethod == HttpMethod.GET && isGetLinksCacheEnabled()) {
+        final String cacheKey = contentDisposition != null ? objectKey + "\n" + contentDisposition : objectKey;
+        final String url = myGetLinksCache.get(getCacheIdentity(params, cacheKey, bucketName), resolver);
+        reportGetLinksCacheStats();
+        return url;
       } else {
         return resolver.call();
       }
     } catch (Exception e) {
-      final Throwable cause = e.getCause();
-      final AWSException awsException = cause != null ? new AWSException(cause) : new AWSException(e);
-      final String details = awsException.getDetails();
-      if (StringUtil.isNotEmpty(details)) {
-        final String message = awsException.getMessage() + details;
-        LOG.warn(message);
+      throw toIOException(e, String.format("Failed to create pre-signed URL to %s artifact '%s' in bucket '%s'", httpMethod.name().toLowerCase(), objectKey, bucketName));
+    }
+  }
+
+  /**
+   * Large batches are split into chunks, the first chunk is signed by the calling thread and the rest by the shared pool.
+   * Every request keeps only a few chunks in the pool at once, see {@link S3SigningExecutor},
+   * so the chunks of concurrent requests from different agents are signed in turn.
+   */
+  @NotNull
+  @Override
+  public Map<String, URL> getPreSignedUrls(@NotNull HttpMethod httpMethod,
+                                           @NotNull String bucketName,
+                                           @NotNull Collection<String> objectKeys,
+                                           @NotNull Map<String, String> params) throws IOException {
+    if (objectKeys.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    if (presignLocally(httpMethod, bucketName, objectKeys.iterator().next(), Collections.emptyMap(), params) != null) {
+      final Map<String, URL> result = new HashMap<>();
+      for (String objectKey : objectKeys) {
+        result.put(objectKey, presignLocally(httpMethod, bucketName, objectKey, Collections.emptyMap(), params));
+      }
+      return result;
+    }
+    final int chunkSize = Math.max(1, TeamCityProperties.getInteger(S3Constants.S3_PRESIGN_CHUNK_SIZE, S3Constants.DEFAULT_S3_PRESIGN_CHUNK_SIZE));
+    final List<List<String>> chunks = Lists.partition(new ArrayList<>(objectKeys), chunkSize);
+    try {
+      return S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> {
+        final Date expiration = new Date(System.currentTimeMillis() + getUrlLifetimeSec() * 1000);
+        final List<Callable<Map<String, URL>>> tasks = new ArrayList<>();
+        for (List<String> chunk : chunks) {
+          tasks.add(() -> signChunk(client, httpMethod, bucketName, chunk, expiration));
+        }
+        final Map<String, URL> result = new HashMap<>();
+        mySigningExecutor.invokeAll(tasks).forEach(result::putAll);
+        return result;
+      });
+    } catch (Exception e) {
+      throw toIOException(e, String.format("Failed to create pre-signed URLs to %s %d artifacts in bucket '%s'", httpMethod.name().toLowerCase(), objectKeys.size(), bucketName));
+    }
+  }
+
+  @NotNull
+  private static Map<String, URL> signChunk(@NotNull AmazonS3 client,
+                                            @NotNull HttpMethod httpMethod,
+                                            @NotNull String bucketName,
+                                            @NotNull List<String> objectKeys,
+                                            @NotNull Date expiration) {
+    final Map<String, URL> result = new HashMap<>();
+    for (String objectKey : objectKeys) {
+      result.put(objectKey, client.generatePresignedUrl(new GeneratePresignedUrlRequest(bucketName, objectKey, httpMethod).withExpiration(expiration)));
+    }
+    return result;
+  }
+
+  @NotNull
+  @Override
+  public String startMultipartUpload(@NotNull String bucketName, @NotNull String objectKey, @Nullable String contentType, @NotNull Map<String, String> params)
+    throws IOException {
+    try {
+      return S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        if (contentType != null) {
+          metadata.setContentType(contentType);
+        }
+        final InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucketName, objectKey, metadata)
+          .withCannedACL(CannedAccessControlList.Private);
+        return client.initiateMultipartUpload(request).getUploadId();
+      });
+    } catch (Exception e) {
+      throw toIOException(e, String.format("Failed to start multipart upload of artifact '%s' in bucket '%s'", objectKey, bucketName));
+    }
+  }
+
+  @NotNull
+  @Override
+  public String getPreSignedPartUrl(@NotNull String bucketName, @NotNull String objectKey, @NotNull String uploadId, int partNumber, @NotNull Map<String, String> params)
+    throws IOException {
+    try {
+      final Map<String, String> queryParams = new HashMap<>();
+      queryParams.put(UPLOAD_ID_PARAM, uploadId);
+      queryParams.put(PART_NUMBER_PARAM, String.valueOf(partNumber));
+      final URL url = presignLocally(HttpMethod.PUT, bucketName, objectKey, queryParams, params);
+      if (url != null) {
+        return url.toString();
+      }
+      return S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> {
+        final GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucketName, objectKey, HttpMethod.PUT)
+          .withExpiration(new Date(System.currentTimeMillis() + getUrlLifetimeSec() * 1000));
+        queryParams.forEach(request::addRequestParameter);
+        return client.generatePresignedUrl(request).toString();
+      });
+    } catch (Exception e) {
+      throw toIOException(e, String.format("Failed to create pre-signed URL to upload part %d of artifact '%s' in bucket '%s'", partNumber, objectKey, bucketName));
+    }
+  }
+
+  @Override
+  public void completeMultipartUpload(@NotNull String bucketName,
+                                      @NotNull String objectKey,
+                                      @NotNull String uploadId,
+                                      @NotNull Map<Integer, String> partEtags,
+                                      @NotNull Map<String, String> params) throws IOException {
+    try {
+      S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> {
+        final List<PartETag> parts = new ArrayList<>();
+        partEtags.forEach((partNumber, etag) -> parts.add(new PartETag(partNumber, etag)));
+        return client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, objectKey, uploadId, parts));
+      });
+    } catch (Exception e) {
+      throw toIOException(e, String.format("Failed to complete multipart upload of artifact '%s' in bucket '%s'", objectKey, bucketName));
+    }
+  }
+
+  @Override
+  public void abortMultipartUpload(@NotNull String bucketName, @NotNull String objectKey, @NotNull String uploadId, @NotNull Map<String, String> params)
+    throws IOException {
+    try {
+      S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> {
+        client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, objectKey, uploadId));
+        return null;
+      });
+    } catch (Exception e) {
+      throw toIOException(e, String.format("Failed to abort multipart upload of artifact '%s' in bucket '%s'", objectKey, bucketName));
+    }
+  }
+
+  @NotNull
+  @Override
+  public Map<String, S3StoredObject> getStoredObjects(@NotNull String bucketName,
+                                                      @NotNull String prefix,
+                                                      @NotNull Collection<String> objectKeys,
+                                                      @NotNull Map<String, String> params) throws IOException {
+    try {
+      return S3Util.withS3Client(ParamUtil.putSslValues(myServerPaths, params), client -> getStoredObjects(client, bucketName, prefix, objectKeys));
+    } catch (Exception e) {
+      throw toIOException(e, String.format("Failed to list objects under '%s' in bucket '%s'", prefix, bucketName));
+    }
+  }
+
+  /**
+   * The first page of the prefix listing is requested first, for a prefix with up to a page of objects it is the whole answer.
+   * Otherwise only the directories of the keys are listed one level deep in the shared pool, so a build publishing its artifacts
+   * in many steps doesn't list all its objects on every step. Keys spread over too many directories are looked up in the full listing.
+   */
+  @NotNull
+  Map<String, S3StoredObject> getStoredObjects(@NotNull AmazonS3 client,
+                                               @NotNull String bucketName,
+                                               @NotNull String prefix,
+                                               @NotNull Collection<String> objectKeys) throws Exception {
+    final Set<String> keys = new HashSet<>();
+    for (String objectKey : objectKeys) {
+      if (objectKey.startsWith(prefix)) {
+        keys.add(objectKey);
+      }
+    }
+    final Map<String, S3StoredObject> result = new HashMap<>();
+    if (keys.isEmpty()) {
+      return result;
+    }
+    ObjectListing listing = client.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+    collectStoredObjects(listing, keys, result);
+    if (!listing.isTruncated()) {
+      return result;
+    }
+
+    final Set<String> directories = new HashSet<>();
+    for (String key : keys) {
+      directories.add(key.substring(0, key.lastIndexOf('/') + 1));
+    }
+    final int maxDirectoryListings = TeamCityProperties.getInteger(S3Constants.S3_STORED_OBJECTS_MAX_DIRECTORY_LISTINGS, S3Constants.DEFAULT_S3_STORED_OBJECTS_MAX_DIRECTORY_LISTINGS);
+    if (directories.size() > maxDirectoryListings) {
+      while (listing.isTruncated()) {
+        listing = client.listNextBatchOfObjects(listing);
+        collectStoredObjects(listing, keys, result);
+      }
+      return result;
+    }
+    final List<Callable<Map<String, S3StoredObject>>> tasks = new ArrayList<>();
+    for (String directory : directories) {
+      tasks.add(() -> {
+        final Map<String, S3StoredObject> stored = new HashMap<>();
+        ObjectListing directoryListing = client.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(directory).withDelimiter("/"));
+        collectStoredObjects(directoryListing, keys, stored);
+        while (directoryListing.isTruncated()) {
+          directoryListing = client.listNextBatchOfObjects(directoryListing);
+          collectStoredObjects(directoryListing, keys, stored);
+        }
+        return stored;
+      });
+    }
+    mySigningExecutor.invokeAll(tasks).forEach(result::putAll);
+    return result;
+  }
+
+  private static void collectStoredObjects(@NotNull ObjectListing listing, @NotNull Set<String> keys, @NotNull Map<String, S3StoredObject> result) {
+    for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+      if (keys.contains(summary.getKey())) {
+        result.put(summary.getKey(), new S3StoredObject(summary.getKey(), summary.getSize(), summary.getETag()));
       }
-      throw new IOException(String.format(
-        "Failed to create pre-signed URL to %s artifact '%s' in bucket '%s': %s",
-        httpMethod.name().toLowerCase(), objectKey, bucketName, awsException.getMessage()
-      ), awsException);
     }
   }
 
+  /**
+   * Signs the URL without constructing an S3 client.
+   *
+   * @return null if the settings are not supported by the local signer
+   */
+  @Nullable
+  private URL presignLocally(@NotNull HttpMethod httpMethod,
+                             @NotNull String bucketName,
+                             @NotNull String objectKey,
+                             @NotNull Map<String, String> queryParams,
+                             @NotNull Map<String, String> params) {
+    if (!TeamCityProperties.getBooleanOrTrue(S3Constants.S3_PRESIGN_LOCAL_SIGNER_ENABLED)) {
+      return null;
+    }
+    return myUrlSigner.presign(httpMethod.name(), bucketName, objectKey, queryParams, getUrlLifetimeSec(), params);
+  }
+
+  @NotNull
+  private static IOException toIOException(@NotNull Exception e, @NotNull String message) {
+    final Throwable cause = e.getCause();
+    final AWSException awsException = cause != null ? new AWSException(cause) : new AWSException(e);
+    final String details = awsException.getDetails();
+    if (StringUtil.isNotEmpty(details)) {
+      LOG.warn(awsException.getMessage() + details);
+    }
+    return new IOException(message + ": " + awsException.getMessage(), awsException);
+  }
+
   @NotNull
   private String getCacheIdentity(@NotNull Map<String, String> params, @NotNull String key, @NotNull String bucket) {
     return String.valueOf(AWSCommonParams.calculateIdentity("", params, bucket, key));
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.preSignedUrl;
+
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Signs the chunks of pre-signing requests in a pool shared by all the requests.
+ * <p>
+ * A request keeps at most a few of its chunks in the pool and submits the next one only when a previous one is done,
+ * so the queue of the pool holds the chunks of all the concurrent requests in turn
+ * instead of a large batch of one agent ahead of everything else.
+ */
+final class S3SigningExecutor {
+  private final ThreadPoolExecutor myExecutor;
+  private final int myMaxChunksPerRequest;
+
+  S3SigningExecutor(int threads, int maxChunksPerRequest) {
+    myExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new NamedThreadFactory("S3 pre-signed URLs"));
+    myExecutor.allowCoreThreadTimeOut(true);
+    myMaxChunksPerRequest = maxChunksPerRequest;
+  }
+
+  /**
+   * Runs the chunks of a single request, the first one is run by the calling thread.
+   *
+   * @return results of the chunks in the order of completion
+   */
+  @NotNull
+  <T> List<T> invokeAll(@NotNull List<Callable<T>> chunks) throws Exception {
+    final List<T> results = new ArrayList<>(chunks.size());
+    if (chunks.isEmpty()) {
+      return results;
+    }
+    final CompletionService<T> completionService = new ExecutorCompletionService<>(myExecutor);
+    final Iterator<Callable<T>> pending = chunks.subList(1, chunks.size()).iterator();
+    final List<Future<T>> futures = new ArrayList<>();
+    int inFlight = 0;
+    try {
+      for (; inFlight < myMaxChunksPerRequest && pending.hasNext(); inFlight++) {
+        futures.add(completionService.submit(pending.next()));
+      }
+      results.add(chunks.get(0).call());
+      while (inFlight > 0) {
+        results.add(completionService.take().get());
+        inFlight--;
+        if (pending.hasNext()) {
+          futures.add(completionService.submit(pending.next()));
+          inFlight++;
+        }
+      }
+      return results;
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+    } finally {
+      futures.forEach(future -> future.cancel(true));
+    }
+  }
+
+  void shutdownNow() {
+    myExecutor.shutdownNow();
+  }
+}
@@ -19,6 +19,8 @@ package jetbrains.buildServer.artifacts.s3.web;
 import com.amazonaws.HttpMethod;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.artifacts.ArtifactData;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactPacks;
+import jetbrains.buildServer.artifacts.s3.S3ContentAddressedArtifacts;
 import jetbrains.buildServer.artifacts.s3.S3Constants;
 import jetbrains.buildServer.artifacts.s3.S3Util;
 import jetbrains.buildServer.artifacts.s3.preSignedUrl.S3PreSignedUrlProvider;
@@ -30,6 +32,9 @@ import org.jetbrains.annotations.NotNull;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.Map;
 
 /**
@@ -59,6 +64,24 @@ public class S3ArtifactDownloadProcessor implements ArtifactDownloadProcessor {
     final ArtifactData artifactData = storedBuildArtifactInfo.getArtifactData();
     if (artifactData == null) throw new IOException("Can not process artifact download request for a folder");
 
+    if (S3ArtifactPacks.getPackedArtifact(storedBuildArtifactInfo.getCommonProperties(), artifactData.getPath()) != null) {
+      // a pre-signed URL can't address a range of the pack, the content is streamed by S3ArtifactContentProvider
+      return false;
+    }
+
+    if (S3Constants.GZIP_CONTENT_ENCODING.equals(S3Util.getContentEncoding(storedBuildArtifactInfo.getCommonProperties(), artifactData.getPath()))) {
+      // the same URL is answered with either the gzipped object or the decompressed content, caches must tell them apart
+      httpServletResponse.addHeader("Vary", "Accept-Encoding");
+      if (!acceptsGzip(httpServletRequest)) {
+        // the object is stored gzipped, S3ArtifactContentProvider decompresses it for clients which can't
+        return false;
+      }
+      if (httpServletRequest.getHeader("Range") != null) {
+        // S3 would apply the range to the gzipped bytes while the client asks for a range of the artifact
+        return false;
+      }
+    }
+
     final Map<String, String> params = S3Util.validateParameters(storedBuildArtifactInfo.getStorageSettings());
     final String pathPrefix = S3Util.getPathPrefix(storedBuildArtifactInfo.getCommonProperties());
 
@@ -69,8 +92,42 @@ public class S3ArtifactDownloadProcessor implements ArtifactDownloadProcessor {
       throw new IOException(message);
     }
 
-    httpServletResponse.setHeader("Cache-Control", "max-age=" + myPreSignedUrlProvider.getUrlLifetimeSec());
-    httpServletResponse.sendRedirect(myPreSignedUrlProvider.getPreSignedUrl(HttpMethod.valueOf(httpServletRequest.getMethod()), bucketName, pathPrefix + artifactData.getPath(),params));
+    httpServletResponse.setHeader("Cache-Control", "max-age=" + myPreSignedUrlProvider.getUrlMinValiditySec());
+    final String artifactPath = artifactData.getPath();
+    final String contentAddressedKey = S3ContentAddressedArtifacts.getObjectKey(storedBuildArtifactInfo.getCommonProperties(), artifactPath);
+    final String objectKey = contentAddressedKey != null ? contentAddressedKey : pathPrefix + artifactPath;
+    // the key of a content-addressed object ends with the name of the file it was first uploaded from, not with the name of this artifact
+    final String contentDisposition = contentAddressedKey != null ? getContentDisposition(artifactPath.substring(artifactPath.lastIndexOf('/') + 1)) : null;
+    httpServletResponse.sendRedirect(
+      myPreSignedUrlProvider.getPreSignedUrl(HttpMethod.valueOf(httpServletRequest.getMethod()), bucketName, objectKey, contentDisposition, params));
     return true;
   }
+
+  /**
+   * @return inline Content-Disposition with the file name, RFC 6266 quoted ASCII name followed by the RFC 5987 encoded one
+   */
+  @NotNull
+  static String getContentDisposition(@NotNull String fileName) {
+    final StringBuilder asciiName = new StringBuilder();
+    final StringBuilder encodedName = new StringBuilder();
+    for (int i = 0; i < fileName.length(); i++) {
+      final char c = fileName.charAt(i);
+      asciiName.append(c >= 0x20 && c < 0x7f && c != '"' && c != '\\' ? c : '_');
+    }
+    for (byte b : fileName.getBytes(StandardCharsets.UTF_8)) {
+      final char c = (char)(b & 0xff);
+      if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || "!#$&+-.^_`|~".indexOf(c) >= 0) {
+        encodedName.append(c);
+      } else {
+        encodedName.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16))).append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+      }
+    }
+    return "inline; filename=\"" + asciiName + "\"; filename*=UTF-8''" + encodedName;
+  }
+
+  private static boolean acceptsGzip(@NotNull HttpServletRequest request) {
+    final Enumeration<String> headers = request.getHeaders("Accept-Encoding");
+    if (headers == null) return false;
+    return S3Util.acceptsContentEncoding(String.join(",", Collections.list(headers)), S3Constants.GZIP_CONTENT_ENCODING);
+  }
 }
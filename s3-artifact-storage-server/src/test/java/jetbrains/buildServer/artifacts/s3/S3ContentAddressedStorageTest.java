@@ -0,0 +1,177 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class S3ContentAddressedStorageTest {
+  private static final String BUCKET = "bucket";
+  private static final String DIGEST = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+  private static final String OTHER_DIGEST = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+  private static final String FIRST_BUILD = "Project/Build/1/";
+  private static final String SECOND_BUILD = "Project/Build/2/";
+  private static final String OTHER_PROJECT_BUILD = "Other/Build/1/";
+
+  private InMemoryS3 myS3;
+  private S3ContentAddressedStorage myStorage;
+
+  @BeforeMethod
+  public void setUp() {
+    myS3 = new InMemoryS3();
+    myStorage = new S3ContentAddressedStorage(new ServerPaths(System.getProperty("java.io.tmpdir")));
+  }
+
+  public void testRegisterReturnsStoredObjects() {
+    final String objectKey = S3ContentAddressedArtifacts.getObjectKey("Project", DIGEST, "lib.jar");
+    Assert.assertTrue(myStorage.register(myS3, BUCKET, Collections.singletonList(objectKey), FIRST_BUILD).isEmpty());
+
+    myS3.putObject(BUCKET, objectKey, "abc");
+    final List<String> otherKeys = Arrays.asList(S3ContentAddressedArtifacts.getObjectKey("Project", DIGEST, "other.jar"), FIRST_BUILD + "lib.jar");
+    Assert.assertEquals(myStorage.register(myS3, BUCKET, otherKeys, SECOND_BUILD), Collections.singletonList(objectKey));
+  }
+
+  public void testContentIsNotSharedBetweenProjects() {
+    final String objectKey = S3ContentAddressedArtifacts.getObjectKey("Project", DIGEST, "lib.jar");
+    myStorage.register(myS3, BUCKET, Collections.singletonList(objectKey), FIRST_BUILD);
+    myS3.putObject(BUCKET, objectKey, "abc");
+
+    // a build of another project knowing the digest neither gets the content nor keeps it from being deleted
+    Assert.assertTrue(myStorage.register(myS3, BUCKET, Collections.singletonList(objectKey), OTHER_PROJECT_BUILD).isEmpty());
+    final String otherObjectKey = S3ContentAddressedArtifacts.getObjectKey("Other", DIGEST, "lib.jar");
+    Assert.assertTrue(myStorage.register(myS3, BUCKET, Collections.singletonList(otherObjectKey), OTHER_PROJECT_BUILD).isEmpty());
+    myS3.putObject(BUCKET, otherObjectKey, "abc");
+
+    Assert.assertEquals(myStorage.release(myS3, BUCKET, Collections.singletonList(DIGEST), FIRST_BUILD), 1);
+    Assert.assertFalse(myS3.contains(objectKey));
+    Assert.assertTrue(myS3.contains(otherObjectKey));
+    Assert.assertEquals(myStorage.release(myS3, BUCKET, Collections.singletonList(DIGEST), OTHER_PROJECT_BUILD), 1);
+    Assert.assertTrue(myS3.getKeys().isEmpty(), myS3.getKeys().toString());
+  }
+
+  public void testContentIsDeletedWithLastReference() {
+    final String objectKey = S3ContentAddressedArtifacts.getObjectKey("Project", DIGEST, "lib.jar");
+    myStorage.register(myS3, BUCKET, Collections.singletonList(objectKey), FIRST_BUILD);
+    myS3.putObject(BUCKET, objectKey, "abc");
+    myStorage.register(myS3, BUCKET, Collections.singletonList(objectKey), SECOND_BUILD);
+
+    Assert.assertEquals(myStorage.release(myS3, BUCKET, Collections.singletonList(DIGEST), FIRST_BUILD), 0);
+    Assert.assertTrue(myS3.contains(objectKey));
+    // the build released twice doesn't release the other build
+    Assert.assertEquals(myStorage.release(myS3, BUCKET, Collections.singletonList(DIGEST), FIRST_BUILD), 0);
+    Assert.assertTrue(myS3.contains(objectKey));
+
+    Assert.assertEquals(myStorage.release(myS3, BUCKET, Collections.singletonList(DIGEST), SECOND_BUILD), 1);
+    Assert.assertFalse(myS3.contains(objectKey));
+    Assert.assertTrue(myS3.getKeys().isEmpty(), myS3.getKeys().toString());
+  }
+
+  public void testContentIsStoredAgainAfterRelease() {
+    final String objectKey = S3ContentAddressedArtifacts.getObjectKey("Project", DIGEST, "lib.jar");
+    myStorage.register(myS3, BUCKET, Collections.singletonList(objectKey), FIRST_BUILD);
+    myS3.putObject(BUCKET, objectKey, "abc");
+    Assert.assertEquals(myStorage.release(myS3, BUCKET, Collections.singletonList(DIGEST), FIRST_BUILD), 1);
+
+    // the content is missing for the next build, the content it uploads is not affected by the released build anymore
+    Assert.assertTrue(myStorage.register(myS3, BUCKET, Collections.singletonList(objectKey), SECOND_BUILD).isEmpty());
+    myS3.putObject(BUCKET, objectKey, "abc");
+    Assert.assertEquals(myStorage.release(myS3, BUCKET, Collections.singletonList(DIGEST), FIRST_BUILD), 0);
+    Assert.assertTrue(myS3.contains(objectKey));
+  }
+
+  public void testRegisteredDigestsOfBuild() {
+    final List<String> objectKeys = Arrays.asList(S3ContentAddressedArtifacts.getObjectKey("Project", DIGEST, "lib.jar"),
+                                                  S3ContentAddressedArtifacts.getObjectKey("Project", OTHER_DIGEST, "empty.txt"));
+    myStorage.register(myS3, BUCKET, objectKeys, FIRST_BUILD);
+    myStorage.register(myS3, BUCKET, objectKeys.subList(0, 1), SECOND_BUILD);
+    myS3.putObject(BUCKET, objectKeys.get(0), "abc");
+    myS3.putObject(BUCKET, objectKeys.get(1), "");
+
+    Assert.assertEquals(myStorage.getRegisteredDigests(myS3, BUCKET, FIRST_BUILD), new HashSet<>(Arrays.asList(DIGEST, OTHER_DIGEST)));
+    Assert.assertEquals(myStorage.getRegisteredDigests(myS3, BUCKET, SECOND_BUILD), Collections.singleton(DIGEST));
+    Assert.assertTrue(myStorage.getRegisteredDigests(myS3, BUCKET, "Project/Build/3/").isEmpty());
+    // the build number prefix must not match other builds
+    Assert.assertTrue(myStorage.getRegisteredDigests(myS3, BUCKET, "Project/Build/").isEmpty());
+
+    Assert.assertEquals(myStorage.release(myS3, BUCKET, myStorage.getRegisteredDigests(myS3, BUCKET, FIRST_BUILD), FIRST_BUILD), 1);
+    Assert.assertTrue(myStorage.getRegisteredDigests(myS3, BUCKET, FIRST_BUILD).isEmpty());
+    Assert.assertTrue(myS3.contains(objectKeys.get(0)));
+    Assert.assertFalse(myS3.contains(objectKeys.get(1)));
+  }
+
+  private static final class InMemoryS3 extends AbstractAmazonS3 {
+    private final SortedMap<String, String> myObjects = new TreeMap<>();
+
+    synchronized boolean contains(final String key) {
+      return myObjects.containsKey(key);
+    }
+
+    synchronized Set<String> getKeys() {
+      return new TreeSet<>(myObjects.keySet());
+    }
+
+    @Override
+    public synchronized PutObjectResult putObject(final String bucketName, final String key, final String content) {
+      myObjects.put(key, content);
+      return new PutObjectResult();
+    }
+
+    @Override
+    public synchronized void deleteObject(final String bucketName, final String key) {
+      myObjects.remove(key);
+    }
+
+    @Override
+    public synchronized DeleteObjectsResult deleteObjects(final DeleteObjectsRequest request) {
+      final List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<>();
+      for (DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+        if (myObjects.remove(key.getKey()) != null) {
+          final DeleteObjectsResult.DeletedObject deletedObject = new DeleteObjectsResult.DeletedObject();
+          deletedObject.setKey(key.getKey());
+          deleted.add(deletedObject);
+        }
+      }
+      return new DeleteObjectsResult(deleted);
+    }
+
+    @Override
+    public ObjectListing listObjects(final String bucketName, final String prefix) {
+      return listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+    }
+
+    @Override
+    public synchronized ObjectListing listObjects(final ListObjectsRequest request) {
+      final int maxKeys = request.getMaxKeys() != null ? request.getMaxKeys() : 1000;
+      final List<String> keys = myObjects.keySet().stream().filter(key -> key.startsWith(request.getPrefix())).collect(Collectors.toList());
+      final ObjectListing listing = new ObjectListing();
+      for (String key : keys.subList(0, Math.min(maxKeys, keys.size()))) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        listing.getObjectSummaries().add(summary);
+      }
+      listing.setTruncated(keys.size() > maxKeys);
+      return listing;
+    }
+  }
+}
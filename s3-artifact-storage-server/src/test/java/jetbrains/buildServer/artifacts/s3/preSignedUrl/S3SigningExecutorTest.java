@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.artifacts.s3.preSignedUrl;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+@Test
+public class S3SigningExecutorTest {
+  private S3SigningExecutor mySigningExecutor;
+  private ExecutorService myRequests;
+
+  @BeforeMethod
+  public void setUp() {
+    mySigningExecutor = new S3SigningExecutor(1, 1);
+    myRequests = Executors.newFixedThreadPool(2);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    mySigningExecutor.shutdownNow();
+    myRequests.shutdownNow();
+  }
+
+  public void testRunsAllChunks() throws Exception {
+    final List<Callable<Integer>> chunks = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      final int chunk = i;
+      chunks.add(() -> chunk);
+    }
+    Assert.assertEquals(new TreeSet<>(mySigningExecutor.invokeAll(chunks)).size(), 10);
+  }
+
+  public void testPropagatesChunkFailure() throws Exception {
+    final List<Callable<Integer>> chunks = new ArrayList<>();
+    chunks.add(() -> 0);
+    chunks.add(() -> {
+      throw new IllegalStateException("Failed to sign");
+    });
+    try {
+      mySigningExecutor.invokeAll(chunks);
+      Assert.fail("Chunk failure expected");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  public void testServesConcurrentRequestsInTurn() throws Exception {
+    final List<String> signed = Collections.synchronizedList(new ArrayList<>());
+    final CountDownLatch secondRequestQueued = new CountDownLatch(1);
+    final CountDownLatch firstRequestInPool = new CountDownLatch(1);
+
+    final List<Callable<String>> large = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      final String name = "large-" + i;
+      large.add(() -> {
+        if (name.equals("large-1")) {
+          firstRequestInPool.countDown();
+          Assert.assertTrue(secondRequestQueued.await(10, TimeUnit.SECONDS));
+        }
+        signed.add(name);
+        return name;
+      });
+    }
+    final List<Callable<String>> small = Arrays.asList(
+      () -> {
+        // runs in the calling thread once the rest of the request is queued
+        secondRequestQueued.countDown();
+        signed.add("small-0");
+        return "small-0";
+      },
+      () -> {
+        signed.add("small-1");
+        return "small-1";
+      });
+
+    final Future<List<String>> largeResult = myRequests.submit(() -> mySigningExecutor.invokeAll(large));
+    Assert.assertTrue(firstRequestInPool.await(10, TimeUnit.SECONDS));
+    final Future<List<String>> smallResult = myRequests.submit(() -> mySigningExecutor.invokeAll(small));
+
+    Assert.assertEquals(smallResult.get(10, TimeUnit.SECONDS).size(), 2);
+    Assert.assertEquals(largeResult.get(10, TimeUnit.SECONDS).size(), 10);
+    Assert.assertTrue(signed.indexOf("small-1") < signed.indexOf("large-2"), "Chunks were signed in order " + signed);
+  }
+}